@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic archives and a local HTTP server standing in for the real download servers, shared by all benchmarks.
+ *
+ * @author Danny Althoff
+ */
+final class BenchmarkFixtures {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)?");
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Creates some zip-archive looking like a browser archive: lots of small files and some big ones.
+     *
+     * @param archive
+     * @param rootInsideArchive
+     * @param files
+     * @param totalSize
+     * @param compressible text-like content compresses well, binaries mostly do not
+     *
+     * @throws IOException
+     */
+    static void createArchive(Path archive, String rootInsideArchive, int files, long totalSize, boolean compressible) throws IOException {
+        Random random = new Random(24);
+        byte[] text = "headless-cr24 benchmark content, compressing well like resources do.\n".getBytes("UTF-8");
+        Files.createDirectories(archive.toAbsolutePath().getParent());
+        try(ZipOutputStream zipStream = new ZipOutputStream(Files.newOutputStream(archive))){
+            zipStream.putNextEntry(new ZipEntry(rootInsideArchive + "/"));
+            zipStream.closeEntry();
+            // a tenth of the files contain most of the bytes, like libraries and resource-bundles do
+            int bigFiles = Math.max(1, files / 10);
+            long bigFileSize = totalSize * 9 / 10 / bigFiles;
+            long smallFileSize = Math.max(1, totalSize / 10 / Math.max(1, files - bigFiles));
+            for( int fileIndex = 0; fileIndex < files; fileIndex++ ){
+                long fileSize = fileIndex < bigFiles ? bigFileSize : smallFileSize;
+                zipStream.putNextEntry(new ZipEntry(rootInsideArchive + "/folder" + (fileIndex % 16) + "/file" + fileIndex + ".bin"));
+                byte[] chunk = new byte[64 * 1024];
+                long written = 0;
+                while( written < fileSize ){
+                    int length = (int) Math.min(chunk.length, fileSize - written);
+                    if( compressible ){
+                        for( int position = 0; position < length; position++ ){
+                            chunk[position] = text[(int) ((written + position) % text.length)];
+                        }
+                    } else {
+                        random.nextBytes(chunk);
+                    }
+                    zipStream.write(chunk, 0, length);
+                    written += length;
+                }
+                zipStream.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Serves the given content at "/archive.zip", supporting range requests.
+     *
+     * @param content
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    static HttpServer serve(byte[] content) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/archive.zip", exchange -> serve(exchange, content));
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "cr24-benchmark-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return server;
+    }
+
+    static String url(HttpServer server) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/archive.zip";
+    }
+
+    private static void serve(HttpExchange exchange, byte[] content) throws IOException {
+        int start = 0;
+        int end = content.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher rangeMatcher = range == null ? null : RANGE_PATTERN.matcher(range);
+        boolean partial = rangeMatcher != null && rangeMatcher.matches();
+        if( partial ){
+            start = Integer.parseInt(rangeMatcher.group(1));
+            if( rangeMatcher.group(2) != null ){
+                end = Math.min(end, Integer.parseInt(rangeMatcher.group(2)));
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        }
+        exchange.getResponseHeaders().add("ETag", "\"" + Arrays.hashCode(content) + "\"");
+        exchange.sendResponseHeaders(partial ? 206 : 200, end - start + 1);
+        try(OutputStream body = exchange.getResponseBody()){
+            body.write(content, start, end - start + 1);
+        }
+    }
+
+}
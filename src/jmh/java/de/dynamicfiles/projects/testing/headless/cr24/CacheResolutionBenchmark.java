@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Warm start: everything is cached already, these are the checks each build has to do before launching anything.
+ *
+ * @author Danny Althoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheResolutionBenchmark {
+
+    private final Utils utils = new Utils();
+
+    private Path workingFolder;
+    private Path archive;
+    private Path extraction;
+    private ArchiveChecksum checksum;
+    private CacheIndex cacheIndex;
+    private Cr24ConfigurationBuilder configurationBuilder;
+
+    @Setup
+    public void createCache() throws IOException {
+        workingFolder = Files.createTempDirectory("cr24-benchmark-cache-");
+        archive = workingFolder.resolve("cache/chrome-linux.zip");
+        extraction = workingFolder.resolve("extracted");
+        BenchmarkFixtures.createArchive(archive, "chrome-linux", 200, 8 * 1024 * 1024, false);
+
+        checksum = new ArchiveChecksum("SHA-256", null);
+        // stores the checksum-file of the fixture, which is a complete zip
+        checksum.isValidCacheEntry(archive, true);
+        utils.unarchiveOnce(archive, "/chrome-linux", extraction);
+        cacheIndex = CacheIndex.forFile(workingFolder.resolve("cache-index.properties"));
+        cacheIndex.recordUse(archive, checksum.toIndexDigest(checksum.readStoredDigest(archive)), extraction);
+
+        configurationBuilder = Cr24DriverBuilder.getDefaultConfiguration().offlineOnly().customize(configuration -> {
+            configuration.useBinariesForLinux();
+            configuration.setUseLocalBrowserInstallation(true);
+            configuration.setWebdriverDownloadCachePathCallback(() -> archive.toString());
+            configuration.setWebdriverExtractionPathCallback(() -> extraction.toString());
+            configuration.setWebdriverArchiveFoldernameOfExecutable(() -> "/chrome-linux");
+            configuration.setWebdriverExecutableFilename(() -> "folder0/file0.bin");
+            configuration.setCacheIndexPathCallback(() -> workingFolder.resolve("cache-index.properties").toString());
+        });
+    }
+
+    @TearDown
+    public void deleteCache() throws IOException {
+        utils.deleteRecursive(workingFolder);
+    }
+
+    @Benchmark
+    public boolean indexLookup() {
+        CacheIndex.Entry indexEntry = cacheIndex.lookup(archive);
+        return indexEntry != null && checksum.matchesIndexDigest(indexEntry.getDigest()) && archive.toFile().length() == indexEntry.getSize();
+    }
+
+    @Benchmark
+    public boolean checksumFileLookup() throws IOException {
+        return checksum.isValidCacheEntry(archive, false);
+    }
+
+    @Benchmark
+    public boolean extractionMarkerLookup() throws IOException {
+        return utils.isExtractionOf(archive, extraction);
+    }
+
+    /**
+     * Complete provisioning as done by every build after the first one inside the same JVM.
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    @Benchmark
+    public Object memoizedProvisioning() throws IOException {
+        return configurationBuilder.prefetch();
+    }
+
+}
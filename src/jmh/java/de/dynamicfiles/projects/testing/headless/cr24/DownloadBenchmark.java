@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Downloading from a local server, this measures the overhead of the downloader itself and not the network.
+ *
+ * @author Danny Althoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({"1", "4"})
+    public int segments;
+
+    @Param({"64"})
+    public int archiveMegabytes;
+
+    private final Utils utils = new Utils();
+
+    private Path workingFolder;
+    private HttpServer server;
+    private Path target;
+    private Path extraction;
+
+    @Setup
+    public void startServer() throws IOException {
+        workingFolder = Files.createTempDirectory("cr24-benchmark-download-");
+        Path archive = workingFolder.resolve("source.zip");
+        BenchmarkFixtures.createArchive(archive, "chrome-linux", 500, archiveMegabytes * 1024L * 1024L, false);
+        server = BenchmarkFixtures.serve(Files.readAllBytes(archive));
+    }
+
+    @Setup(Level.Invocation)
+    public void cleanTarget() throws IOException {
+        Path invocationFolder = workingFolder.resolve("invocation");
+        if( Files.exists(invocationFolder) ){
+            utils.deleteRecursive(invocationFolder);
+        }
+        target = invocationFolder.resolve("cache/chrome-linux.zip");
+        extraction = invocationFolder.resolve("extracted");
+    }
+
+    @TearDown
+    public void stopServer() throws IOException {
+        server.stop(0);
+        utils.deleteRecursive(workingFolder);
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        return utils.download(BenchmarkFixtures.url(server), target.toFile(), 5000, 30000, segments, new ArchiveChecksum("SHA-256", null));
+    }
+
+    /**
+     * Streaming extraction always uses a single connection, so its result does not depend on the amount of segments.
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    @Benchmark
+    public long downloadAndUnarchive() throws IOException {
+        return utils.downloadAndUnarchive(BenchmarkFixtures.url(server), target.toFile(), "/chrome-linux", extraction, 5000, 30000, new ArchiveChecksum("SHA-256", null));
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cold start without downloading: extracting a browser-sized archive, compared with copying an already extracted one.
+ *
+ * @author Danny Althoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExtractionBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(ExtractionBenchmark.class.getName());
+
+    @Param({"true", "false"})
+    public boolean compressible;
+
+    private final Utils utils = new Utils();
+
+    private Path workingFolder;
+    private Path archive;
+    private Path extracted;
+    private Path target;
+
+    @Setup
+    public void createArchive() throws IOException {
+        workingFolder = Files.createTempDirectory("cr24-benchmark-extraction-");
+        archive = workingFolder.resolve("chrome-linux.zip");
+        BenchmarkFixtures.createArchive(archive, "chrome-linux", 2000, 128 * 1024 * 1024, compressible);
+        extracted = workingFolder.resolve("extracted");
+        utils.unarchive(archive, "/chrome-linux", extracted);
+    }
+
+    @Setup(Level.Invocation)
+    public void cleanTarget() throws IOException {
+        target = workingFolder.resolve("target");
+        if( Files.exists(target) ){
+            utils.deleteRecursive(target);
+        }
+    }
+
+    @TearDown
+    public void deleteArchive() throws IOException {
+        utils.deleteRecursive(workingFolder);
+    }
+
+    @Benchmark
+    public Object unarchive() throws IOException {
+        return utils.unarchive(archive, "/chrome-linux", target);
+    }
+
+    @Benchmark
+    public void copyRecursive() throws IOException {
+        utils.copyRecursive(extracted, target, LOGGER);
+    }
+
+}
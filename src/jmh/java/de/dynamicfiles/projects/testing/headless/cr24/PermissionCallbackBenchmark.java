@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The executable callbacks of linux and mac run on every build, even when nothing got extracted.
+ *
+ * @author Danny Althoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PermissionCallbackBenchmark {
+
+    private Path executable;
+    private Cr24Configuration configuration;
+
+    @Setup
+    public void createExecutable() throws IOException {
+        executable = Files.createTempFile("cr24-benchmark-", ".exe");
+        configuration = new Cr24Configuration();
+        configuration.useBinariesForLinux();
+    }
+
+    @TearDown
+    public void deleteExecutable() throws IOException {
+        Files.deleteIfExists(executable);
+    }
+
+    @Benchmark
+    public void webdriverExecutableCallback() {
+        configuration.getWebdriverExecutableCallback().workOnExecutable(executable);
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cold start: everything the builder does before launching chromedriver, starting with an empty cache.
+ *
+ * @author Danny Althoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ProvisioningBenchmark {
+
+    @Param({"false", "true"})
+    public boolean streamingExtraction;
+
+    private final Utils utils = new Utils();
+
+    private Path workingFolder;
+    private HttpServer server;
+    private Cr24ConfigurationBuilder configurationBuilder;
+    private int invocation = 0;
+
+    @Setup
+    public void startServer() throws IOException {
+        workingFolder = Files.createTempDirectory("cr24-benchmark-provisioning-");
+        Path archive = workingFolder.resolve("source.zip");
+        BenchmarkFixtures.createArchive(archive, "chrome-linux", 1000, 64 * 1024 * 1024, true);
+        server = BenchmarkFixtures.serve(Files.readAllBytes(archive));
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyCache() throws IOException {
+        // each invocation uses other paths, otherwise the builder would just reuse the previous result
+        Path cacheFolder = workingFolder.resolve("cache" + invocation++);
+        configurationBuilder = Cr24DriverBuilder.getDefaultConfiguration().online().customize(configuration -> {
+            configuration.useBinariesForLinux();
+            configuration.setUseLocalBrowserInstallation(true);
+            configuration.setUseStreamingExtraction(streamingExtraction);
+            configuration.setWebdriverDownloadUrlCallback(() -> BenchmarkFixtures.url(server));
+            configuration.setWebdriverDownloadCachePathCallback(() -> cacheFolder.resolve("chrome-linux.zip").toString());
+            configuration.setWebdriverExtractionPathCallback(() -> cacheFolder.resolve("extracted").toString());
+            configuration.setWebdriverArchiveFoldernameOfExecutable(() -> "/chrome-linux");
+            configuration.setWebdriverExecutableFilename(() -> "folder0/file0.bin");
+            configuration.setCacheIndexPathCallback(() -> cacheFolder.resolve("cache-index.properties").toString());
+        });
+    }
+
+    @TearDown
+    public void stopServer() throws IOException {
+        server.stop(0);
+        utils.deleteRecursive(workingFolder);
+    }
+
+    @Benchmark
+    public List<Cr24ArtifactReport> coldProvisioning() throws IOException {
+        return configurationBuilder.prefetch();
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.zip.ZipFile;
+
+/**
+ * Handles the checksum-file stored next to each downloaded archive. It contains the digest computed while downloading
+ * together with the size of the archive, which allows validating cached archives without reading them again.
+ *
+ * @author Danny Althoff
+ */
+final class ArchiveChecksum {
+
+    static final String CHECKSUM_SUFFIX = ".checksum";
+
+    private final String algorithm;
+    private final String expectedDigest;
+
+    /**
+     * @param algorithm any algorithm supported by MessageDigest, e.g. "SHA-256"
+     * @param expectedDigest hex-encoded digest the archive has to match, null when any content is accepted
+     */
+    ArchiveChecksum(String algorithm, String expectedDigest) {
+        this.algorithm = algorithm;
+        this.expectedDigest = expectedDigest;
+    }
+
+    static Path getChecksumFile(Path archive) {
+        return archive.resolveSibling(archive.getFileName().toString() + CHECKSUM_SUFFIX);
+    }
+
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    MessageDigest createDigest() throws IOException {
+        try{
+            return MessageDigest.getInstance(algorithm);
+        } catch(NoSuchAlgorithmException ex){
+            throw new IOException("Unsupported checksum algorithm " + algorithm, ex);
+        }
+    }
+
+    /**
+     * Fail when the downloaded content does not match the expected digest.
+     *
+     * @param source
+     * @param actualDigest
+     *
+     * @throws IOException
+     */
+    void verify(String source, String actualDigest) throws IOException {
+        if( expectedDigest != null && !expectedDigest.equalsIgnoreCase(actualDigest) ){
+            throw new IOException(String.format("Checksum mismatch for %s, expected %s %s but got %s", source, algorithm, expectedDigest, actualDigest));
+        }
+    }
+
+    void store(Path archive, String digest, long size) throws IOException {
+        Properties checksumContent = new Properties();
+        checksumContent.setProperty("algorithm", algorithm);
+        checksumContent.setProperty("digest", digest);
+        checksumContent.setProperty("size", String.valueOf(size));
+        Path checksumFile = getChecksumFile(archive);
+        Path temporaryChecksumFile = checksumFile.resolveSibling(checksumFile.getFileName().toString() + ".tmp");
+        try(OutputStream checksumStream = Files.newOutputStream(temporaryChecksumFile)){
+            checksumContent.store(checksumStream, null);
+        }
+        Files.move(temporaryChecksumFile, checksumFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the stored digest of the archive, when it was stored using the same algorithm.
+     *
+     * @param archive
+     *
+     * @return the digest or null
+     */
+    String readStoredDigest(Path archive) {
+        Properties checksumContent = readChecksumFile(archive);
+        if( checksumContent == null || !algorithm.equals(checksumContent.getProperty("algorithm")) ){
+            return null;
+        }
+        return checksumContent.getProperty("digest");
+    }
+
+    /**
+     * Digests inside the cache index carry their algorithm, so changing the algorithm does not produce false matches.
+     *
+     * @param digest
+     *
+     * @return
+     */
+    String toIndexDigest(String digest) {
+        return digest == null ? null : algorithm + ":" + digest;
+    }
+
+    boolean matchesIndexDigest(String indexDigest) {
+        String prefix = algorithm + ":";
+        if( indexDigest == null || !indexDigest.startsWith(prefix) ){
+            return false;
+        }
+        return expectedDigest == null || expectedDigest.equalsIgnoreCase(indexDigest.substring(prefix.length()));
+    }
+
+    /**
+     * Checks the cached archive by comparing its size and the expected digest with the stored checksum-file. Archives
+     * cached before checksum-files existed get digested once and receive their checksum-file, when they can be verified
+     * against the expected digest. Without expected digest such archives might be truncated by some interrupted
+     * download, so they only get accepted when they can not be downloaded again and at least open as complete zip.
+     *
+     * @param archive
+     * @param acceptUnverifiable whether archives without checksum-file and expected digest are accepted when being a
+     * complete zip, e.g. when being offline
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    boolean isValidCacheEntry(Path archive, boolean acceptUnverifiable) throws IOException {
+        if( !Files.isRegularFile(archive) ){
+            return false;
+        }
+        Properties checksumContent = readChecksumFile(archive);
+        if( checksumContent == null || !algorithm.equals(checksumContent.getProperty("algorithm")) ){
+            if( expectedDigest == null && !(acceptUnverifiable && isCompleteZip(archive)) ){
+                return false;
+            }
+            String digest = new Utils().digest(archive, algorithm);
+            if( expectedDigest != null && !expectedDigest.equalsIgnoreCase(digest) ){
+                return false;
+            }
+            store(archive, digest, Files.size(archive));
+            return true;
+        }
+        if( !String.valueOf(Files.size(archive)).equals(checksumContent.getProperty("size")) ){
+            return false;
+        }
+        return expectedDigest == null || expectedDigest.equalsIgnoreCase(checksumContent.getProperty("digest"));
+    }
+
+    private static boolean isCompleteZip(Path archive) {
+        // the central directory is at the end of the archive, truncated ones can not be opened
+        try(ZipFile zipFile = new ZipFile(archive.toFile())){
+            return zipFile.size() > 0;
+        } catch(IOException ex){
+            return false;
+        }
+    }
+
+    private Properties readChecksumFile(Path archive) {
+        Path checksumFile = getChecksumFile(archive);
+        if( !Files.isRegularFile(checksumFile) ){
+            return null;
+        }
+        Properties checksumContent = new Properties();
+        try(InputStream checksumStream = Files.newInputStream(checksumFile)){
+            checksumContent.load(checksumStream);
+            return checksumContent;
+        } catch(IOException ex){
+            return null;
+        }
+    }
+
+}
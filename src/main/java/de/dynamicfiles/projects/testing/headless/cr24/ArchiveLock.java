@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exclusive lock for one cached archive, shared between all processes using the same cache. It makes sure only one
+ * process downloads and extracts some archive while all others wait and reuse the result afterwards.
+ * <p>
+ * The lock is held by the operating system, so it gets released when the owning process dies. The lock file itself
+ * stays and only contains the last owner for diagnostics, an existing lock file therefore never blocks.
+ * <p>
+ * Locks of the operating system belong to the whole process and closing any channel of the file releases all of them
+ * (POSIX), so every lock file is opened only once per JVM. Threads of this JVM are excluded before that channel gets
+ * touched.
+ *
+ * @author Danny Althoff
+ */
+final class ArchiveLock implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(ArchiveLock.class.getName());
+
+    static final String LOCK_SUFFIX = ".lock";
+
+    private static final long MINIMUM_POLL_INTERVAL = 50;
+    private static final long MAXIMUM_POLL_INTERVAL = 1000;
+
+    private static final class SharedLockFile {
+
+        private final Path lockFile;
+        // held by the thread owning the lock of the operating system, only that thread uses the channel
+        private final Semaphore owner = new Semaphore(1, true);
+        // guarded by LOCK_FILES
+        private int users = 0;
+        private FileChannel channel;
+
+        SharedLockFile(Path lockFile) {
+            this.lockFile = lockFile;
+        }
+
+        FileChannel getChannel() throws IOException {
+            if( channel == null ){
+                Files.createDirectories(lockFile.getParent());
+                channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+    }
+
+    private static final Map<Path, SharedLockFile> LOCK_FILES = new HashMap<>();
+
+    private final SharedLockFile sharedLockFile;
+    private final FileLock lock;
+
+    private ArchiveLock(SharedLockFile sharedLockFile, FileLock lock) {
+        this.sharedLockFile = sharedLockFile;
+        this.lock = lock;
+    }
+
+    static Path getLockFile(Path archive) {
+        return archive.resolveSibling(archive.getFileName().toString() + LOCK_SUFFIX);
+    }
+
+    /**
+     * Waits until the lock of the archive is available.
+     *
+     * @param archive
+     * @param timeout maximum milliseconds to wait
+     *
+     * @return
+     *
+     * @throws IOException when the lock did not get available in time
+     */
+    static ArchiveLock acquire(Path archive, long timeout) throws IOException {
+        SharedLockFile sharedLockFile = use(archive);
+        Path lockFile = sharedLockFile.lockFile;
+        boolean owning = false;
+        try{
+            long deadline = System.currentTimeMillis() + timeout;
+            if( !sharedLockFile.owner.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS) ){
+                throw new IOException("Timed out after " + timeout + "ms waiting for " + lockFile + ", held by another thread");
+            }
+            owning = true;
+            long pollInterval = MINIMUM_POLL_INTERVAL;
+            while( true ){
+                ArchiveLock archiveLock = tryLock(sharedLockFile);
+                if( archiveLock != null ){
+                    return archiveLock;
+                }
+                if( System.currentTimeMillis() >= deadline ){
+                    throw new IOException("Timed out after " + timeout + "ms waiting for " + lockFile + ", held by another process");
+                }
+                Thread.sleep(Math.min(pollInterval, Math.max(1, deadline - System.currentTimeMillis())));
+                pollInterval = Math.min(MAXIMUM_POLL_INTERVAL, pollInterval * 2);
+            }
+        } catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            release(sharedLockFile, owning);
+            throw new InterruptedIOException("Interrupted while waiting for " + lockFile);
+        } catch(IOException | RuntimeException ex){
+            release(sharedLockFile, owning);
+            throw ex;
+        }
+    }
+
+    /**
+     * Acquires the lock of the archive only when nobody else holds it right now.
+     *
+     * @param archive
+     *
+     * @return null when the lock is held by some other process or thread
+     *
+     * @throws IOException
+     */
+    static ArchiveLock tryAcquire(Path archive) throws IOException {
+        SharedLockFile sharedLockFile = use(archive);
+        boolean owning = false;
+        try{
+            owning = sharedLockFile.owner.tryAcquire();
+            ArchiveLock archiveLock = owning ? tryLock(sharedLockFile) : null;
+            if( archiveLock == null ){
+                release(sharedLockFile, owning);
+            }
+            return archiveLock;
+        } catch(IOException | RuntimeException ex){
+            release(sharedLockFile, owning);
+            throw ex;
+        }
+    }
+
+    /**
+     * Has to be called by the thread owning the shared lock file.
+     *
+     * @param sharedLockFile
+     *
+     * @return null when some other process holds the lock
+     *
+     * @throws IOException
+     */
+    private static ArchiveLock tryLock(SharedLockFile sharedLockFile) throws IOException {
+        FileChannel channel = sharedLockFile.getChannel();
+        FileLock lock;
+        try{
+            lock = channel.tryLock();
+        } catch(IOException ex){
+            // some network filesystems do not support locking at all, working without is better than failing
+            LOGGER.log(Level.WARNING, "Could not lock " + sharedLockFile.lockFile + ", continuing without cross-process locking", ex);
+            return new ArchiveLock(sharedLockFile, null);
+        }
+        if( lock == null ){
+            return null;
+        }
+        writeOwner(channel);
+        return new ArchiveLock(sharedLockFile, lock);
+    }
+
+    private static SharedLockFile use(Path archive) {
+        Path lockFile = getLockFile(archive.toAbsolutePath().normalize());
+        synchronized(LOCK_FILES){
+            SharedLockFile sharedLockFile = LOCK_FILES.computeIfAbsent(lockFile, SharedLockFile::new);
+            sharedLockFile.users++;
+            return sharedLockFile;
+        }
+    }
+
+    /**
+     * Closes the channel after its last user, no lock of this JVM can exist on that file anymore then.
+     *
+     * @param sharedLockFile
+     * @param owning whether the calling thread owns the shared lock file
+     *
+     * @throws IOException
+     */
+    private static void release(SharedLockFile sharedLockFile, boolean owning) throws IOException {
+        if( owning ){
+            sharedLockFile.owner.release();
+        }
+        synchronized(LOCK_FILES){
+            sharedLockFile.users--;
+            if( sharedLockFile.users > 0 ){
+                return;
+            }
+            LOCK_FILES.remove(sharedLockFile.lockFile);
+            if( sharedLockFile.channel != null ){
+                sharedLockFile.channel.close();
+            }
+        }
+    }
+
+    private static void writeOwner(FileChannel channel) throws IOException {
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(ManagementFactory.getRuntimeMXBean().getName().getBytes(StandardCharsets.UTF_8)), 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try{
+            if( lock != null ){
+                lock.release();
+            }
+        } finally{
+            release(sharedLockFile, true);
+        }
+    }
+
+}
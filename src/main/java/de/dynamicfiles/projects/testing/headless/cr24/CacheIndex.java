@@ -0,0 +1,358 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Small manifest of all cached archives and their extractions, containing size, last usage and amount of hits. It is
+ * used for finding cached archives without probing the filesystem and for evicting the least recently used archives
+ * when the cache grows beyond its configured size.
+ * <p>
+ * The index file is shared by all processes using the same cache, every change happens while holding its lock and
+ * starts with reading the latest content.
+ *
+ * @author Danny Althoff
+ */
+final class CacheIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(CacheIndex.class.getName());
+
+    // entries used recently might belong to running browsers, these never get evicted
+    static final long EVICTION_GRACE_PERIOD = TimeUnit.MINUTES.toMillis(15);
+    // builds reusing provisioned executables refresh the last usage at most this often
+    static final long TOUCH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private static final long INDEX_LOCK_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private static final String FIELD_SEPARATOR = "\t";
+
+    private static final Map<Path, CacheIndex> INDEXES = new HashMap<>();
+
+    static final class Entry {
+
+        private final String archive;
+        private long size = -1;
+        private String digest = "";
+        private String extraction = "";
+        private long extractionSize = 0;
+        private long lastUsed = 0;
+        private long hits = 0;
+
+        Entry(String archive) {
+            this.archive = archive;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getDigest() {
+            return digest;
+        }
+
+        long getLastUsed() {
+            return lastUsed;
+        }
+
+        long getHits() {
+            return hits;
+        }
+
+        long getTotalSize() {
+            return Math.max(0, size) + extractionSize;
+        }
+    }
+
+    @FunctionalInterface
+    private interface IndexChange<T> {
+
+        T apply() throws IOException;
+    }
+
+    private final Path indexFile;
+    private final Map<String, Entry> entries = new HashMap<>();
+    // file key, modification time and size of the loaded index file
+    private String loadedVersion = null;
+
+    private CacheIndex(Path indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    static CacheIndex forFile(Path indexFile) {
+        synchronized(INDEXES){
+            return INDEXES.computeIfAbsent(indexFile.toAbsolutePath().normalize(), CacheIndex::new);
+        }
+    }
+
+    synchronized Entry lookup(Path archive) {
+        reloadIfChanged();
+        return entries.get(toKey(archive));
+    }
+
+    /**
+     * Records the usage of some archive, all changes get written into the index file.
+     *
+     * @param archive
+     * @param digest known digest of the archive, null keeps the already known one
+     * @param extractionFolder where the archive got extracted to, null when it is not extracted permanently
+     *
+     * @throws IOException
+     */
+    synchronized void recordUse(Path archive, String digest, Path extractionFolder) throws IOException {
+        changeIndex(() -> {
+            Entry entry = entries.computeIfAbsent(toKey(archive), Entry::new);
+
+            long size = Files.size(archive);
+            if( entry.size != size || (digest != null && !digest.equals(entry.digest)) ){
+                // got replaced, so the extraction has to be measured again
+                entry.size = size;
+                entry.digest = digest == null ? "" : digest;
+                entry.extractionSize = 0;
+                entry.extraction = "";
+            }
+            if( extractionFolder != null && (entry.extraction.isEmpty() || !entry.extraction.equals(toKey(extractionFolder))) ){
+                entry.extraction = toKey(extractionFolder);
+                entry.extractionSize = folderSize(extractionFolder);
+            }
+            entry.lastUsed = System.currentTimeMillis();
+            entry.hits++;
+            save();
+            return null;
+        });
+    }
+
+    /**
+     * Refreshes the last usage of some archive reused without provisioning it again, so other processes do not evict it
+     * while it is still in use. Failures are only logged, as this is not required for building.
+     *
+     * @param archive
+     */
+    synchronized void touch(Path archive) {
+        Entry knownEntry = entries.get(toKey(archive));
+        if( knownEntry != null && knownEntry.lastUsed > System.currentTimeMillis() - TOUCH_INTERVAL ){
+            return;
+        }
+        try{
+            changeIndex(() -> {
+                Entry entry = entries.get(toKey(archive));
+                // evicted (or never indexed) ones get recorded again by the next provisioning
+                if( entry != null ){
+                    entry.lastUsed = System.currentTimeMillis();
+                    save();
+                }
+                return null;
+            });
+        } catch(IOException ex){
+            LOGGER.log(Level.FINE, "Could not refresh last usage of " + archive, ex);
+        }
+    }
+
+    synchronized long getTotalSize() {
+        reloadIfChanged();
+        return sumTotalSize();
+    }
+
+    /**
+     * Deletes the least recently used archives (including their extraction) until the cache fits into the given size.
+     * Entries used within the grace period, locked by some provisioning or having their extraction executed by some
+     * process are kept, even if this means exceeding the size.
+     *
+     * @param maximumSize
+     *
+     * @return amount of evicted archives
+     *
+     * @throws IOException
+     */
+    synchronized int evict(long maximumSize) throws IOException {
+        reloadIfChanged();
+        if( sumTotalSize() <= maximumSize ){
+            return 0;
+        }
+        return changeIndex(() -> evictLocked(maximumSize));
+    }
+
+    private int evictLocked(long maximumSize) throws IOException {
+        long totalSize = sumTotalSize();
+        if( totalSize <= maximumSize ){
+            return 0;
+        }
+
+        long evictableBefore = System.currentTimeMillis() - EVICTION_GRACE_PERIOD;
+        List<Entry> leastRecentlyUsed = new ArrayList<>(entries.values());
+        leastRecentlyUsed.sort(Comparator.comparingLong(Entry::getLastUsed));
+
+        int evicted = 0;
+        Utils utils = new Utils();
+        ProcessTable processTable = null;
+        for( Entry entry : leastRecentlyUsed ){
+            if( totalSize <= maximumSize || entry.lastUsed > evictableBefore ){
+                break;
+            }
+            Path archive = Paths.get(entry.archive);
+            Path extraction = entry.extraction.isEmpty() ? null : Paths.get(entry.extraction);
+            if( extraction != null && Files.exists(extraction) ){
+                if( processTable == null ){
+                    processTable = ProcessTable.read();
+                }
+                // browsers might run much longer than the grace period without any new build refreshing the last usage
+                if( processTable.isExecutingFrom(extraction) ){
+                    LOGGER.log(Level.FINE, "Not evicting {0}, its extraction is still in use", entry.archive);
+                    continue;
+                }
+            }
+            try(ArchiveLock archiveLock = ArchiveLock.tryAcquire(archive)){
+                if( archiveLock == null ){
+                    LOGGER.log(Level.FINE, "Not evicting {0}, it is getting provisioned right now", entry.archive);
+                    continue;
+                }
+                Files.deleteIfExists(archive);
+                Files.deleteIfExists(ArchiveChecksum.getChecksumFile(archive));
+                if( extraction != null && Files.exists(extraction) ){
+                    utils.deleteRecursive(extraction);
+                }
+            } catch(IOException ex){
+                LOGGER.log(Level.WARNING, "Could not evict cached archive " + entry.archive, ex);
+                continue;
+            }
+            entries.remove(entry.archive);
+            totalSize -= entry.getTotalSize();
+            evicted++;
+        }
+        if( evicted > 0 ){
+            save();
+        }
+        return evicted;
+    }
+
+    private long sumTotalSize() {
+        return entries.values().stream().mapToLong(Entry::getTotalSize).sum();
+    }
+
+    /**
+     * Runs the change while holding the lock of the index file, starting with the latest content of it.
+     */
+    // the lock only has to be held, it is never referenced
+    @SuppressWarnings("try")
+    private <T> T changeIndex(IndexChange<T> change) throws IOException {
+        try(ArchiveLock ignored = ArchiveLock.acquire(indexFile, INDEX_LOCK_TIMEOUT)){
+            reload();
+            return change.apply();
+        }
+    }
+
+    private String toKey(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    private long folderSize(Path folder) throws IOException {
+        if( !Files.isDirectory(folder) ){
+            return 0;
+        }
+        try(Stream<Path> files = Files.walk(folder)){
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    /**
+     * Other processes might have changed the index file. Every save replaces the file, so its file key changes even when
+     * it got saved within the same millisecond.
+     */
+    private void reloadIfChanged() {
+        try{
+            if( Files.isRegularFile(indexFile) && !getVersion().equals(loadedVersion) ){
+                reload();
+            }
+        } catch(IOException ex){
+            LOGGER.log(Level.FINE, "Could not read cache index " + indexFile, ex);
+        }
+    }
+
+    private String getVersion() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(indexFile, BasicFileAttributes.class);
+        return attributes.fileKey() + "|" + attributes.lastModifiedTime().toMillis() + "|" + attributes.size();
+    }
+
+    private void reload() {
+        try{
+            if( !Files.isRegularFile(indexFile) ){
+                return;
+            }
+            String version = getVersion();
+            Properties indexContent = new Properties();
+            try(InputStream indexStream = Files.newInputStream(indexFile)){
+                indexContent.load(indexStream);
+            }
+            entries.clear();
+            for( String archive : indexContent.stringPropertyNames() ){
+                String[] fields = indexContent.getProperty(archive).split(FIELD_SEPARATOR, -1);
+                if( fields.length != 6 ){
+                    continue;
+                }
+                Entry entry = new Entry(archive);
+                entry.size = Long.parseLong(fields[0]);
+                entry.digest = fields[1];
+                entry.extraction = fields[2];
+                entry.extractionSize = Long.parseLong(fields[3]);
+                entry.lastUsed = Long.parseLong(fields[4]);
+                entry.hits = Long.parseLong(fields[5]);
+                entries.put(archive, entry);
+            }
+            loadedVersion = version;
+        } catch(IOException | RuntimeException ex){
+            // a broken index only costs some filesystem probes, it gets rewritten with the next change
+            LOGGER.log(Level.FINE, "Could not read cache index " + indexFile, ex);
+        }
+    }
+
+    private void save() throws IOException {
+        Properties indexContent = new Properties();
+        for( Entry entry : entries.values() ){
+            indexContent.setProperty(entry.archive, String.join(FIELD_SEPARATOR,
+                    String.valueOf(entry.size),
+                    entry.digest,
+                    entry.extraction,
+                    String.valueOf(entry.extractionSize),
+                    String.valueOf(entry.lastUsed),
+                    String.valueOf(entry.hits)));
+        }
+        Files.createDirectories(indexFile.toAbsolutePath().getParent());
+        Path temporaryIndexFile = Files.createTempFile(indexFile.toAbsolutePath().getParent(), indexFile.getFileName().toString(), ".tmp");
+        try(OutputStream indexStream = Files.newOutputStream(temporaryIndexFile)){
+            indexContent.store(indexStream, null);
+        }
+        Files.move(temporaryIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        loadedVersion = getVersion();
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how some webdriver or browser archive got provisioned by Cr24ConfigurationBuilder::prefetch.
+ *
+ * @author Danny Althoff
+ */
+public final class Cr24ArtifactReport {
+
+    private final String artifactName;
+    private final String description;
+    private final Path executable;
+    private final long downloadedBytes;
+    private final long archiveSize;
+    private final long durationNanos;
+    private final boolean memoryBacked;
+
+    Cr24ArtifactReport(String artifactName, String description, Path executable, long downloadedBytes, long archiveSize, long durationNanos, boolean memoryBacked) {
+        this.artifactName = artifactName;
+        this.description = description;
+        this.executable = executable;
+        this.downloadedBytes = downloadedBytes;
+        this.archiveSize = archiveSize;
+        this.durationNanos = durationNanos;
+        this.memoryBacked = memoryBacked;
+    }
+
+    /**
+     * @return "webdriver" or "browser"
+     */
+    public String getArtifactName() {
+        return artifactName;
+    }
+
+    /**
+     * @return operating system, bitness and version of the artifact
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    public Path getExecutable() {
+        return executable;
+    }
+
+    /**
+     * @return transferred bytes, 0 when the archive was cached already
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    public long getArchiveSize() {
+        return archiveSize;
+    }
+
+    public boolean isDownloaded() {
+        return downloadedBytes > 0;
+    }
+
+    /**
+     * @return true when the executable got extracted onto the memory-backed filesystem, false when it is on disk
+     */
+    public boolean isMemoryBacked() {
+        return memoryBacked;
+    }
+
+    public long getDuration(TimeUnit unit) {
+        return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s: %s, %d of %d bytes downloaded in %d ms -> %s (%s)",
+                artifactName, description, isDownloaded() ? "downloaded" : "cached", downloadedBytes, archiveSize, getDuration(TimeUnit.MILLISECONDS), executable, memoryBacked ? "memory" : "disk");
+    }
+
+}
@@ -19,8 +19,17 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import org.openqa.selenium.chrome.ChromeDriver;
 import org.openqa.selenium.chrome.ChromeOptions;
 
 /**
@@ -43,12 +52,62 @@ public final class Cr24Configuration {
         void workOnExecutable(Path executable);
     }
 
+    @FunctionalInterface
+    public interface ProfilePreparationCallback {
+
+        /**
+         * Gets the session running on the new profile template, everything done here ends up in the profile of every
+         * session cloned from it.
+         *
+         * @param driver
+         */
+        void prepareProfile(ChromeDriver driver);
+    }
+
+    @FunctionalInterface
+    public interface ProvisioningListener {
+
+        /**
+         * Gets called from the threads doing the work, so implementations have to be thread-safe and should return fast.
+         *
+         * @param event
+         */
+        void onEvent(Cr24ProvisioningEvent event);
+    }
+
+    // downloading and extracting is mostly waiting for I/O, so a cached pool fits better than the common fork-join-pool
+    private static final Executor DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cr24-provisioning");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private boolean offline = false;
     private boolean respectExistingSystemProperty = true;
     private boolean useLocalCache = true;
+    private boolean usePersistentExtraction = true;
+    private boolean shareWebdriverService = false;
+    private boolean useStreamingExtraction = false;
+    // every session gets a clone of some already initialized profile instead of an empty one
+    private boolean useProfileTemplate = false;
+    // extracted executables and session profiles are placed into memory while it has enough space left
+    private boolean useMemoryBackedStorage = false;
+    // temporary folders and processes of crashed JVMs get removed by the next build
+    private boolean cleanUpPreviousRuns = true;
+    // amount of sessions launched ahead of demand, 0 launches each session when building it
+    private int standbySessions = 0;
 
     private int connectionTimeout = 15 * 1000;
     private int readTimeout = 30 * 1000;
+    private int downloadSegments = 4;
+    // a download not finished after this many milliseconds gets raced by the next mirror, 0 only switches on failures
+    private int downloadHedgeDelay = 5 * 1000;
+    // other processes might be downloading the same archive, in that case wait for them instead of downloading again
+    private int cacheLockTimeout = 10 * 60 * 1000;
+
+    // 0 disables the watchdog
+    private int hangTimeout = 0;
+    private int heartbeatInterval = 1000;
 
     private boolean use64bit = true;
 
@@ -75,6 +134,30 @@ public final class Cr24Configuration {
     private StringValueCallback webdriverDownloadCachePathCallback = () -> System.getProperty("user.home") + "/.testing/webdriver/chromedriver/" + os.getValue() + "/" + webdriverVersionCallback.getValue() + "/" + (use64bit ? "64bit" : "32bit") + "/" + webdriverDownloadUrlFilenameCallback.getValue();
     private StringValueCallback webbrowserDownloadCachePathCallback = () -> System.getProperty("user.home") + "/.testing/browser/chromium/" + os.getValue() + "/" + webbrowserSnapshotVersionCallback.getValue() + "/" + (use64bit ? "64bit" : "32bit") + "/" + webbrowserDownloadUrlFilenameCallback.getValue();
 
+    // extracted archives are kept next to the download cache, so every later build can reuse them without unpacking again
+    private StringValueCallback webdriverExtractionPathCallback = () -> System.getProperty("user.home") + "/.testing/extracted/webdriver/chromedriver/" + os.getValue() + "/" + webdriverVersionCallback.getValue() + "/" + (use64bit ? "64bit" : "32bit");
+    private StringValueCallback webbrowserExtractionPathCallback = () -> System.getProperty("user.home") + "/.testing/extracted/browser/chromium/" + os.getValue() + "/" + webbrowserSnapshotVersionCallback.getValue() + "/" + (use64bit ? "64bit" : "32bit");
+
+    // expected checksums of the downloaded archives, null accepts any content
+    private String checksumAlgorithm = "SHA-256";
+    private StringValueCallback webdriverChecksumCallback = () -> null;
+    private StringValueCallback webbrowserChecksumCallback = () -> null;
+
+    // index of all cached archives, used for lookups and for evicting least recently used archives (0 means no limit)
+    private StringValueCallback cacheIndexPathCallback = () -> System.getProperty("user.home") + "/.testing/cache-index.properties";
+    private long cacheSizeLimit = 0;
+
+    // profile formats change between browser versions, so each version gets its own template
+    private StringValueCallback profileTemplatePathCallback = () -> System.getProperty("user.home") + "/.testing/profile-template/chromium/" + os.getValue() + "/" + webbrowserSnapshotVersionCallback.getValue() + "/" + (use64bit ? "64bit" : "32bit");
+    // the browser needs shared memory from the same filesystem, so some of it always has to stay free
+    private StringValueCallback memoryBackedStoragePathCallback = () -> "/dev/shm";
+    private long memoryBackedStorageReserve = 256L * 1024 * 1024;
+
+    private ProfilePreparationCallback profilePreparationCallback = (ChromeDriver driver) -> driver.get("about:blank");
+
+    // alternative base URLs (e.g. an internal artifact proxy) per upstream base URL, the fastest one gets used
+    private Map<String, List<String>> downloadMirrors = new LinkedHashMap<>();
+
     private ExecutableCallback webdriverExecutableCallback = (Path file) -> {
     };
     private ExecutableCallback webbrowserExecutableCallback = (Path file) -> {
@@ -82,6 +165,10 @@ public final class Cr24Configuration {
 
     private ChromeOptions chromeOptions = new ChromeOptions();
 
+    private List<ProvisioningListener> provisioningListeners = new CopyOnWriteArrayList<>();
+
+    private Executor executor = DEFAULT_EXECUTOR;
+
     public Cr24Configuration() {
         chromeOptions.setHeadless(true);
         if( System.getProperty("os.name").toLowerCase().startsWith("linux") ){
@@ -124,6 +211,142 @@ public final class Cr24Configuration {
         return useLocalCache;
     }
 
+    public boolean isUsePersistentExtraction() {
+        return usePersistentExtraction;
+    }
+
+    /**
+     * When enabled (default), archives get extracted only once into the folder provided by the extraction-path-callbacks and
+     * are reused by every following build. When disabled, every build extracts into its own temporary folder.
+     *
+     * @param usePersistentExtraction
+     */
+    public void setUsePersistentExtraction(boolean usePersistentExtraction) {
+        this.usePersistentExtraction = usePersistentExtraction;
+    }
+
+    public boolean isUseStreamingExtraction() {
+        return useStreamingExtraction;
+    }
+
+    /**
+     * When enabled, downloaded archives get extracted while they are still downloading, the archive is written into the
+     * download cache at the same time. This uses only one connection per archive instead of multiple download segments.
+     *
+     * @param useStreamingExtraction
+     */
+    public void setUseStreamingExtraction(boolean useStreamingExtraction) {
+        this.useStreamingExtraction = useStreamingExtraction;
+    }
+
+    public boolean isUseProfileTemplate() {
+        return useProfileTemplate;
+    }
+
+    /**
+     * When enabled, the first build creates a profile template by launching the browser once, every session then gets
+     * its own copy of it. This skips the first-run initialization of empty profiles. Has no effect when the ChromeOptions
+     * already contain some "--user-data-dir".
+     *
+     * @param useProfileTemplate
+     */
+    public void setUseProfileTemplate(boolean useProfileTemplate) {
+        this.useProfileTemplate = useProfileTemplate;
+    }
+
+    public StringValueCallback getProfileTemplatePathCallback() {
+        return profileTemplatePathCallback;
+    }
+
+    public void setProfileTemplatePathCallback(StringValueCallback profileTemplatePathCallback) {
+        this.profileTemplatePathCallback = profileTemplatePathCallback;
+    }
+
+    public ProfilePreparationCallback getProfilePreparationCallback() {
+        return profilePreparationCallback;
+    }
+
+    /**
+     * Set what to do with the session creating the profile template, e.g. visiting some pages for filling the disk cache.
+     * The default just opens "about:blank". Remove the template folder after changing this.
+     *
+     * @param profilePreparationCallback
+     */
+    public void setProfilePreparationCallback(ProfilePreparationCallback profilePreparationCallback) {
+        this.profilePreparationCallback = profilePreparationCallback;
+    }
+
+    public boolean isUseMemoryBackedStorage() {
+        return useMemoryBackedStorage;
+    }
+
+    /**
+     * When enabled, extracted executables and the profiles of all sessions are placed on a memory-backed filesystem (see
+     * setMemoryBackedStoragePathCallback) instead of the disk, as long as enough space is left there. Otherwise the disk is
+     * used like before, executables also stay on disk when the filesystem does not allow executing them ("noexec").
+     * Extracted executables get reported via Cr24ArtifactReport::isMemoryBacked.
+     *
+     * @param useMemoryBackedStorage
+     */
+    public void setUseMemoryBackedStorage(boolean useMemoryBackedStorage) {
+        this.useMemoryBackedStorage = useMemoryBackedStorage;
+    }
+
+    public StringValueCallback getMemoryBackedStoragePathCallback() {
+        return memoryBackedStoragePathCallback;
+    }
+
+    /**
+     * Set the mount point of the memory-backed filesystem, default is "/dev/shm".
+     *
+     * @param memoryBackedStoragePathCallback
+     */
+    public void setMemoryBackedStoragePathCallback(StringValueCallback memoryBackedStoragePathCallback) {
+        this.memoryBackedStoragePathCallback = memoryBackedStoragePathCallback;
+    }
+
+    public long getMemoryBackedStorageReserve() {
+        return memoryBackedStorageReserve;
+    }
+
+    /**
+     * Set the amount of bytes which always have to stay free on the memory-backed filesystem, default is 256 MiB.
+     *
+     * @param memoryBackedStorageReserve
+     */
+    public void setMemoryBackedStorageReserve(long memoryBackedStorageReserve) {
+        this.memoryBackedStorageReserve = memoryBackedStorageReserve;
+    }
+
+    public boolean isCleanUpPreviousRuns() {
+        return cleanUpPreviousRuns;
+    }
+
+    /**
+     * When enabled (default), the first build of this JVM removes temporary extractions and kills chromedriver and
+     * browser processes left behind by JVMs which are not running anymore. Temporary extractions and processes of this
+     * JVM are always removed when it exits.
+     *
+     * @param cleanUpPreviousRuns
+     */
+    public void setCleanUpPreviousRuns(boolean cleanUpPreviousRuns) {
+        this.cleanUpPreviousRuns = cleanUpPreviousRuns;
+    }
+
+    public boolean isShareWebdriverService() {
+        return shareWebdriverService;
+    }
+
+    /**
+     * When enabled, all sessions using the same webdriver executable are served by one chromedriver process, which gets
+     * stopped after the last of these sessions was quit. When disabled (default), every session starts its own process.
+     *
+     * @param shareWebdriverService
+     */
+    public void setShareWebdriverService(boolean shareWebdriverService) {
+        this.shareWebdriverService = shareWebdriverService;
+    }
+
     public int getConnectionTimeout() {
         return connectionTimeout;
     }
@@ -132,6 +355,89 @@ public final class Cr24Configuration {
         return readTimeout;
     }
 
+    public int getDownloadSegments() {
+        return downloadSegments;
+    }
+
+    /**
+     * Maximum amount of parallel HTTP range requests per downloaded archive, 1 disables segmented downloading.
+     *
+     * @param downloadSegments
+     */
+    public void setDownloadSegments(int downloadSegments) {
+        this.downloadSegments = downloadSegments;
+    }
+
+    public int getDownloadHedgeDelay() {
+        return downloadHedgeDelay;
+    }
+
+    /**
+     * Milliseconds to wait for a download before racing the next mirror against it, the first complete download wins.
+     * Use 0 for switching mirrors on failures only. Has no effect without download mirrors.
+     *
+     * @param downloadHedgeDelay
+     */
+    public void setDownloadHedgeDelay(int downloadHedgeDelay) {
+        this.downloadHedgeDelay = downloadHedgeDelay;
+    }
+
+    public int getStandbySessions() {
+        return standbySessions;
+    }
+
+    /**
+     * Amount of sessions to keep launched in the background, building a ChromeDriver then hands out one of these and
+     * launches its replacement. Use 0 to disable.
+     *
+     * @param standbySessions
+     */
+    public void setStandbySessions(int standbySessions) {
+        this.standbySessions = standbySessions;
+    }
+
+    public int getHangTimeout() {
+        return hangTimeout;
+    }
+
+    /**
+     * Milliseconds after which a session counts as hanging, when some webdriver command is running that long or the
+     * heartbeats of chromedriver and the browser did not get answered that long. The processes of hanging sessions get
+     * killed, which makes the blocked command fail instead of waiting for the (much longer) timeouts of Selenium. Use 0 to
+     * disable (default).
+     *
+     * @param hangTimeout
+     */
+    public void setHangTimeout(int hangTimeout) {
+        this.hangTimeout = hangTimeout;
+    }
+
+    public int getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Milliseconds between two checks of every session, only used when the hang timeout is set.
+     *
+     * @param heartbeatInterval
+     */
+    public void setHeartbeatInterval(int heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public int getCacheLockTimeout() {
+        return cacheLockTimeout;
+    }
+
+    /**
+     * Maximum milliseconds to wait for other processes downloading or extracting the same archive.
+     *
+     * @param cacheLockTimeout
+     */
+    public void setCacheLockTimeout(int cacheLockTimeout) {
+        this.cacheLockTimeout = cacheLockTimeout;
+    }
+
     public StringValueCallback getWebbrowserSnapshotVersionCallback() {
         return webbrowserSnapshotVersionCallback;
     }
@@ -172,6 +478,34 @@ public final class Cr24Configuration {
         return webbrowserDownloadCachePathCallback;
     }
 
+    public StringValueCallback getWebdriverExtractionPathCallback() {
+        return webdriverExtractionPathCallback;
+    }
+
+    public StringValueCallback getWebbrowserExtractionPathCallback() {
+        return webbrowserExtractionPathCallback;
+    }
+
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    public StringValueCallback getWebdriverChecksumCallback() {
+        return webdriverChecksumCallback;
+    }
+
+    public StringValueCallback getWebbrowserChecksumCallback() {
+        return webbrowserChecksumCallback;
+    }
+
+    public StringValueCallback getCacheIndexPathCallback() {
+        return cacheIndexPathCallback;
+    }
+
+    public long getCacheSizeLimit() {
+        return cacheSizeLimit;
+    }
+
     public ChromeOptions getChromeOptions() {
         return chromeOptions;
     }
@@ -378,10 +712,111 @@ public final class Cr24Configuration {
         this.webbrowserDownloadCachePathCallback = webbrowserDownloadCachePathCallback;
     }
 
+    public void setWebdriverExtractionPathCallback(StringValueCallback webdriverExtractionPathCallback) {
+        this.webdriverExtractionPathCallback = webdriverExtractionPathCallback;
+    }
+
+    public void setWebbrowserExtractionPathCallback(StringValueCallback webbrowserExtractionPathCallback) {
+        this.webbrowserExtractionPathCallback = webbrowserExtractionPathCallback;
+    }
+
+    /**
+     * Set the algorithm used for the checksums computed while downloading, any algorithm supported by MessageDigest can
+     * be used.
+     *
+     * @param checksumAlgorithm
+     */
+    public void setChecksumAlgorithm(String checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    /**
+     * Set the expected checksum (hex-encoded) of the webdriver archive, downloads and cached archives not matching it are
+     * rejected.
+     *
+     * @param webdriverChecksumCallback
+     */
+    public void setWebdriverChecksumCallback(StringValueCallback webdriverChecksumCallback) {
+        this.webdriverChecksumCallback = webdriverChecksumCallback;
+    }
+
+    /**
+     * Set the expected checksum (hex-encoded) of the browser archive, downloads and cached archives not matching it are
+     * rejected.
+     *
+     * @param webbrowserChecksumCallback
+     */
+    public void setWebbrowserChecksumCallback(StringValueCallback webbrowserChecksumCallback) {
+        this.webbrowserChecksumCallback = webbrowserChecksumCallback;
+    }
+
+    public void setCacheIndexPathCallback(StringValueCallback cacheIndexPathCallback) {
+        this.cacheIndexPathCallback = cacheIndexPathCallback;
+    }
+
+    /**
+     * Set the maximum amount of bytes used by cached archives and their extractions, least recently used archives get
+     * evicted after each build. Use 0 for no limit.
+     *
+     * @param cacheSizeLimit
+     */
+    public void setCacheSizeLimit(long cacheSizeLimit) {
+        this.cacheSizeLimit = cacheSizeLimit;
+    }
+
+    public Map<String, List<String>> getDownloadMirrors() {
+        return Collections.unmodifiableMap(downloadMirrors);
+    }
+
+    /**
+     * Register some mirror for all downloads starting with the upstream base URL, the rest of the URL gets appended to
+     * the mirror base URL. The upstream stays available too, each download uses the fastest of them.
+     *
+     * @param upstreamBaseUrl e.g. "https://chromedriver.storage.googleapis.com/"
+     * @param mirrorBaseUrl e.g. "https://artifacts.example.com/chromedriver/"
+     */
+    public void addDownloadMirror(String upstreamBaseUrl, String mirrorBaseUrl) {
+        downloadMirrors.computeIfAbsent(upstreamBaseUrl, upstream -> new ArrayList<>()).add(mirrorBaseUrl);
+    }
+
+    public void removeDownloadMirrors(String upstreamBaseUrl) {
+        downloadMirrors.remove(upstreamBaseUrl);
+    }
+
     public void setChromeOptions(ChromeOptions chromeOptions) {
         this.chromeOptions = chromeOptions;
     }
 
+    public List<ProvisioningListener> getProvisioningListeners() {
+        return Collections.unmodifiableList(provisioningListeners);
+    }
+
+    /**
+     * Register some listener receiving the timings of all phases while building, e.g. Cr24ProvisioningStatistics.
+     *
+     * @param provisioningListener
+     */
+    public void addProvisioningListener(ProvisioningListener provisioningListener) {
+        provisioningListeners.add(provisioningListener);
+    }
+
+    public void removeProvisioningListener(ProvisioningListener provisioningListener) {
+        provisioningListeners.remove(provisioningListener);
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Set the executor used for downloading and extracting webdriver and browser in parallel.
+     *
+     * @param executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
     public String getOS() {
         return os.getValue();
     }
@@ -400,9 +835,21 @@ public final class Cr24Configuration {
         cr24Configuration.offline = this.offline;
         cr24Configuration.respectExistingSystemProperty = this.respectExistingSystemProperty;
         cr24Configuration.useLocalCache = this.useLocalCache;
+        cr24Configuration.usePersistentExtraction = this.usePersistentExtraction;
+        cr24Configuration.shareWebdriverService = this.shareWebdriverService;
+        cr24Configuration.useStreamingExtraction = this.useStreamingExtraction;
+        cr24Configuration.cleanUpPreviousRuns = this.cleanUpPreviousRuns;
+        cr24Configuration.useProfileTemplate = this.useProfileTemplate;
+        cr24Configuration.useMemoryBackedStorage = this.useMemoryBackedStorage;
+        cr24Configuration.standbySessions = this.standbySessions;
 
         cr24Configuration.connectionTimeout = this.connectionTimeout;
         cr24Configuration.readTimeout = this.readTimeout;
+        cr24Configuration.downloadSegments = this.downloadSegments;
+        cr24Configuration.downloadHedgeDelay = this.downloadHedgeDelay;
+        cr24Configuration.cacheLockTimeout = this.cacheLockTimeout;
+        cr24Configuration.hangTimeout = this.hangTimeout;
+        cr24Configuration.heartbeatInterval = this.heartbeatInterval;
 
         cr24Configuration.use64bit = this.use64bit;
         cr24Configuration.useLocalBrowserInstallation = this.useLocalBrowserInstallation;
@@ -415,6 +862,18 @@ public final class Cr24Configuration {
         cr24Configuration.webbrowserDownloadUrlCallback = this.webbrowserDownloadUrlCallback;
         cr24Configuration.webdriverDownloadCachePathCallback = this.webdriverDownloadCachePathCallback;
         cr24Configuration.webbrowserDownloadCachePathCallback = this.webbrowserDownloadCachePathCallback;
+        cr24Configuration.webdriverExtractionPathCallback = this.webdriverExtractionPathCallback;
+        cr24Configuration.webbrowserExtractionPathCallback = this.webbrowserExtractionPathCallback;
+        cr24Configuration.checksumAlgorithm = this.checksumAlgorithm;
+        cr24Configuration.webdriverChecksumCallback = this.webdriverChecksumCallback;
+        cr24Configuration.webbrowserChecksumCallback = this.webbrowserChecksumCallback;
+        cr24Configuration.cacheIndexPathCallback = this.cacheIndexPathCallback;
+        cr24Configuration.cacheSizeLimit = this.cacheSizeLimit;
+        cr24Configuration.profileTemplatePathCallback = this.profileTemplatePathCallback;
+        cr24Configuration.memoryBackedStoragePathCallback = this.memoryBackedStoragePathCallback;
+        cr24Configuration.memoryBackedStorageReserve = this.memoryBackedStorageReserve;
+        cr24Configuration.profilePreparationCallback = this.profilePreparationCallback;
+        this.downloadMirrors.forEach((upstreamBaseUrl, mirrorBaseUrls) -> cr24Configuration.downloadMirrors.put(upstreamBaseUrl, new ArrayList<>(mirrorBaseUrls)));
         cr24Configuration.webdriverExecutableCallback = this.webdriverExecutableCallback;
         cr24Configuration.webbrowserExecutableCallback = this.webbrowserExecutableCallback;
 
@@ -427,6 +886,9 @@ public final class Cr24Configuration {
         cr24Configuration.os = this.os;
 
         cr24Configuration.chromeOptions = this.chromeOptions;
+        cr24Configuration.provisioningListeners = new CopyOnWriteArrayList<>(this.provisioningListeners);
+
+        cr24Configuration.executor = this.executor;
 
         return cr24Configuration;
     }
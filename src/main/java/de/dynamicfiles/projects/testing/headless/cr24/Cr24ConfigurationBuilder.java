@@ -17,10 +17,29 @@ package de.dynamicfiles.projects.testing.headless.cr24;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import de.dynamicfiles.projects.testing.headless.cr24.Cr24Configuration.ExecutableCallback;
+import de.dynamicfiles.projects.testing.headless.cr24.Cr24Configuration.ProvisioningListener;
+import de.dynamicfiles.projects.testing.headless.cr24.Cr24Configuration.StringValueCallback;
+import de.dynamicfiles.projects.testing.headless.cr24.Cr24ProvisioningEvent.Phase;
+import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.chrome.ChromeDriver;
 import org.openqa.selenium.chrome.ChromeDriverService;
 import org.openqa.selenium.chrome.ChromeOptions;
@@ -32,64 +51,177 @@ import org.openqa.selenium.chrome.ChromeOptions;
  */
 public class Cr24ConfigurationBuilder {
 
+    private static final Logger LOGGER = Logger.getLogger(Cr24ConfigurationBuilder.class.getName());
+
+    private static final ConcurrentMap<String, CompletableFuture<ProvisionedExecutable>> PROVISIONED_EXECUTABLES = new ConcurrentHashMap<>();
+    private static final Object SYSTEM_PROPERTY_LOCK = new Object();
+
+    // the size of an extraction is unknown before its archive got downloaded, so streaming assumes the worst
+    private static final long STREAMED_EXTRACTION_ESTIMATE = 1024L * 1024 * 1024;
+    // profiles grow while the session runs, mostly because of the disk cache
+    private static final long EXPECTED_PROFILE_SIZE = 128L * 1024 * 1024;
+
     private Cr24Configuration configuration;
 
     private Utils utils = new Utils();
 
+    private StandbySessions standbySessions = null;
+    private boolean standbyStopped = false;
+
+    private SessionWatchdog sessionWatchdog = null;
+
     public Cr24ConfigurationBuilder(Cr24Configuration cr24Configuration) {
         configuration = cr24Configuration;
     }
 
     public ChromeDriver build() throws IOException, Cr24ConfigurationBuilderException {
-        File localWebdriverArchiveFileToUse = new File(configuration.getWebdriverDownloadCachePathCallback().getValue());
-        File localWebbrowserArchiveFileToUse = new File(configuration.getWebbrowserDownloadCachePathCallback().getValue());
+        long buildStartNanos = System.nanoTime();
+        ChromeDriver standbySession = claimStandbySession();
+        if( standbySession != null ){
+            publish(Phase.BUILD, null, buildStartNanos, 0, 0, true, true);
+            return standbySession;
+        }
 
-        boolean hasLocalVersionWebdriverArchive = false;
-        boolean hasLocalVersionWebbrowserArchive = false;
-        // check if binaries are already existing
-        if( configuration.isUseLocalCache() ){
-            hasLocalVersionWebdriverArchive = localWebdriverArchiveFileToUse.exists();
-            hasLocalVersionWebbrowserArchive = localWebbrowserArchiveFileToUse.exists();
+        ChromeDriver driver = null;
+        try{
+            driver = provisionAndLaunch();
+            return driver;
+        } finally{
+            publish(Phase.BUILD, null, buildStartNanos, 0, 0, false, driver != null);
         }
+    }
 
-        // download webdriver if needed
-        if( !hasLocalVersionWebdriverArchive ){
-            if( !configuration.isOffline() ){
-                try{
-                    utils.download(configuration.getWebdriverDownloadUrlCallback().getValue(), localWebdriverArchiveFileToUse, configuration.getConnectionTimeout(), configuration.getReadTimeout());
-                } catch(MalformedURLException ex){
-                    throw new IOException("Problems while downloading webdriver", ex);
-                }
-            }
+    private ChromeDriver provisionAndLaunch() throws IOException, Cr24ConfigurationBuilderException {
+        Executor executor = configuration.getExecutor();
+
+        // webdriver and browser do not depend on each other, so download and extract both at the same time
+        CompletableFuture<ProvisionedExecutable> webdriverProvisioning = provisionWebdriver(executor);
+        CompletableFuture<ProvisionedExecutable> webbrowserProvisioning;
+        if( configuration.isUseLocalBrowserInstallation() ){
+            webbrowserProvisioning = CompletableFuture.completedFuture(null);
+        } else {
+            webbrowserProvisioning = provisionWebbrowser(executor);
         }
-        // download webdriver if needed
-        if( !configuration.isUseLocalBrowserInstallation() && !hasLocalVersionWebbrowserArchive ){
-            if( !configuration.isOffline() ){
-                try{
-                    utils.download(configuration.getWebbrowserDownloadUrlCallback().getValue(), localWebbrowserArchiveFileToUse, configuration.getConnectionTimeout(), configuration.getReadTimeout());
-                } catch(MalformedURLException ex){
-                    throw new IOException("Problems while downloading browser", ex);
-                }
-            }
+
+        File webdriverExecutable = toExecutable(awaitProvisioning(webdriverProvisioning));
+        File webbrowserExecutable = toExecutable(awaitProvisioning(webbrowserProvisioning));
+
+        return launch(webdriverExecutable, webbrowserExecutable);
+    }
+
+    /**
+     * Creates the ChromeDriver without blocking the caller. Downloading and extracting happens on the executor of the
+     * configuration, chromedriver and the browser get launched on the given executor once both executables are ready.
+     * <p>
+     * The returned future fails with the same exceptions as Cr24ConfigurationBuilder::build. When it gets cancelled
+     * while launching, the launched browser is quit again.
+     *
+     * @param executor used for launching chromedriver and the browser
+     *
+     * @return
+     */
+    public CompletableFuture<ChromeDriver> buildAsync(Executor executor) {
+        long buildStartNanos = System.nanoTime();
+        ChromeDriver standbySession = claimStandbySession();
+        if( standbySession != null ){
+            publish(Phase.BUILD, null, buildStartNanos, 0, 0, true, true);
+            return CompletableFuture.completedFuture(standbySession);
         }
+        CompletableFuture<ChromeDriver> driver = launchAsync(executor);
+        driver.whenComplete((launchedDriver, failure) -> publish(Phase.BUILD, null, buildStartNanos, 0, 0, false, failure == null));
+        return driver;
+    }
 
-        File webdriverExecutable = null;
-        File webbrowserExecutable = null;
+    /**
+     * Starts launching the standby sessions (see Cr24Configuration::setStandbySessions) without waiting for the first
+     * build.
+     */
+    public void startStandby() {
+        synchronized(this){
+            standbyStopped = false;
+        }
+        StandbySessions standby = getStandbySessions();
+        if( standby != null ){
+            standby.refill();
+        }
+    }
 
-        // extract downloaded archives into temporary folder for execution
-        if( localWebdriverArchiveFileToUse.exists() ){
-            // TODO handle deletion for later
-            Path targetTempPath = Files.createTempDirectory("webdriver-");
-            utils.unarchive(localWebdriverArchiveFileToUse.toPath(), configuration.getWebdriverArchiveFoldernameOfExecutable().getValue(), targetTempPath);
-            webdriverExecutable = targetTempPath.resolve(configuration.getWebdriverExecutableFilename().getValue()).toAbsolutePath().toFile();
+    /**
+     * Quits all standby sessions that were not handed out yet, later builds launch their sessions themselves until
+     * calling "startStandby" again.
+     */
+    public void stopStandby() {
+        StandbySessions standby;
+        synchronized(this){
+            standby = standbySessions;
+            standbySessions = null;
+            standbyStopped = true;
         }
-        if( !configuration.isUseLocalBrowserInstallation() && localWebbrowserArchiveFileToUse.exists() ){
-            // TODO handle deletion for later
-            Path targetTempPath = Files.createTempDirectory("webbrowser-");
-            utils.unarchive(localWebbrowserArchiveFileToUse.toPath(), configuration.getWebbrowserArchiveFoldernameOfExecutable().getValue(), targetTempPath);
-            webbrowserExecutable = targetTempPath.resolve(configuration.getWebbrowserExecutableFilename().getValue()).toAbsolutePath().toFile();
+        if( standby != null ){
+            standby.close();
         }
+    }
 
+    private synchronized StandbySessions getStandbySessions() {
+        if( standbySessions == null && !standbyStopped && configuration.getStandbySessions() > 0 ){
+            standbySessions = new StandbySessions(() -> launchAsync(configuration.getExecutor()), configuration.getStandbySessions());
+        }
+        return standbySessions;
+    }
+
+    private synchronized SessionWatchdog getSessionWatchdog() {
+        if( sessionWatchdog == null && configuration.getHangTimeout() > 0 ){
+            sessionWatchdog = new SessionWatchdog(configuration.getHangTimeout(), configuration.getHeartbeatInterval());
+        }
+        return sessionWatchdog;
+    }
+
+    private ChromeDriver claimStandbySession() {
+        StandbySessions standby = getStandbySessions();
+        return standby == null ? null : standby.claim();
+    }
+
+    private CompletableFuture<ChromeDriver> launchAsync(Executor executor) {
+        Executor provisioningExecutor = configuration.getExecutor();
+        CompletableFuture<ProvisionedExecutable> webdriverProvisioning = provisionWebdriver(provisioningExecutor);
+        CompletableFuture<ProvisionedExecutable> webbrowserProvisioning;
+        if( configuration.isUseLocalBrowserInstallation() ){
+            webbrowserProvisioning = CompletableFuture.completedFuture(null);
+        } else {
+            webbrowserProvisioning = provisionWebbrowser(provisioningExecutor);
+        }
+
+        CompletableFuture<ChromeDriver> launching = webdriverProvisioning
+                .thenCombine(webbrowserProvisioning, (webdriver, webbrowser) -> new File[]{toExecutable(webdriver), toExecutable(webbrowser)})
+                .thenApplyAsync(executables -> {
+                    try{
+                        return launch(executables[0], executables[1]);
+                    } catch(IOException ex){
+                        throw new UncheckedIOException(ex);
+                    } catch(Cr24ConfigurationBuilderException ex){
+                        throw new CompletionException(ex);
+                    }
+                }, executor);
+
+        CompletableFuture<ChromeDriver> driver = new CompletableFuture<>();
+        launching.whenComplete((launchedDriver, failure) -> {
+            if( failure == null ){
+                if( !driver.complete(launchedDriver) ){
+                    // nobody is waiting for it anymore
+                    launchedDriver.quit();
+                }
+                return;
+            }
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            if( cause instanceof UncheckedIOException ){
+                cause = cause.getCause();
+            }
+            driver.completeExceptionally(cause);
+        });
+        return driver;
+    }
+
+    private ChromeDriver launch(File webdriverExecutable, File webbrowserExecutable) throws IOException, Cr24ConfigurationBuilderException {
         // fail if any attempt failed
         if( configuration.isUseLocalBrowserInstallation() ){
             if( webdriverExecutable == null ){
@@ -101,13 +233,23 @@ public class Cr24ConfigurationBuilder {
             }
         }
 
-        if( configuration.isExistingSystemPropertyToBeRespected() ){
-            if( System.getProperty(ChromeDriverService.CHROME_DRIVER_EXE_PROPERTY, null) == null ){
+        // concurrent builds must not see half-updated values, and each of them uses the value it decided on
+        File webdriverExecutableToUse;
+        synchronized(SYSTEM_PROPERTY_LOCK){
+            String existingWebdriverExecutable = System.getProperty(ChromeDriverService.CHROME_DRIVER_EXE_PROPERTY, null);
+            if( configuration.isExistingSystemPropertyToBeRespected() ){
+                if( existingWebdriverExecutable == null ){
+                    System.setProperty(ChromeDriverService.CHROME_DRIVER_EXE_PROPERTY, webdriverExecutable.getAbsolutePath());
+                    long preparationStartNanos = System.nanoTime();
+                    configuration.getWebdriverExecutableCallback().workOnExecutable(webdriverExecutable.toPath());
+                    publish(Phase.EXECUTABLE_PREPARATION, "webdriver", preparationStartNanos, 0, 0, false, true);
+                    existingWebdriverExecutable = webdriverExecutable.getAbsolutePath();
+                }
+            } else if( !webdriverExecutable.getAbsolutePath().equals(existingWebdriverExecutable) ){
                 System.setProperty(ChromeDriverService.CHROME_DRIVER_EXE_PROPERTY, webdriverExecutable.getAbsolutePath());
-                configuration.getWebdriverExecutableCallback().workOnExecutable(webdriverExecutable.toPath());
+                existingWebdriverExecutable = webdriverExecutable.getAbsolutePath();
             }
-        } else {
-            System.setProperty(ChromeDriverService.CHROME_DRIVER_EXE_PROPERTY, webdriverExecutable.getAbsolutePath());
+            webdriverExecutableToUse = new File(existingWebdriverExecutable);
         }
 
         ChromeOptions options = configuration.getChromeOptions();
@@ -115,11 +257,483 @@ public class Cr24ConfigurationBuilder {
         // when having to use locally installed browser, do not set exe-property, as chromedriver has its own detection routine
         if( !configuration.isUseLocalBrowserInstallation() ){
             options.setBinary(webbrowserExecutable.getAbsolutePath());
+            long preparationStartNanos = System.nanoTime();
             configuration.getWebbrowserExecutableCallback().workOnExecutable(webbrowserExecutable.toPath());
+            publish(Phase.EXECUTABLE_PREPARATION, "browser", preparationStartNanos, 0, 0, false, true);
+        }
+
+        boolean useOwnProfile = configuration.isUseProfileTemplate() || configuration.isUseMemoryBackedStorage();
+        if( !useOwnProfile || ProfileTemplate.hasUserDataDir(options) ){
+            return startSession(webdriverExecutableToUse, options, null, null);
+        }
+        Path profile;
+        if( configuration.isUseProfileTemplate() ){
+            Path template = Paths.get(configuration.getProfileTemplatePathCallback().getValue());
+            ProfileTemplate.createOnce(template, configuration.getCacheLockTimeout(), userDataDir -> startSession(webdriverExecutableToUse, options, userDataDir, null), configuration.getProfilePreparationCallback());
+            profile = ProfileTemplate.cloneForSession(template, selectProfileFolder(MemoryStorage.measure(template)));
+        } else {
+            profile = ResourceReaper.createTemporaryFolder(selectProfileFolder(0), ProfileTemplate.PROFILE_FOLDER_PREFIX);
+        }
+        return startSession(webdriverExecutableToUse, options, profile, () -> ResourceReaper.deleteTemporaryFolder(profile));
+    }
+
+    /**
+     * @param initialProfileSize
+     *
+     * @return folder to create the session profile in
+     */
+    private Path selectProfileFolder(long initialProfileSize) {
+        MemoryStorage memoryStorage = getMemoryStorage();
+        if( memoryStorage != null && memoryStorage.hasSpaceFor("session profile", initialProfileSize + EXPECTED_PROFILE_SIZE) ){
+            return memoryStorage.getFolder();
+        }
+        return ResourceReaper.getDefaultTemporaryFolder();
+    }
+
+    private MemoryStorage getMemoryStorage() {
+        if( !configuration.isUseMemoryBackedStorage() ){
+            return null;
+        }
+        return new MemoryStorage(Paths.get(configuration.getMemoryBackedStoragePathCallback().getValue()), configuration.getMemoryBackedStorageReserve());
+    }
+
+    /**
+     * @param webdriverExecutable
+     * @param options
+     * @param userDataDir profile folder to use instead of some new empty one, can be null
+     * @param releaseSessionResources gets called after the session was quit or failed to start, can be null
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    private ChromeDriver startSession(File webdriverExecutable, ChromeOptions options, Path userDataDir, Runnable releaseSessionResources) throws IOException {
+        ChromeDriverService driverService;
+        try{
+            if( configuration.isShareWebdriverService() ){
+                driverService = SharedChromeDriverService.acquire(webdriverExecutable);
+            } else {
+                driverService = new ChromeDriverService.Builder()
+                        .usingDriverExecutable(webdriverExecutable)
+                        .usingAnyFreePort()
+                        // inherited by the browser, so leftovers of a crashed JVM can be found
+                        .withEnvironment(ResourceReaper.getOwnerEnvironment())
+                        .build();
+            }
+        } catch(IOException | RuntimeException ex){
+            if( releaseSessionResources != null ){
+                releaseSessionResources.run();
+            }
+            throw ex;
+        }
+        long sessionStartNanos = System.nanoTime();
+        try{
+            ManagedChromeDriver driver = new ManagedChromeDriver(driverService, userDataDir == null ? options : ProfileTemplate.withUserDataDir(options, userDataDir), releaseSessionResources);
+            publish(Phase.SESSION_START, null, sessionStartNanos, 0, 0, false, true);
+            SessionWatchdog watchdog = getSessionWatchdog();
+            if( watchdog != null ){
+                watchdog.watch(driver, configuration.isShareWebdriverService());
+            }
+            return driver;
+        } catch(WebDriverException ex){
+            publish(Phase.SESSION_START, null, sessionStartNanos, 0, 0, false, false);
+            // no session means nobody will call quit, so release the service here
+            driverService.stop();
+            if( releaseSessionResources != null ){
+                releaseSessionResources.run();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * @param driver
+     *
+     * @return true when the watchdog killed the processes of this session because it was hanging (see
+     *         Cr24Configuration::setHangTimeout), the driver can only be quit afterwards
+     */
+    public boolean isUnresponsive(ChromeDriver driver) {
+        return driver instanceof ManagedChromeDriver && ((ManagedChromeDriver) driver).isUnresponsive();
+    }
+
+    /**
+     * Resets some ChromeDriver created by this builder to the state of a freshly built one, without relaunching the
+     * browser: cookies, local storage, additional windows and the navigation history get removed and the remaining window
+     * shows a blank page. The session is checked for being clean afterwards.
+     * <p>
+     * Storages are cleared for the origins of the pages and frames inside the open windows and of all cookies, storages
+     * written only by windows or frames which got closed before are not found.
+     * <p>
+     * When recycling fails, the driver is in an unknown state and should be quit.
+     *
+     * @param driver
+     *
+     * @throws IOException when resetting the session failed
+     * @throws Cr24ConfigurationBuilderException when the driver was not created by Cr24ConfigurationBuilder
+     */
+    public void recycle(ChromeDriver driver) throws IOException, Cr24ConfigurationBuilderException {
+        if( !(driver instanceof ManagedChromeDriver) ){
+            throw new Cr24ConfigurationBuilderException("Only webdrivers created by Cr24ConfigurationBuilder can be recycled");
+        }
+        long recycleStartNanos = System.nanoTime();
+        boolean recycled = false;
+        try{
+            ((ManagedChromeDriver) driver).recycle();
+            recycled = true;
+        } finally{
+            publish(Phase.SESSION_RECYCLE, null, recycleStartNanos, 0, 0, false, recycled);
+        }
+    }
+
+    /**
+     * Downloads and extracts webdriver and browser into the cache without launching anything, e.g. for preparing CI
+     * images. Executables are prepared the same way as when building.
+     *
+     * @return one report per provisioned artifact
+     *
+     * @throws IOException
+     */
+    public List<Cr24ArtifactReport> prefetch() throws IOException {
+        return awaitProvisioning(startPrefetch());
+    }
+
+    CompletableFuture<List<Cr24ArtifactReport>> startPrefetch() {
+        long startNanos = System.nanoTime();
+        Executor executor = configuration.getExecutor();
+        String description = configuration.getOS() + " " + (configuration.is64bit() ? "64bit" : "32bit");
+
+        CompletableFuture<Cr24ArtifactReport> webdriverReport = toReport("webdriver", description + " " + configuration.getWebdriverVersionCallback().getValue(), provisionWebdriver(executor), configuration.getWebdriverExecutableCallback(), startNanos);
+        if( configuration.isUseLocalBrowserInstallation() ){
+            return webdriverReport.thenApply(Collections::singletonList);
+        }
+        CompletableFuture<Cr24ArtifactReport> webbrowserReport = toReport("browser", description + " " + configuration.getWebbrowserSnapshotVersionCallback().getValue(), provisionWebbrowser(executor), configuration.getWebbrowserExecutableCallback(), startNanos);
+        return webdriverReport.thenCombine(webbrowserReport, Arrays::asList);
+    }
+
+    private CompletableFuture<Cr24ArtifactReport> toReport(String artifactName, String description, CompletableFuture<ProvisionedExecutable> provisioning, ExecutableCallback executableCallback, long startNanos) {
+        // joining an already finished provisioning did not download anything
+        boolean provisionedBefore = provisioning.isDone();
+        return provisioning.thenApply(provisioned -> {
+            if( provisioned == null ){
+                throw new UncheckedIOException(new IOException("No " + artifactName + " archive available for " + description + ", it can not be downloaded while being offline"));
+            }
+            executableCallback.workOnExecutable(provisioned.getExecutable().toPath());
+            return new Cr24ArtifactReport(artifactName, description, provisioned.getExecutable().toPath(), provisionedBefore ? 0 : provisioned.getDownloadedBytes(), provisioned.getArchiveSize(), System.nanoTime() - startNanos, provisioned.isMemoryBacked());
+        });
+    }
+
+    private CompletableFuture<ProvisionedExecutable> provisionWebdriver(Executor executor) {
+        if( configuration.isCleanUpPreviousRuns() ){
+            List<Path> temporaryFolders = new ArrayList<>();
+            temporaryFolders.add(ResourceReaper.getDefaultTemporaryFolder());
+            MemoryStorage memoryStorage = getMemoryStorage();
+            if( memoryStorage != null ){
+                temporaryFolders.add(memoryStorage.getFolder());
+            }
+            ResourceReaper.reapStaleResourcesOnce(executor, temporaryFolders);
         }
+        return provisionOnce("webdriver", "webdriver-",
+                configuration.getWebdriverDownloadCachePathCallback(),
+                configuration.getWebdriverDownloadUrlCallback(),
+                configuration.getWebdriverArchiveFoldernameOfExecutable(),
+                configuration.getWebdriverExtractionPathCallback(),
+                configuration.getWebdriverExecutableFilename(),
+                configuration.getWebdriverChecksumCallback(),
+                executor);
+    }
+
+    private CompletableFuture<ProvisionedExecutable> provisionWebbrowser(Executor executor) {
+        return provisionOnce("browser", "webbrowser-",
+                configuration.getWebbrowserDownloadCachePathCallback(),
+                configuration.getWebbrowserDownloadUrlCallback(),
+                configuration.getWebbrowserArchiveFoldernameOfExecutable(),
+                configuration.getWebbrowserExtractionPathCallback(),
+                configuration.getWebbrowserExecutableFilename(),
+                configuration.getWebbrowserChecksumCallback(),
+                executor);
+    }
+
+    /**
+     * Concurrent builds requesting the same artifact join the provisioning already running, and later builds reuse its
+     * result as long as the executable still exists. Failed attempts are not remembered, so the next build tries again.
+     */
+    private CompletableFuture<ProvisionedExecutable> provisionOnce(String artifactName, String temporaryFolderPrefix, StringValueCallback downloadCachePath, StringValueCallback downloadUrl, StringValueCallback archiveFoldernameOfExecutable, StringValueCallback extractionPath, StringValueCallback executableFilename, StringValueCallback expectedChecksum, Executor executor) {
+        String artifactKey = String.join("|",
+                new File(downloadCachePath.getValue()).getAbsolutePath(),
+                configuration.isUsePersistentExtraction() ? extractionPath.getValue() : temporaryFolderPrefix,
+                archiveFoldernameOfExecutable.getValue(),
+                executableFilename.getValue(),
+                String.valueOf(expectedChecksum.getValue()));
+
+        long lookupStartNanos = System.nanoTime();
+        while( true ){
+            CompletableFuture<ProvisionedExecutable> existingProvisioning = PROVISIONED_EXECUTABLES.get(artifactKey);
+            if( existingProvisioning != null ){
+                if( !existingProvisioning.isDone() ){
+                    return existingProvisioning;
+                }
+                if( isUsable(existingProvisioning) ){
+                    // size-capped caches of other processes must not evict what this one is still using
+                    CacheIndex.forFile(Paths.get(configuration.getCacheIndexPathCallback().getValue())).touch(new File(downloadCachePath.getValue()).toPath());
+                    publish(Phase.CACHE_LOOKUP, artifactName, lookupStartNanos, 0, 0, true, true);
+                    return existingProvisioning;
+                }
+                PROVISIONED_EXECUTABLES.remove(artifactKey, existingProvisioning);
+                continue;
+            }
+
+            CompletableFuture<ProvisionedExecutable> provisioning = new CompletableFuture<>();
+            if( PROVISIONED_EXECUTABLES.putIfAbsent(artifactKey, provisioning) != null ){
+                continue;
+            }
+            try{
+                executor.execute(() -> {
+                    try{
+                        ProvisionedExecutable provisioned = provisionExecutable(artifactName, temporaryFolderPrefix, downloadCachePath, downloadUrl, archiveFoldernameOfExecutable, extractionPath, executableFilename, expectedChecksum);
+                        if( provisioned == null ){
+                            PROVISIONED_EXECUTABLES.remove(artifactKey, provisioning);
+                        }
+                        provisioning.complete(provisioned);
+                    } catch(IOException ex){
+                        PROVISIONED_EXECUTABLES.remove(artifactKey, provisioning);
+                        provisioning.completeExceptionally(new UncheckedIOException(ex));
+                    } catch(RuntimeException | Error ex){
+                        PROVISIONED_EXECUTABLES.remove(artifactKey, provisioning);
+                        provisioning.completeExceptionally(ex);
+                    }
+                });
+            } catch(RuntimeException ex){
+                PROVISIONED_EXECUTABLES.remove(artifactKey, provisioning);
+                throw ex;
+            }
+            return provisioning;
+        }
+    }
+
+    private boolean isUsable(CompletableFuture<ProvisionedExecutable> provisioning) {
+        if( provisioning.isCompletedExceptionally() ){
+            return false;
+        }
+        File executable = toExecutable(provisioning.getNow(null));
+        // cache eviction of other processes might have removed it
+        return executable != null && executable.exists();
+    }
+
+    private static File toExecutable(ProvisionedExecutable provisioned) {
+        return provisioned == null ? null : provisioned.getExecutable();
+    }
+
+    // the lock only has to be held, it is never referenced
+    @SuppressWarnings("try")
+    private ProvisionedExecutable provisionExecutable(String artifactName, String temporaryFolderPrefix, StringValueCallback downloadCachePath, StringValueCallback downloadUrl, StringValueCallback archiveFoldernameOfExecutable, StringValueCallback extractionPath, StringValueCallback executableFilename, StringValueCallback expectedChecksum) throws IOException {
+        File localArchiveFileToUse = new File(downloadCachePath.getValue());
+        ArchiveChecksum checksum = new ArchiveChecksum(configuration.getChecksumAlgorithm(), expectedChecksum.getValue());
+        CacheIndex cacheIndex = CacheIndex.forFile(Paths.get(configuration.getCacheIndexPathCallback().getValue()));
+
+        ProvisionedExecutable provisioned;
+        long lookupStartNanos = System.nanoTime();
+        // all checks happen while holding the lock, so waiting processes find the archive provisioned by the lock owner
+        try(ArchiveLock ignored = ArchiveLock.acquire(localArchiveFileToUse.toPath(), configuration.getCacheLockTimeout())){
+            provisioned = provisionLockedExecutable(artifactName, temporaryFolderPrefix, localArchiveFileToUse, downloadUrl, archiveFoldernameOfExecutable, extractionPath, executableFilename, checksum, cacheIndex, lookupStartNanos);
+        }
+
+        if( provisioned != null && configuration.getCacheSizeLimit() > 0 ){
+            cacheIndex.evict(configuration.getCacheSizeLimit());
+        }
+        return provisioned;
+    }
+
+    private ProvisionedExecutable provisionLockedExecutable(String artifactName, String temporaryFolderPrefix, File localArchiveFileToUse, StringValueCallback downloadUrl, StringValueCallback archiveFoldernameOfExecutable, StringValueCallback extractionPath, StringValueCallback executableFilename, ArchiveChecksum checksum, CacheIndex cacheIndex, long lookupStartNanos) throws IOException {
+        boolean hasLocalVersionArchive = false;
+        boolean indexedArchive = false;
+        // check if binaries are already existing
+        if( configuration.isUseLocalCache() ){
+            // the index knows size and digest of the archive, so a single stat is enough
+            CacheIndex.Entry indexEntry = cacheIndex.lookup(localArchiveFileToUse.toPath());
+            indexedArchive = indexEntry != null && checksum.matchesIndexDigest(indexEntry.getDigest()) && localArchiveFileToUse.length() == indexEntry.getSize();
+            hasLocalVersionArchive = indexedArchive;
+            if( !hasLocalVersionArchive && localArchiveFileToUse.exists() ){
+                // archives which can not be verified get downloaded again, unless that is impossible
+                hasLocalVersionArchive = checksum.isValidCacheEntry(localArchiveFileToUse.toPath(), configuration.isOffline());
+                if( !hasLocalVersionArchive ){
+                    if( configuration.isOffline() ){
+                        throw new IOException("Cached " + artifactName + " archive is corrupt and can not be downloaded again while being offline: " + localArchiveFileToUse);
+                    }
+                    Files.delete(localArchiveFileToUse.toPath());
+                }
+            }
+        }
+        // includes waiting for other processes provisioning the same archive
+        publish(Phase.CACHE_LOOKUP, artifactName, lookupStartNanos, 0, 0, hasLocalVersionArchive, true);
+
+        Path targetPath = null;
+        long downloadedBytes = 0;
+        // download if needed
+        if( !hasLocalVersionArchive ){
+            if( !configuration.isOffline() ){
+                long downloadStartNanos = System.nanoTime();
+                boolean downloaded = false;
+                try{
+                    if( configuration.isUseStreamingExtraction() ){
+                        targetPath = selectExtractionFolder(artifactName, temporaryFolderPrefix, extractionPath, null, archiveFoldernameOfExecutable.getValue());
+                        try{
+                            downloadedBytes = downloadAndExtractExecutable(artifactName, localArchiveFileToUse, downloadUrl, archiveFoldernameOfExecutable, targetPath, checksum);
+                        } catch(IOException | RuntimeException ex){
+                            if( !configuration.isUsePersistentExtraction() ){
+                                ResourceReaper.deleteTemporaryFolder(targetPath);
+                            }
+                            throw ex;
+                        }
+                    } else {
+                        try{
+                            downloadedBytes = utils.download(getDownloadSources(downloadUrl.getValue()), localArchiveFileToUse, configuration.getConnectionTimeout(), configuration.getReadTimeout(), configuration.getDownloadSegments(), checksum, configuration.getDownloadHedgeDelay());
+                        } catch(MalformedURLException ex){
+                            throw new IOException("Problems while downloading " + artifactName, ex);
+                        }
+                    }
+                    downloaded = true;
+                } finally{
+                    // failed downloads have to show up in the statistics too
+                    publish(Phase.DOWNLOAD, artifactName, downloadStartNanos, downloadedBytes, 0, false, downloaded);
+                }
+            }
+        }
+
+        // extract downloaded archive for execution
+        if( !localArchiveFileToUse.exists() ){
+            return null;
+        }
+        if( targetPath == null ){
+            long extractionStartNanos = System.nanoTime();
+            ParallelZipExtractor extractor = null;
+            boolean extracted = false;
+            try{
+                targetPath = selectExtractionFolder(artifactName, temporaryFolderPrefix, extractionPath, localArchiveFileToUse, archiveFoldernameOfExecutable.getValue());
+                if( configuration.isUsePersistentExtraction() ){
+                    extractor = utils.unarchiveOnce(localArchiveFileToUse.toPath(), archiveFoldernameOfExecutable.getValue(), targetPath);
+                } else {
+                    try{
+                        extractor = utils.unarchive(localArchiveFileToUse.toPath(), archiveFoldernameOfExecutable.getValue(), targetPath);
+                    } catch(IOException | RuntimeException ex){
+                        ResourceReaper.deleteTemporaryFolder(targetPath);
+                        throw ex;
+                    }
+                }
+                extracted = true;
+            } finally{
+                if( extractor == null ){
+                    // either reused some existing extraction or failed
+                    publish(Phase.EXTRACTION, artifactName, extractionStartNanos, 0, 0, extracted, extracted);
+                } else {
+                    publish(Phase.EXTRACTION, artifactName, extractionStartNanos, extractor.getExtractedBytes(), extractor.getExtractedEntries(), false, extracted);
+                }
+            }
+        }
+
+        String indexDigest = indexedArchive ? null : checksum.toIndexDigest(checksum.readStoredDigest(localArchiveFileToUse.toPath()));
+        cacheIndex.recordUse(localArchiveFileToUse.toPath(), indexDigest, configuration.isUsePersistentExtraction() ? targetPath : null);
+
+        File executable = targetPath.resolve(executableFilename.getValue()).toAbsolutePath().toFile();
+        MemoryStorage memoryStorage = getMemoryStorage();
+        return new ProvisionedExecutable(executable, downloadedBytes, localArchiveFileToUse.length(), memoryStorage != null && memoryStorage.contains(targetPath));
+    }
+
+    /**
+     * Decides where to extract some archive, placing it into memory when enabled, having enough space and allowing to
+     * start executables from there. Temporary extractions get created right away.
+     *
+     * @param artifactName
+     * @param temporaryFolderPrefix
+     * @param extractionPath
+     * @param archive the downloaded archive, null when it gets extracted while downloading
+     * @param rootInsideArchive
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    private Path selectExtractionFolder(String artifactName, String temporaryFolderPrefix, StringValueCallback extractionPath, File archive, String rootInsideArchive) throws IOException {
+        MemoryStorage memoryStorage = getMemoryStorage();
+        Path memoryFolder = null;
+        // profiles stay in memory anyway, they do not need to be executable
+        if( memoryStorage != null && memoryStorage.allowsExecution() ){
+            Path persistentMemoryFolder = memoryStorage.relocate(Paths.get(extractionPath.getValue()));
+            if( configuration.isUsePersistentExtraction() && archive != null && utils.isExtractionOf(archive.toPath(), persistentMemoryFolder) ){
+                // extracted into memory by some earlier build, it does not need additional space
+                return persistentMemoryFolder;
+            }
+            long requiredBytes = archive == null ? STREAMED_EXTRACTION_ESTIMATE : ParallelZipExtractor.measureExtractedSize(archive.toPath(), rootInsideArchive);
+            if( memoryStorage.hasSpaceFor(artifactName + " extraction", requiredBytes) ){
+                memoryFolder = configuration.isUsePersistentExtraction() ? persistentMemoryFolder : memoryStorage.getFolder();
+            }
+        }
+        if( configuration.isUsePersistentExtraction() ){
+            return memoryFolder == null ? Paths.get(extractionPath.getValue()) : memoryFolder;
+        }
+        // shared by all sessions of this JVM, gets deleted when the JVM exits
+        return ResourceReaper.createTemporaryFolder(memoryFolder == null ? ResourceReaper.getDefaultTemporaryFolder() : memoryFolder, temporaryFolderPrefix);
+    }
+
+    private long downloadAndExtractExecutable(String artifactName, File localArchiveFileToUse, StringValueCallback downloadUrl, StringValueCallback archiveFoldernameOfExecutable, Path targetPath, ArchiveChecksum checksum) throws IOException {
+        try{
+            if( configuration.isUsePersistentExtraction() ){
+                AtomicLong downloadedBytes = new AtomicLong();
+                utils.extractAtomically(localArchiveFileToUse.toPath(), targetPath, stagingFolder -> {
+                    downloadedBytes.set(utils.downloadAndUnarchive(getDownloadSources(downloadUrl.getValue()), localArchiveFileToUse, archiveFoldernameOfExecutable.getValue(), stagingFolder, configuration.getConnectionTimeout(), configuration.getReadTimeout(), checksum));
+                });
+                return downloadedBytes.get();
+            }
+            return utils.downloadAndUnarchive(getDownloadSources(downloadUrl.getValue()), localArchiveFileToUse, archiveFoldernameOfExecutable.getValue(), targetPath, configuration.getConnectionTimeout(), configuration.getReadTimeout(), checksum);
+        } catch(MalformedURLException ex){
+            throw new IOException("Problems while downloading " + artifactName, ex);
+        }
+    }
+
+    /**
+     * @param downloadUrl
+     *
+     * @return the download URL rewritten for every configured mirror, followed by the download URL itself
+     */
+    private List<String> getDownloadSources(String downloadUrl) {
+        List<String> sources = new ArrayList<>();
+        configuration.getDownloadMirrors().forEach((upstreamBaseUrl, mirrorBaseUrls) -> {
+            if( downloadUrl.startsWith(upstreamBaseUrl) ){
+                mirrorBaseUrls.forEach(mirrorBaseUrl -> sources.add(mirrorBaseUrl + downloadUrl.substring(upstreamBaseUrl.length())));
+            }
+        });
+        sources.add(downloadUrl);
+        return sources;
+    }
+
+    private void publish(Phase phase, String artifactName, long startNanos, long bytes, long entries, boolean cacheHit, boolean successful) {
+        List<ProvisioningListener> listeners = configuration.getProvisioningListeners();
+        if( listeners.isEmpty() ){
+            return;
+        }
+        Cr24ProvisioningEvent event = new Cr24ProvisioningEvent(phase, artifactName, System.nanoTime() - startNanos, bytes, entries, cacheHit, successful);
+        for( ProvisioningListener listener : listeners ){
+            try{
+                listener.onEvent(event);
+            } catch(RuntimeException ex){
+                // a broken listener must not break building
+                LOGGER.log(Level.WARNING, "Provisioning listener failed", ex);
+            }
+        }
+    }
+
+    private <T> T awaitProvisioning(CompletableFuture<T> provisioning) throws IOException {
+        try{
+            return provisioning.join();
+        } catch(CompletionException ex){
+            if( ex.getCause() instanceof UncheckedIOException ){
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            }
+            throw ex;
+        }
+    }
 
-        ChromeDriverService createDefaultService = ChromeDriverService.createDefaultService();
-        return new ChromeDriver(createDefaultService, options);
+    Cr24Configuration getConfiguration() {
+        return configuration;
     }
 
     public Cr24ConfigurationBuilder customize(Consumer<Cr24Configuration> configCallback) {
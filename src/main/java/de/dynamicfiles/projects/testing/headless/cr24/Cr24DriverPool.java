@@ -0,0 +1,430 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.chrome.ChromeDriver;
+
+/**
+ * Keeps already running ChromeDriver instances for reuse, so tests do not have to pay for launching chromedriver and the
+ * browser each time. Borrowed instances have to be given back via "giveBack" (or "invalidate" when they are broken),
+ * please call "close" after usage to quit all remaining sessions.
+ *
+ * @author Danny Althoff
+ */
+public class Cr24DriverPool implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(Cr24DriverPool.class.getName());
+
+    private static final class PooledSession {
+
+        private final ChromeDriver driver;
+        private int uses = 0;
+        private long lastReturned = System.currentTimeMillis();
+
+        PooledSession(ChromeDriver driver) {
+            this.driver = driver;
+        }
+    }
+
+    private final Cr24ConfigurationBuilder configurationBuilder;
+    private final Cr24DriverPoolConfiguration poolConfiguration;
+
+    // most recently returned sessions are taken first, this way the oldest ones are the first to get evicted
+    private final Deque<PooledSession> idleSessions = new ArrayDeque<>();
+    private final Map<ChromeDriver, PooledSession> borrowedSessions = new IdentityHashMap<>();
+    // includes sessions which are currently getting created
+    private int totalSessions = 0;
+    private boolean closed = false;
+
+    private long borrowCount = 0;
+    private long waitCount = 0;
+    private long timeoutCount = 0;
+    private long totalBorrowNanos = 0;
+    private long maxBorrowNanos = 0;
+    private long createdCount = 0;
+    private long destroyedCount = 0;
+    private long exceededCount = 0;
+    private long unresponsiveCount = 0;
+
+    // null when not monitoring resource usage
+    private final Cr24ResourceMonitor resourceMonitor;
+
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cr24-driver-pool-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Cr24DriverPool(Cr24ConfigurationBuilder configurationBuilder, Cr24DriverPoolConfiguration poolConfiguration) {
+        if( poolConfiguration.getMaxSize() < 1 || poolConfiguration.getMinSize() > poolConfiguration.getMaxSize() ){
+            throw new IllegalArgumentException("Pool size has to be at least 1 and the minimum size must not exceed the maximum size");
+        }
+        this.configurationBuilder = configurationBuilder;
+        this.poolConfiguration = poolConfiguration.copy();
+        Cr24ResourceMonitorConfiguration resourceMonitorConfiguration = this.poolConfiguration.getResourceMonitorConfiguration();
+        this.resourceMonitor = resourceMonitorConfiguration == null ? null : new Cr24ResourceMonitor(resourceMonitorConfiguration);
+        maintenance.scheduleWithFixedDelay(this::maintain, 0, this.poolConfiguration.getEvictionInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get some running ChromeDriver instance, creating a new one if none is idle and the pool is not saturated.
+     *
+     * @return
+     *
+     * @throws IOException
+     * @throws Cr24ConfigurationBuilderException when no instance got free within the configured borrow timeout
+     */
+    public ChromeDriver borrow() throws IOException, Cr24ConfigurationBuilderException {
+        long borrowStart = System.nanoTime();
+        long deadline = borrowStart + TimeUnit.MILLISECONDS.toNanos(poolConfiguration.getBorrowTimeout());
+        boolean hasWaited = false;
+
+        synchronized(this){
+            while( true ){
+                if( closed ){
+                    throw new IllegalStateException("Pool is already closed");
+                }
+                PooledSession idleSession = idleSessions.pollFirst();
+                if( idleSession != null && isUnresponsive(idleSession) ){
+                    totalSessions--;
+                    replaceInBackground(idleSession);
+                    continue;
+                }
+                if( idleSession != null ){
+                    return markBorrowed(idleSession, borrowStart);
+                }
+                if( totalSessions < poolConfiguration.getMaxSize() ){
+                    // reserve the slot, the creation itself happens outside of the lock
+                    totalSessions++;
+                    break;
+                }
+                long remaining = deadline - System.nanoTime();
+                if( remaining <= 0 ){
+                    timeoutCount++;
+                    throw new Cr24ConfigurationBuilderException("Timeout while waiting for a free webdriver of the pool");
+                }
+                if( !hasWaited ){
+                    hasWaited = true;
+                    waitCount++;
+                }
+                try{
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch(InterruptedException ex){
+                    Thread.currentThread().interrupt();
+                    throw new Cr24ConfigurationBuilderException("Interrupted while waiting for a free webdriver of the pool");
+                }
+            }
+        }
+
+        PooledSession createdSession = createSession();
+        synchronized(this){
+            return markBorrowed(createdSession, borrowStart);
+        }
+    }
+
+    /**
+     * Return some borrowed instance into the pool. When the instance reached its maximum amount of uses, it gets quit.
+     * When recycling is enabled, the instance gets reset before it is available again. Instances exceeding the resource
+     * thresholds get quit too, just like instances killed by the watchdog (see Cr24Configuration::setHangTimeout).
+     *
+     * @param driver
+     */
+    public void giveBack(ChromeDriver driver) {
+        PooledSession session;
+        boolean reusable;
+        synchronized(this){
+            session = borrowedSessions.remove(driver);
+            if( session == null ){
+                throw new IllegalArgumentException("Webdriver was not borrowed from this pool");
+            }
+            if( isUnresponsive(session) ){
+                totalSessions--;
+                notifyAll();
+                replaceInBackground(session);
+                return;
+            }
+            boolean usedUp = poolConfiguration.getMaxUsesPerSession() > 0 && session.uses >= poolConfiguration.getMaxUsesPerSession();
+            reusable = !closed && !usedUp;
+            if( reusable && !poolConfiguration.isRecycleSessions() && resourceMonitor == null ){
+                returnIdle(session);
+                return;
+            }
+            if( !reusable ){
+                totalSessions--;
+                notifyAll();
+            }
+        }
+        if( reusable ){
+            boolean recycled = !poolConfiguration.isRecycleSessions() || recycle(session);
+            // recycling closes all tabs, which might already have freed enough memory
+            boolean keep = recycled && !exceedsResourceThresholds(session, true);
+            synchronized(this){
+                // the pool might have been closed while recycling
+                if( keep && !closed ){
+                    returnIdle(session);
+                    return;
+                }
+                totalSessions--;
+                notifyAll();
+            }
+        }
+        destroySession(session);
+    }
+
+    /**
+     * Remove some borrowed instance from the pool and quit it, e.g. because the browser got unusable.
+     *
+     * @param driver
+     */
+    public void invalidate(ChromeDriver driver) {
+        PooledSession session;
+        synchronized(this){
+            session = borrowedSessions.remove(driver);
+            if( session == null ){
+                throw new IllegalArgumentException("Webdriver was not borrowed from this pool");
+            }
+            totalSessions--;
+            notifyAll();
+        }
+        destroySession(session);
+    }
+
+    public synchronized Cr24DriverPoolMetrics getMetrics() {
+        return new Cr24DriverPoolMetrics(poolConfiguration.getMaxSize(), idleSessions.size(), borrowedSessions.size(), borrowCount, waitCount, timeoutCount, totalBorrowNanos, maxBorrowNanos, createdCount, destroyedCount, exceededCount, unresponsiveCount);
+    }
+
+    /**
+     * @return most recent resource usage of every session, empty when monitoring is disabled
+     */
+    public List<Cr24ResourceUsage> getResourceUsages() {
+        if( resourceMonitor == null ){
+            return Collections.emptyList();
+        }
+        return resourceMonitor.getUsages();
+    }
+
+    /**
+     * Quits all idle instances and every instance that gets given back afterwards.
+     */
+    @Override
+    public void close() {
+        List<PooledSession> sessionsToDestroy;
+        synchronized(this){
+            if( closed ){
+                return;
+            }
+            closed = true;
+            sessionsToDestroy = new ArrayList<>(idleSessions);
+            totalSessions -= idleSessions.size();
+            idleSessions.clear();
+            notifyAll();
+        }
+        maintenance.shutdownNow();
+        sessionsToDestroy.forEach(this::destroySession);
+        if( resourceMonitor != null ){
+            resourceMonitor.close();
+        }
+    }
+
+    private void returnIdle(PooledSession session) {
+        session.lastReturned = System.currentTimeMillis();
+        idleSessions.addFirst(session);
+        notifyAll();
+    }
+
+    private boolean recycle(PooledSession session) {
+        try{
+            configurationBuilder.recycle(session.driver);
+            return true;
+        } catch(IOException | Cr24ConfigurationBuilderException | RuntimeException ex){
+            LOGGER.log(Level.WARNING, "Could not recycle pooled webdriver, quitting it", ex);
+            return false;
+        }
+    }
+
+    private boolean isUnresponsive(PooledSession session) {
+        if( !configurationBuilder.isUnresponsive(session.driver) ){
+            return false;
+        }
+        synchronized(this){
+            unresponsiveCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Quits the session and creates replacements (when below the minimum size) on the maintenance thread, so no borrower
+     * has to wait for this.
+     *
+     * @param session
+     */
+    private void replaceInBackground(PooledSession session) {
+        try{
+            maintenance.execute(() -> {
+                destroySession(session);
+                maintain();
+            });
+        } catch(RejectedExecutionException ex){
+            // pool got closed
+            destroySession(session);
+        }
+    }
+
+    /**
+     * @param session
+     * @param sampleNow false uses the most recent sample of the monitor
+     *
+     * @return
+     */
+    private boolean exceedsResourceThresholds(PooledSession session, boolean sampleNow) {
+        if( resourceMonitor == null ){
+            return false;
+        }
+        if( sampleNow ){
+            resourceMonitor.sample(session.driver);
+        }
+        if( !resourceMonitor.exceedsThresholds(session.driver) ){
+            return false;
+        }
+        LOGGER.log(Level.INFO, "Quitting pooled webdriver exceeding the resource thresholds: {0}", resourceMonitor.getUsage(session.driver));
+        synchronized(this){
+            exceededCount++;
+        }
+        return true;
+    }
+
+    private ChromeDriver markBorrowed(PooledSession session, long borrowStart) {
+        session.uses++;
+        borrowedSessions.put(session.driver, session);
+
+        long borrowNanos = System.nanoTime() - borrowStart;
+        borrowCount++;
+        totalBorrowNanos += borrowNanos;
+        maxBorrowNanos = Math.max(maxBorrowNanos, borrowNanos);
+        return session.driver;
+    }
+
+    private PooledSession createSession() throws IOException, Cr24ConfigurationBuilderException {
+        try{
+            ChromeDriver driver = configurationBuilder.build();
+            synchronized(this){
+                createdCount++;
+            }
+            if( resourceMonitor != null ){
+                try{
+                    resourceMonitor.watch(driver);
+                } catch(RuntimeException ex){
+                    LOGGER.log(Level.WARNING, "Could not monitor resource usage of pooled webdriver", ex);
+                }
+            }
+            return new PooledSession(driver);
+        } catch(IOException | Cr24ConfigurationBuilderException | RuntimeException ex){
+            // free the reserved slot
+            synchronized(this){
+                totalSessions--;
+                notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    private void destroySession(PooledSession session) {
+        if( resourceMonitor != null ){
+            resourceMonitor.unwatch(session.driver);
+        }
+        try{
+            session.driver.quit();
+        } catch(WebDriverException ex){
+            LOGGER.log(Level.FINE, "Could not quit pooled webdriver", ex);
+        }
+        synchronized(this){
+            destroyedCount++;
+        }
+    }
+
+    private void maintain() {
+        List<PooledSession> sessionsToDestroy = new ArrayList<>();
+        int sessionsToCreate;
+        synchronized(this){
+            if( closed ){
+                return;
+            }
+            long evictBefore = System.currentTimeMillis() - poolConfiguration.getMaxIdleTime();
+            // oldest idle sessions are at the end
+            Iterator<PooledSession> idleIterator = idleSessions.descendingIterator();
+            while( idleIterator.hasNext() && totalSessions > poolConfiguration.getMinSize() ){
+                PooledSession idleSession = idleIterator.next();
+                if( idleSession.lastReturned > evictBefore ){
+                    break;
+                }
+                idleIterator.remove();
+                totalSessions--;
+                sessionsToDestroy.add(idleSession);
+            }
+            // idle browsers should not use resources at all, these are broken (e.g. some runaway script)
+            Iterator<PooledSession> brokenIterator = idleSessions.iterator();
+            while( brokenIterator.hasNext() ){
+                PooledSession idleSession = brokenIterator.next();
+                if( isUnresponsive(idleSession) || exceedsResourceThresholds(idleSession, false) ){
+                    brokenIterator.remove();
+                    totalSessions--;
+                    sessionsToDestroy.add(idleSession);
+                }
+            }
+            sessionsToCreate = Math.max(0, poolConfiguration.getMinSize() - totalSessions);
+            totalSessions += sessionsToCreate;
+        }
+        sessionsToDestroy.forEach(this::destroySession);
+
+        for( int i = 0; i < sessionsToCreate; i++ ){
+            try{
+                PooledSession createdSession = createSession();
+                boolean poolClosed;
+                synchronized(this){
+                    poolClosed = closed;
+                    if( poolClosed ){
+                        totalSessions--;
+                    } else {
+                        idleSessions.addLast(createdSession);
+                        notifyAll();
+                    }
+                }
+                if( poolClosed ){
+                    destroySession(createdSession);
+                }
+            } catch(IOException | Cr24ConfigurationBuilderException | RuntimeException ex){
+                LOGGER.log(Level.WARNING, "Could not prefill webdriver pool", ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+/**
+ * Contains the sizing and lifetime settings of a Cr24DriverPool.
+ *
+ * @author Danny Althoff
+ */
+public final class Cr24DriverPoolConfiguration {
+
+    private int minSize = 0;
+    private int maxSize = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private long borrowTimeout = 5 * 60 * 1000L;
+    private long maxIdleTime = 5 * 60 * 1000L;
+    private long evictionInterval = 30 * 1000L;
+
+    // 0 means unlimited
+    private int maxUsesPerSession = 0;
+
+    private boolean recycleSessions = false;
+
+    // null disables monitoring
+    private Cr24ResourceMonitorConfiguration resourceMonitorConfiguration = null;
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Amount of sessions to keep running, even when they are idle.
+     *
+     * @param minSize
+     */
+    public void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Maximum amount of sessions, idle and borrowed ones together.
+     *
+     * @param maxSize
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    /**
+     * Milliseconds to wait for a free session when the pool is saturated.
+     *
+     * @param borrowTimeout
+     */
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * Milliseconds a session may stay idle before getting evicted (as long as more than the minimum size are running).
+     *
+     * @param maxIdleTime
+     */
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    public long getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    public void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+
+    public int getMaxUsesPerSession() {
+        return maxUsesPerSession;
+    }
+
+    /**
+     * After this amount of borrows a session gets quit instead of being returned into the pool, 0 means unlimited.
+     *
+     * @param maxUsesPerSession
+     */
+    public void setMaxUsesPerSession(int maxUsesPerSession) {
+        this.maxUsesPerSession = maxUsesPerSession;
+    }
+
+    public boolean isRecycleSessions() {
+        return recycleSessions;
+    }
+
+    /**
+     * Reset sessions when they are given back (see Cr24ConfigurationBuilder::recycle), so the next borrower does not see
+     * cookies, storages or windows of the previous one. Sessions which could not be reset get quit.
+     *
+     * @param recycleSessions
+     */
+    public void setRecycleSessions(boolean recycleSessions) {
+        this.recycleSessions = recycleSessions;
+    }
+
+    public Cr24ResourceMonitorConfiguration getResourceMonitorConfiguration() {
+        return resourceMonitorConfiguration;
+    }
+
+    /**
+     * Monitor the resource usage of all sessions (requires /proc, Linux). Sessions exceeding the thresholds when being
+     * given back get recycled (when enabled) and quit if this does not bring them below the thresholds, idle ones get
+     * quit. Null disables monitoring.
+     *
+     * @param resourceMonitorConfiguration
+     */
+    public void setResourceMonitorConfiguration(Cr24ResourceMonitorConfiguration resourceMonitorConfiguration) {
+        this.resourceMonitorConfiguration = resourceMonitorConfiguration;
+    }
+
+    public Cr24DriverPoolConfiguration copy() {
+        Cr24DriverPoolConfiguration poolConfiguration = new Cr24DriverPoolConfiguration();
+
+        poolConfiguration.minSize = this.minSize;
+        poolConfiguration.maxSize = this.maxSize;
+
+        poolConfiguration.borrowTimeout = this.borrowTimeout;
+        poolConfiguration.maxIdleTime = this.maxIdleTime;
+        poolConfiguration.evictionInterval = this.evictionInterval;
+
+        poolConfiguration.maxUsesPerSession = this.maxUsesPerSession;
+        poolConfiguration.recycleSessions = this.recycleSessions;
+        poolConfiguration.resourceMonitorConfiguration = this.resourceMonitorConfiguration == null ? null : this.resourceMonitorConfiguration.copy();
+
+        return poolConfiguration;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of the counters of a Cr24DriverPool at the time of calling Cr24DriverPool::getMetrics.
+ *
+ * @author Danny Althoff
+ */
+public final class Cr24DriverPoolMetrics {
+
+    private final int maxSize;
+    private final int idle;
+    private final int borrowed;
+    private final long borrowCount;
+    private final long waitCount;
+    private final long timeoutCount;
+    private final long totalBorrowNanos;
+    private final long maxBorrowNanos;
+    private final long createdCount;
+    private final long destroyedCount;
+    private final long exceededCount;
+    private final long unresponsiveCount;
+
+    Cr24DriverPoolMetrics(int maxSize, int idle, int borrowed, long borrowCount, long waitCount, long timeoutCount, long totalBorrowNanos, long maxBorrowNanos, long createdCount, long destroyedCount, long exceededCount, long unresponsiveCount) {
+        this.maxSize = maxSize;
+        this.idle = idle;
+        this.borrowed = borrowed;
+        this.borrowCount = borrowCount;
+        this.waitCount = waitCount;
+        this.timeoutCount = timeoutCount;
+        this.totalBorrowNanos = totalBorrowNanos;
+        this.maxBorrowNanos = maxBorrowNanos;
+        this.createdCount = createdCount;
+        this.destroyedCount = destroyedCount;
+        this.exceededCount = exceededCount;
+        this.unresponsiveCount = unresponsiveCount;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getIdle() {
+        return idle;
+    }
+
+    public int getBorrowed() {
+        return borrowed;
+    }
+
+    public long getBorrowCount() {
+        return borrowCount;
+    }
+
+    /**
+     * @return amount of borrows that had to wait because all sessions were in use
+     */
+    public long getWaitCount() {
+        return waitCount;
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public long getCreatedCount() {
+        return createdCount;
+    }
+
+    public long getDestroyedCount() {
+        return destroyedCount;
+    }
+
+    /**
+     * @return amount of sessions quit because of exceeding the resource thresholds
+     */
+    public long getExceededCount() {
+        return exceededCount;
+    }
+
+    /**
+     * @return amount of sessions replaced because the watchdog found them hanging
+     */
+    public long getUnresponsiveCount() {
+        return unresponsiveCount;
+    }
+
+    public double getAverageBorrowLatency(TimeUnit unit) {
+        if( borrowCount == 0 ){
+            return 0;
+        }
+        return (double) unit.convert(totalBorrowNanos, TimeUnit.NANOSECONDS) / borrowCount;
+    }
+
+    public long getMaxBorrowLatency(TimeUnit unit) {
+        return unit.convert(maxBorrowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return borrowed sessions in relation to the maximum pool size, 1.0 means every further borrow has to wait
+     */
+    public double getSaturation() {
+        if( maxSize == 0 ){
+            return 1;
+        }
+        return (double) borrowed / maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Cr24DriverPoolMetrics{maxSize=%d, idle=%d, borrowed=%d, saturation=%.2f, borrows=%d, waits=%d, timeouts=%d, avgBorrowMs=%.2f, maxBorrowMs=%d, created=%d, destroyed=%d, exceeded=%d, unresponsive=%d}",
+                maxSize, idle, borrowed, getSaturation(), borrowCount, waitCount, timeoutCount, getAverageBorrowLatency(TimeUnit.MICROSECONDS) / 1000d, getMaxBorrowLatency(TimeUnit.MILLISECONDS), createdCount, destroyedCount, exceededCount, unresponsiveCount);
+    }
+
+}
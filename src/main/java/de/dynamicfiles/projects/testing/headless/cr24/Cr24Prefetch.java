@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills the download- and extraction-cache ahead of time, e.g. when baking CI images, so running tests never have to
+ * download anything.
+ * <p>
+ * Usage: {@code java -cp ... de.dynamicfiles.projects.testing.headless.cr24.Cr24Prefetch os:bits[:webdriverVersion[:browserSnapshot]] ...}
+ * with os being one of "win", "linux" or "mac", e.g. {@code linux:64 win:32:2.33}.
+ *
+ * @author Danny Althoff
+ */
+public final class Cr24Prefetch {
+
+    private Cr24Prefetch() {
+    }
+
+    /**
+     * Provisions all given configurations in parallel, without launching any browser.
+     *
+     * @param configurations
+     *
+     * @return reports of all provisioned artifacts
+     *
+     * @throws IOException the first failure, all others are added as suppressed exceptions
+     */
+    public static List<Cr24ArtifactReport> prefetch(Collection<Cr24ConfigurationBuilder> configurations) throws IOException {
+        List<CompletableFuture<List<Cr24ArtifactReport>>> prefetches = new ArrayList<>();
+        configurations.forEach(configuration -> prefetches.add(configuration.startPrefetch()));
+
+        List<Cr24ArtifactReport> reports = new ArrayList<>();
+        IOException failure = null;
+        for( CompletableFuture<List<Cr24ArtifactReport>> prefetch : prefetches ){
+            try{
+                reports.addAll(prefetch.join());
+            } catch(CompletionException ex){
+                IOException cause = ex.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) ex.getCause()).getCause() : new IOException(ex.getCause());
+                if( failure == null ){
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if( failure != null ){
+            throw failure;
+        }
+        return reports;
+    }
+
+    static Cr24ConfigurationBuilder parseConfiguration(String combination) {
+        String[] parts = combination.split(":");
+        if( parts.length < 2 || parts.length > 4 || !("32".equals(parts[1]) || "64".equals(parts[1])) ){
+            throw new IllegalArgumentException("Invalid combination: " + combination);
+        }
+        return Cr24DriverBuilder.getDefaultConfiguration().customize(configuration -> {
+            // bitness has to be known before choosing the binaries, as it selects the default browser snapshot
+            configuration.set64bit("64".equals(parts[1]));
+            switch( parts[0] ){
+                case "win":
+                    configuration.useBinariesForWindows();
+                    break;
+                case "linux":
+                    configuration.useBinariesForLinux();
+                    break;
+                case "mac":
+                    configuration.useBinariesForMacOS();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operating system: " + parts[0]);
+            }
+            if( parts.length > 2 && !parts[2].isEmpty() ){
+                configuration.setWebdriverVersionCallback(() -> parts[2]);
+            }
+            if( parts.length > 3 && !parts[3].isEmpty() ){
+                configuration.setWebbrowserSnapshotVersionCallback(() -> parts[3]);
+            }
+        });
+    }
+
+    public static void main(String[] args) {
+        List<Cr24ConfigurationBuilder> configurations = new ArrayList<>();
+        try{
+            for( String combination : args ){
+                configurations.add(parseConfiguration(combination));
+            }
+        } catch(IllegalArgumentException ex){
+            System.err.println(ex.getMessage());
+            configurations.clear();
+        }
+        if( configurations.isEmpty() ){
+            System.err.println("Usage: Cr24Prefetch os:bits[:webdriverVersion[:browserSnapshot]] ... (os: win, linux, mac; bits: 32, 64)");
+            System.exit(2);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        try{
+            List<Cr24ArtifactReport> reports = prefetch(configurations);
+            reports.forEach(System.out::println);
+            long downloadedBytes = reports.stream().mapToLong(Cr24ArtifactReport::getDownloadedBytes).sum();
+            System.out.println(String.format("Prefetched %d artifacts, %d bytes downloaded in %d ms", reports.size(), downloadedBytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+        } catch(IOException ex){
+            System.err.println("Prefetching failed: " + ex.getMessage());
+            for( Throwable suppressed : ex.getSuppressed() ){
+                System.err.println("Prefetching failed: " + suppressed.getMessage());
+            }
+            System.exit(1);
+        }
+    }
+
+}
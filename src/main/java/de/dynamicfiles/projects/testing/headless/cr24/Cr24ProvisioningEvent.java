@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing of one phase while building some ChromeDriver, passed to all registered provisioning listeners.
+ *
+ * @author Danny Althoff
+ */
+public final class Cr24ProvisioningEvent {
+
+    public enum Phase {
+        /**
+         * Checking the cache for the archive, including waiting for other processes provisioning the same archive and
+         * reusing the result of an earlier build.
+         */
+        CACHE_LOOKUP,
+        /**
+         * Downloading the archive, when extracting while downloading this includes the extraction.
+         */
+        DOWNLOAD,
+        /**
+         * Extracting the archive, a cache hit means the existing extraction got reused.
+         */
+        EXTRACTION,
+        /**
+         * Running the executable callback, e.g. setting file permissions.
+         */
+        EXECUTABLE_PREPARATION,
+        /**
+         * Launching chromedriver and the browser until the session is ready.
+         */
+        SESSION_START,
+        /**
+         * The whole build, a cache hit means a standby session got handed out.
+         */
+        BUILD,
+        /**
+         * Resetting a running session for reuse, a failure means the session has to be quit.
+         */
+        SESSION_RECYCLE
+    }
+
+    private final Phase phase;
+    private final String artifactName;
+    private final long durationNanos;
+    private final long bytes;
+    private final long entries;
+    private final boolean cacheHit;
+    private final boolean successful;
+
+    Cr24ProvisioningEvent(Phase phase, String artifactName, long durationNanos, long bytes, long entries, boolean cacheHit, boolean successful) {
+        this.phase = phase;
+        this.artifactName = artifactName;
+        this.durationNanos = durationNanos;
+        this.bytes = bytes;
+        this.entries = entries;
+        this.cacheHit = cacheHit;
+        this.successful = successful;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return "webdriver" or "browser", null for phases not belonging to one artifact
+     */
+    public String getArtifactName() {
+        return artifactName;
+    }
+
+    public long getDuration(TimeUnit unit) {
+        return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return downloaded or extracted bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return extracted archive entries
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    /**
+     * @return bytes per second
+     */
+    public double getThroughput() {
+        return durationNanos == 0 ? 0 : bytes * 1e9 / durationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%s: %d ms, %d bytes, %d entries%s%s", phase, artifactName == null ? "" : " " + artifactName, getDuration(TimeUnit.MILLISECONDS), bytes, entries, cacheHit ? ", cache hit" : "", successful ? "" : ", failed");
+    }
+
+}
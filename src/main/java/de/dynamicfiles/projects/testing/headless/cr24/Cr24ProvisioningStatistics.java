@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the provisioning events of many builds and reports percentiles per phase and artifact. Only the most recent
+ * durations are kept per phase and artifact, so memory stays bounded when running for a long time.
+ * <p>
+ * Register it via Cr24Configuration::addProvisioningListener, the same instance can be shared between configurations.
+ *
+ * @author Danny Althoff
+ */
+public final class Cr24ProvisioningStatistics implements Cr24Configuration.ProvisioningListener {
+
+    private static final int DEFAULT_RECENT_SAMPLES = 10000;
+
+    private static final class Samples {
+
+        private final long[] recentDurations;
+        private int nextSample = 0;
+        private long count = 0;
+        private long failures = 0;
+        private long cacheHits = 0;
+        private long totalNanos = 0;
+        private long totalBytes = 0;
+        private long totalEntries = 0;
+        private long maxNanos = 0;
+
+        Samples(int recentSamples) {
+            recentDurations = new long[recentSamples];
+        }
+
+        void add(Cr24ProvisioningEvent event) {
+            long durationNanos = event.getDuration(TimeUnit.NANOSECONDS);
+            recentDurations[nextSample] = durationNanos;
+            nextSample = (nextSample + 1) % recentDurations.length;
+            count++;
+            if( !event.isSuccessful() ){
+                failures++;
+            }
+            if( event.isCacheHit() ){
+                cacheHits++;
+            }
+            totalNanos += durationNanos;
+            totalBytes += event.getBytes();
+            totalEntries += event.getEntries();
+            maxNanos = Math.max(maxNanos, durationNanos);
+        }
+
+        long percentile(double percentile) {
+            int size = (int) Math.min(count, recentDurations.length);
+            if( size == 0 ){
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(recentDurations, size);
+            Arrays.sort(sorted);
+            // nearest rank
+            int rank = (int) Math.ceil(percentile / 100 * size);
+            return sorted[Math.max(0, Math.min(size, rank) - 1)];
+        }
+    }
+
+    private final int recentSamples;
+    private final Map<String, Samples> samples = new LinkedHashMap<>();
+
+    public Cr24ProvisioningStatistics() {
+        this(DEFAULT_RECENT_SAMPLES);
+    }
+
+    /**
+     * @param recentSamples amount of durations kept per phase and artifact for calculating percentiles
+     */
+    public Cr24ProvisioningStatistics(int recentSamples) {
+        this.recentSamples = recentSamples;
+    }
+
+    private static String toKey(Cr24ProvisioningEvent.Phase phase, String artifactName) {
+        return artifactName == null ? phase.name() : phase.name() + " " + artifactName;
+    }
+
+    @Override
+    public synchronized void onEvent(Cr24ProvisioningEvent event) {
+        samples.computeIfAbsent(toKey(event.getPhase(), event.getArtifactName()), key -> new Samples(recentSamples)).add(event);
+    }
+
+    public synchronized long getCount(Cr24ProvisioningEvent.Phase phase, String artifactName) {
+        Samples phaseSamples = samples.get(toKey(phase, artifactName));
+        return phaseSamples == null ? 0 : phaseSamples.count;
+    }
+
+    public synchronized long getFailures(Cr24ProvisioningEvent.Phase phase, String artifactName) {
+        Samples phaseSamples = samples.get(toKey(phase, artifactName));
+        return phaseSamples == null ? 0 : phaseSamples.failures;
+    }
+
+    /**
+     * @param phase
+     * @param artifactName "webdriver", "browser" or null for phases not belonging to one artifact
+     * @param percentile between 0 and 100, e.g. 99 for the 99th percentile
+     * @param unit
+     *
+     * @return
+     */
+    public synchronized long getPercentile(Cr24ProvisioningEvent.Phase phase, String artifactName, double percentile, TimeUnit unit) {
+        Samples phaseSamples = samples.get(toKey(phase, artifactName));
+        return phaseSamples == null ? 0 : unit.convert(phaseSamples.percentile(percentile), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param artifactName
+     *
+     * @return share of cache lookups finding the archive, between 0 and 1
+     */
+    public synchronized double getCacheHitRatio(String artifactName) {
+        Samples phaseSamples = samples.get(toKey(Cr24ProvisioningEvent.Phase.CACHE_LOOKUP, artifactName));
+        return phaseSamples == null || phaseSamples.count == 0 ? 0 : (double) phaseSamples.cacheHits / phaseSamples.count;
+    }
+
+    /**
+     * @param artifactName
+     *
+     * @return average download throughput in bytes per second
+     */
+    public synchronized double getDownloadThroughput(String artifactName) {
+        Samples phaseSamples = samples.get(toKey(Cr24ProvisioningEvent.Phase.DOWNLOAD, artifactName));
+        return phaseSamples == null || phaseSamples.totalNanos == 0 ? 0 : phaseSamples.totalBytes * 1e9 / phaseSamples.totalNanos;
+    }
+
+    public synchronized void reset() {
+        samples.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder report = new StringBuilder(String.format("%-32s %8s %8s %10s %10s %10s %10s %14s %10s%n", "phase", "count", "failed", "p50 ms", "p90 ms", "p99 ms", "max ms", "bytes", "hit ratio"));
+        samples.forEach((key, phaseSamples) -> report.append(String.format("%-32s %8d %8d %10.1f %10.1f %10.1f %10.1f %14d %10.2f%n",
+                key,
+                phaseSamples.count,
+                phaseSamples.failures,
+                phaseSamples.percentile(50) / 1e6,
+                phaseSamples.percentile(90) / 1e6,
+                phaseSamples.percentile(99) / 1e6,
+                phaseSamples.maxNanos / 1e6,
+                phaseSamples.totalBytes,
+                (double) phaseSamples.cacheHits / phaseSamples.count)));
+        return report.toString();
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openqa.selenium.chrome.ChromeDriver;
+
+/**
+ * Samples CPU and memory usage of the browser processes belonging to the watched sessions, by reading /proc (Linux).
+ * The processes of a session are found via the profile folder on the command line of the browser, together with all
+ * their descendants (renderers, GPU process, ...).
+ * <p>
+ * Sessions exceeding the configured thresholds are only reported, Cr24DriverPool uses this for recycling or quitting
+ * them. Please call "close" after usage.
+ *
+ * @author Danny Althoff
+ */
+public class Cr24ResourceMonitor implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(Cr24ResourceMonitor.class.getName());
+
+    private static final String USER_DATA_DIR_PREFIX = "--user-data-dir=";
+
+    private static final class WatchedSession {
+
+        private final String sessionId;
+        private final String userDataDir;
+        private List<Integer> browserProcesses = Collections.emptyList();
+        private Map<Integer, Long> previousCpuTicks = null;
+        private long previousSampleNanos = 0;
+        private double cpuLoad = 0;
+        private Cr24ResourceUsage usage = null;
+        private boolean exceeded = false;
+
+        WatchedSession(String sessionId, String userDataDir) {
+            this.sessionId = sessionId;
+            this.userDataDir = userDataDir;
+        }
+    }
+
+    private final Cr24ResourceMonitorConfiguration monitorConfiguration;
+    private final Map<ChromeDriver, WatchedSession> sessions = new IdentityHashMap<>();
+
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cr24-resource-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Cr24ResourceMonitor(Cr24ResourceMonitorConfiguration monitorConfiguration) {
+        if( monitorConfiguration.getSampleInterval() < 1 ){
+            throw new IllegalArgumentException("Sample interval has to be at least 1 millisecond");
+        }
+        this.monitorConfiguration = monitorConfiguration.copy();
+        // no early return, javac 8 would consider the lambda of the sampler field as not definitely assigned
+        if( ProcessTable.isSupported() ){
+            sampler.scheduleWithFixedDelay(this::sampleAll, this.monitorConfiguration.getSampleInterval(), this.monitorConfiguration.getSampleInterval(), TimeUnit.MILLISECONDS);
+        } else {
+            LOGGER.log(Level.INFO, "No /proc filesystem available, resource usage of sessions can not be monitored");
+        }
+    }
+
+    /**
+     * Starts sampling the browser processes of the given session.
+     *
+     * @param driver
+     *
+     * @throws IllegalArgumentException when the profile folder of the session is unknown
+     */
+    public void watch(ChromeDriver driver) {
+        Object chromeCapabilities = driver.getCapabilities().getCapability("chrome");
+        Object userDataDir = chromeCapabilities instanceof Map ? ((Map<?, ?>) chromeCapabilities).get("userDataDir") : null;
+        if( userDataDir == null ){
+            throw new IllegalArgumentException("Could not find the profile folder of session " + driver.getSessionId());
+        }
+        synchronized(this){
+            sessions.put(driver, new WatchedSession(String.valueOf(driver.getSessionId()), userDataDir.toString()));
+        }
+    }
+
+    public synchronized void unwatch(ChromeDriver driver) {
+        sessions.remove(driver);
+    }
+
+    /**
+     * @param driver
+     *
+     * @return most recent sample, null when the session is not watched or not sampled yet
+     */
+    public synchronized Cr24ResourceUsage getUsage(ChromeDriver driver) {
+        WatchedSession session = sessions.get(driver);
+        return session == null ? null : session.usage;
+    }
+
+    /**
+     * @return most recent sample of every watched session
+     */
+    public synchronized List<Cr24ResourceUsage> getUsages() {
+        List<Cr24ResourceUsage> usages = new ArrayList<>();
+        for( WatchedSession session : sessions.values() ){
+            if( session.usage != null ){
+                usages.add(session.usage);
+            }
+        }
+        return usages;
+    }
+
+    /**
+     * Samples the given session right now instead of waiting for the next interval.
+     *
+     * @param driver
+     *
+     * @return the new sample, null when the session is not watched or /proc is not available
+     */
+    public synchronized Cr24ResourceUsage sample(ChromeDriver driver) {
+        WatchedSession session = sessions.get(driver);
+        if( session == null || !ProcessTable.isSupported() ){
+            return null;
+        }
+        sample(session, ProcessTable.read());
+        return session.usage;
+    }
+
+    /**
+     * @param driver
+     *
+     * @return true when the most recent sample exceeds any threshold
+     */
+    public synchronized boolean exceedsThresholds(ChromeDriver driver) {
+        WatchedSession session = sessions.get(driver);
+        return session != null && session.usage != null && exceedsThresholds(session.usage);
+    }
+
+    @Override
+    public void close() {
+        sampler.shutdownNow();
+        synchronized(this){
+            sessions.clear();
+        }
+    }
+
+    private boolean exceedsThresholds(Cr24ResourceUsage usage) {
+        long maxResidentBytes = monitorConfiguration.getMaxResidentBytes();
+        double maxCpuLoad = monitorConfiguration.getMaxCpuLoad();
+        return (maxResidentBytes > 0 && usage.getResidentBytes() > maxResidentBytes) || (maxCpuLoad > 0 && usage.getCpuLoad() > maxCpuLoad);
+    }
+
+    private synchronized void sampleAll() {
+        if( sessions.isEmpty() ){
+            return;
+        }
+        try{
+            ProcessTable processTable = ProcessTable.read();
+            sessions.values().forEach(session -> sample(session, processTable));
+        } catch(RuntimeException ex){
+            // the next interval has to run anyway
+            LOGGER.log(Level.WARNING, "Could not sample resource usage", ex);
+        }
+    }
+
+    private void sample(WatchedSession session, ProcessTable processTable) {
+        if( session.browserProcesses.stream().noneMatch(processTable::contains) ){
+            session.browserProcesses = processTable.findByArgument(USER_DATA_DIR_PREFIX + session.userDataDir);
+        }
+        Set<Integer> processes = processTable.getTree(session.browserProcesses);
+
+        long residentBytes = 0;
+        Map<Integer, Long> cpuTicks = new HashMap<>();
+        for( Integer pid : processes ){
+            residentBytes += ProcessTable.readResidentBytes(pid);
+            cpuTicks.put(pid, processTable.getCpuTicks(pid));
+        }
+
+        long sampleNanos = System.nanoTime();
+        long elapsedNanos = sampleNanos - session.previousSampleNanos;
+        // samples taken shortly after the previous one would make short bursts look like permanent load
+        if( session.previousCpuTicks == null || elapsedNanos >= TimeUnit.MILLISECONDS.toNanos(monitorConfiguration.getSampleInterval()) / 2 ){
+            if( session.previousCpuTicks != null ){
+                long usedTicks = 0;
+                for( Map.Entry<Integer, Long> entry : cpuTicks.entrySet() ){
+                    // processes started since the previous sample count completely
+                    usedTicks += Math.max(0, entry.getValue() - session.previousCpuTicks.getOrDefault(entry.getKey(), 0L));
+                }
+                session.cpuLoad = usedTicks / (double) ProcessTable.CLOCK_TICKS_PER_SECOND / (elapsedNanos / 1e9);
+            }
+            session.previousCpuTicks = cpuTicks;
+            session.previousSampleNanos = sampleNanos;
+        }
+
+        session.usage = new Cr24ResourceUsage(session.sessionId, processes.size(), residentBytes, session.cpuLoad, System.currentTimeMillis());
+        boolean exceeded = exceedsThresholds(session.usage);
+        if( exceeded && !session.exceeded ){
+            LOGGER.log(Level.WARNING, "Session exceeds resource thresholds: {0}", session.usage);
+        }
+        session.exceeded = exceeded;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+/**
+ * Contains the sampling interval and thresholds of a Cr24ResourceMonitor.
+ *
+ * @author Danny Althoff
+ */
+public final class Cr24ResourceMonitorConfiguration {
+
+    private long sampleInterval = 5 * 1000L;
+
+    // 0 means unlimited
+    private long maxResidentBytes = 0;
+    private double maxCpuLoad = 0;
+
+    public long getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Milliseconds between two samples of every watched session.
+     *
+     * @param sampleInterval
+     */
+    public void setSampleInterval(long sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+
+    public long getMaxResidentBytes() {
+        return maxResidentBytes;
+    }
+
+    /**
+     * Sessions whose browser processes use more resident memory exceed the thresholds, 0 means unlimited.
+     *
+     * @param maxResidentBytes
+     */
+    public void setMaxResidentBytes(long maxResidentBytes) {
+        this.maxResidentBytes = maxResidentBytes;
+    }
+
+    public double getMaxCpuLoad() {
+        return maxCpuLoad;
+    }
+
+    /**
+     * Sessions whose browser processes used more CPU during the last sample interval exceed the thresholds (1.0 means
+     * one fully used core), 0 means unlimited.
+     *
+     * @param maxCpuLoad
+     */
+    public void setMaxCpuLoad(double maxCpuLoad) {
+        this.maxCpuLoad = maxCpuLoad;
+    }
+
+    public Cr24ResourceMonitorConfiguration copy() {
+        Cr24ResourceMonitorConfiguration monitorConfiguration = new Cr24ResourceMonitorConfiguration();
+
+        monitorConfiguration.sampleInterval = this.sampleInterval;
+
+        monitorConfiguration.maxResidentBytes = this.maxResidentBytes;
+        monitorConfiguration.maxCpuLoad = this.maxCpuLoad;
+
+        return monitorConfiguration;
+    }
+
+}
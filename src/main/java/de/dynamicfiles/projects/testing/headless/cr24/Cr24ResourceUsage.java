@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+/**
+ * Resources used by the browser processes of one session at the time of sampling.
+ *
+ * @author Danny Althoff
+ */
+public final class Cr24ResourceUsage {
+
+    private final String sessionId;
+    private final int processCount;
+    private final long residentBytes;
+    private final double cpuLoad;
+    private final long sampledAt;
+
+    Cr24ResourceUsage(String sessionId, int processCount, long residentBytes, double cpuLoad, long sampledAt) {
+        this.sessionId = sessionId;
+        this.processCount = processCount;
+        this.residentBytes = residentBytes;
+        this.cpuLoad = cpuLoad;
+        this.sampledAt = sampledAt;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return browser process and all its helper processes, 0 when the browser is not running anymore
+     */
+    public int getProcessCount() {
+        return processCount;
+    }
+
+    /**
+     * Sum of the resident memory of all processes. Memory shared between them is counted once per process, so this
+     * overestimates the real footprint, but grows the same way.
+     *
+     * @return
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return CPU time used since the previous sample in relation to the elapsed time, 1.0 means one fully used core
+     */
+    public double getCpuLoad() {
+        return cpuLoad;
+    }
+
+    /**
+     * @return milliseconds since epoch
+     */
+    public long getSampledAt() {
+        return sampledAt;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Cr24ResourceUsage{session=%s, processes=%d, residentMiB=%.1f, cpuLoad=%.2f}", sessionId, processCount, residentBytes / 1024d / 1024d, cpuLoad);
+    }
+
+}
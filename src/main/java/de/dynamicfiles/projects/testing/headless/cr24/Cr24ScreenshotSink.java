@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.TakesScreenshot;
+
+/**
+ * Takes screenshots without making the calling thread wait for decoding, converting and writing them. The calling
+ * thread only fetches the encoded image from the browser, everything else is done by background workers.
+ * <p>
+ * The queue between both is bounded: when it is full, capturing waits for free space (slowing down the test instead of
+ * growing the heap) and drops the screenshot when no space got free in time. Please call "close" after usage, which
+ * waits until all queued screenshots are written.
+ *
+ * @author Danny Althoff
+ */
+public class Cr24ScreenshotSink implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(Cr24ScreenshotSink.class.getName());
+
+    private static final long WORKER_POLL_INTERVAL = 100;
+
+    private static final class QueuedScreenshot {
+
+        private final String name;
+        // decoding happens on the worker
+        private final String base64Png;
+        private final CompletableFuture<Path> result = new CompletableFuture<>();
+
+        QueuedScreenshot(String name, String base64Png) {
+            this.name = name;
+            this.base64Png = base64Png;
+        }
+    }
+
+    private final Cr24ScreenshotSinkConfiguration sinkConfiguration;
+    private final BlockingQueue<QueuedScreenshot> queue;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    private int maxQueueDepth = 0;
+    private long capturedCount = 0;
+    private long writtenCount = 0;
+    private long droppedCount = 0;
+    private long failedCount = 0;
+    private long waitCount = 0;
+    private long totalWaitNanos = 0;
+    private long totalCaptureNanos = 0;
+    private long totalProcessingNanos = 0;
+
+    public Cr24ScreenshotSink(Cr24ScreenshotSinkConfiguration sinkConfiguration) {
+        if( sinkConfiguration.getQueueCapacity() < 1 || sinkConfiguration.getWorkerThreads() < 1 ){
+            throw new IllegalArgumentException("Queue capacity and amount of worker threads have to be at least 1");
+        }
+        this.sinkConfiguration = sinkConfiguration.copy();
+        this.queue = new ArrayBlockingQueue<>(this.sinkConfiguration.getQueueCapacity());
+        for( int i = 0; i < this.sinkConfiguration.getWorkerThreads(); i++ ){
+            Thread worker = new Thread(this::work, "cr24-screenshot-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Takes some screenshot and queues it for being written into the target folder, named after the given name plus the
+     * extension of the configured format.
+     *
+     * @param driver
+     * @param name filename without extension, existing files get replaced
+     *
+     * @return completes with the written file, fails when the screenshot got dropped or could not be written
+     */
+    public CompletableFuture<Path> capture(TakesScreenshot driver, String name) {
+        if( closed ){
+            throw new IllegalStateException("Screenshot sink is already closed");
+        }
+        long captureStartNanos = System.nanoTime();
+        // this is what the browser delivers, so no work is done here
+        QueuedScreenshot screenshot = new QueuedScreenshot(name, driver.getScreenshotAs(OutputType.BASE64));
+
+        boolean queued = queue.offer(screenshot);
+        long waitNanos = 0;
+        if( !queued && sinkConfiguration.getMaxEnqueueWait() > 0 ){
+            long waitStartNanos = System.nanoTime();
+            try{
+                queued = queue.offer(screenshot, sinkConfiguration.getMaxEnqueueWait(), TimeUnit.MILLISECONDS);
+            } catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+            waitNanos = System.nanoTime() - waitStartNanos;
+        }
+
+        synchronized(this){
+            capturedCount++;
+            totalCaptureNanos += System.nanoTime() - captureStartNanos;
+            if( waitNanos > 0 ){
+                waitCount++;
+                totalWaitNanos += waitNanos;
+            }
+            if( queued ){
+                maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+            } else {
+                droppedCount++;
+            }
+        }
+        if( !queued ){
+            LOGGER.log(Level.FINE, "Screenshot queue is full, dropped {0}", name);
+            screenshot.result.completeExceptionally(new IOException("Screenshot queue is full, dropped " + name));
+        }
+        return screenshot.result;
+    }
+
+    public synchronized Cr24ScreenshotSinkMetrics getMetrics() {
+        return new Cr24ScreenshotSinkMetrics(sinkConfiguration.getQueueCapacity(), queue.size(), maxQueueDepth, capturedCount, writtenCount, droppedCount, failedCount, waitCount, totalWaitNanos, totalCaptureNanos, totalProcessingNanos);
+    }
+
+    /**
+     * Stops accepting screenshots and waits until all queued ones are written.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        boolean interrupted = false;
+        for( Thread worker : workers ){
+            while( worker.isAlive() ){
+                try{
+                    worker.join();
+                } catch(InterruptedException ex){
+                    interrupted = true;
+                }
+            }
+        }
+        // captures racing with closing might have been queued after the workers stopped
+        QueuedScreenshot leftover;
+        while( (leftover = queue.poll()) != null ){
+            synchronized(this){
+                droppedCount++;
+            }
+            leftover.result.completeExceptionally(new IOException("Screenshot sink got closed, dropped " + leftover.name));
+        }
+        if( interrupted ){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work() {
+        while( true ){
+            QueuedScreenshot screenshot;
+            try{
+                screenshot = queue.poll(WORKER_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch(InterruptedException ex){
+                // workers are only stopped by closing the sink
+                continue;
+            }
+            if( screenshot == null ){
+                if( closed && queue.isEmpty() ){
+                    return;
+                }
+                continue;
+            }
+
+            long processingStartNanos = System.nanoTime();
+            try{
+                Path writtenFile = write(screenshot);
+                synchronized(this){
+                    writtenCount++;
+                    totalProcessingNanos += System.nanoTime() - processingStartNanos;
+                }
+                screenshot.result.complete(writtenFile);
+            } catch(IOException | RuntimeException ex){
+                LOGGER.log(Level.WARNING, "Could not write screenshot " + screenshot.name, ex);
+                synchronized(this){
+                    failedCount++;
+                    totalProcessingNanos += System.nanoTime() - processingStartNanos;
+                }
+                screenshot.result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    private Path write(QueuedScreenshot screenshot) throws IOException {
+        byte[] png = Base64.getMimeDecoder().decode(screenshot.base64Png);
+        Path targetFolder = sinkConfiguration.getTargetFolder();
+        Path targetFile = targetFolder.resolve(screenshot.name + "." + sinkConfiguration.getFormat().getExtension());
+
+        byte[] content = png;
+        if( sinkConfiguration.getFormat() != Cr24ScreenshotSinkConfiguration.Format.PNG || sinkConfiguration.getMaxWidth() > 0 ){
+            content = convert(png);
+        }
+
+        Files.createDirectories(targetFolder);
+        // readers of the target folder must never see half-written images
+        Path temporaryFile = Files.createTempFile(targetFolder, screenshot.name, ".tmp");
+        try{
+            Files.write(temporaryFile, content);
+            Files.move(temporaryFile, targetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally{
+            Files.deleteIfExists(temporaryFile);
+        }
+        return targetFile;
+    }
+
+    private byte[] convert(byte[] png) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if( image == null ){
+            throw new IOException("Screenshot is no readable image");
+        }
+        boolean jpeg = sinkConfiguration.getFormat() == Cr24ScreenshotSinkConfiguration.Format.JPEG;
+        int maxWidth = sinkConfiguration.getMaxWidth();
+        int width = maxWidth > 0 && image.getWidth() > maxWidth ? maxWidth : image.getWidth();
+        int height = Math.max(1, (int) Math.round((double) image.getHeight() * width / image.getWidth()));
+
+        if( width != image.getWidth() || jpeg ){
+            // JPEG does not support alpha, so drawing onto an RGB image is needed even without scaling
+            BufferedImage converted = new BufferedImage(width, height, jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = converted.createGraphics();
+            try{
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(image, 0, 0, width, height, null);
+            } finally{
+                graphics.dispose();
+            }
+            image = converted;
+        }
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(png.length);
+        if( !jpeg ){
+            ImageIO.write(image, "png", encoded);
+            return encoded.toByteArray();
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try(ImageOutputStream output = ImageIO.createImageOutputStream(encoded)){
+            ImageWriteParam writeParam = writer.getDefaultWriteParam();
+            writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            writeParam.setCompressionQuality(sinkConfiguration.getCompressionQuality());
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), writeParam);
+        } finally{
+            writer.dispose();
+        }
+        return encoded.toByteArray();
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Contains the queue, worker and image settings of a Cr24ScreenshotSink.
+ *
+ * @author Danny Althoff
+ */
+public final class Cr24ScreenshotSinkConfiguration {
+
+    public enum Format {
+        /**
+         * Lossless, when not downscaling the screenshot is written as delivered by the browser without decoding it.
+         */
+        PNG("png"),
+        /**
+         * Smaller files, uses the compression quality.
+         */
+        JPEG("jpg");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private Path targetFolder = Paths.get("screenshots");
+
+    private int queueCapacity = 64;
+    private int workerThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private long maxEnqueueWait = 5000;
+
+    private Format format = Format.PNG;
+    private float compressionQuality = 0.85f;
+    // 0 means keeping the original size
+    private int maxWidth = 0;
+
+    public Path getTargetFolder() {
+        return targetFolder;
+    }
+
+    public void setTargetFolder(Path targetFolder) {
+        this.targetFolder = targetFolder;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Amount of captured screenshots waiting for being written, every screenshot keeps its encoded image in memory.
+     *
+     * @param queueCapacity
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public long getMaxEnqueueWait() {
+        return maxEnqueueWait;
+    }
+
+    /**
+     * Milliseconds capturing waits for free space when the queue is full, afterwards the screenshot gets dropped. 0 drops
+     * immediately instead of slowing down the test.
+     *
+     * @param maxEnqueueWait
+     */
+    public void setMaxEnqueueWait(long maxEnqueueWait) {
+        this.maxEnqueueWait = maxEnqueueWait;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    public float getCompressionQuality() {
+        return compressionQuality;
+    }
+
+    /**
+     * Quality between 0 and 1, only used for JPEG.
+     *
+     * @param compressionQuality
+     */
+    public void setCompressionQuality(float compressionQuality) {
+        this.compressionQuality = compressionQuality;
+    }
+
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    /**
+     * Wider screenshots get downscaled to this width (keeping the aspect ratio), 0 keeps the original size.
+     *
+     * @param maxWidth
+     */
+    public void setMaxWidth(int maxWidth) {
+        this.maxWidth = maxWidth;
+    }
+
+    public Cr24ScreenshotSinkConfiguration copy() {
+        Cr24ScreenshotSinkConfiguration sinkConfiguration = new Cr24ScreenshotSinkConfiguration();
+
+        sinkConfiguration.targetFolder = this.targetFolder;
+
+        sinkConfiguration.queueCapacity = this.queueCapacity;
+        sinkConfiguration.workerThreads = this.workerThreads;
+        sinkConfiguration.maxEnqueueWait = this.maxEnqueueWait;
+
+        sinkConfiguration.format = this.format;
+        sinkConfiguration.compressionQuality = this.compressionQuality;
+        sinkConfiguration.maxWidth = this.maxWidth;
+
+        return sinkConfiguration;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of the counters of a Cr24ScreenshotSink at the time of calling Cr24ScreenshotSink::getMetrics.
+ *
+ * @author Danny Althoff
+ */
+public final class Cr24ScreenshotSinkMetrics {
+
+    private final int queueCapacity;
+    private final int queueDepth;
+    private final int maxQueueDepth;
+    private final long capturedCount;
+    private final long writtenCount;
+    private final long droppedCount;
+    private final long failedCount;
+    private final long waitCount;
+    private final long totalWaitNanos;
+    private final long totalCaptureNanos;
+    private final long totalProcessingNanos;
+
+    Cr24ScreenshotSinkMetrics(int queueCapacity, int queueDepth, int maxQueueDepth, long capturedCount, long writtenCount, long droppedCount, long failedCount, long waitCount, long totalWaitNanos, long totalCaptureNanos, long totalProcessingNanos) {
+        this.queueCapacity = queueCapacity;
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.capturedCount = capturedCount;
+        this.writtenCount = writtenCount;
+        this.droppedCount = droppedCount;
+        this.failedCount = failedCount;
+        this.waitCount = waitCount;
+        this.totalWaitNanos = totalWaitNanos;
+        this.totalCaptureNanos = totalCaptureNanos;
+        this.totalProcessingNanos = totalProcessingNanos;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return screenshots waiting for being written
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return screenshots taken from the browser, including dropped ones
+     */
+    public long getCapturedCount() {
+        return capturedCount;
+    }
+
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    /**
+     * @return screenshots discarded because the queue stayed full
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @return amount of captures that had to wait for free space in the queue
+     */
+    public long getWaitCount() {
+        return waitCount;
+    }
+
+    public long getTotalWait(TimeUnit unit) {
+        return unit.convert(totalWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit
+     *
+     * @return average time the calling thread spent per screenshot, including waiting for free space
+     */
+    public double getAverageCaptureLatency(TimeUnit unit) {
+        if( capturedCount == 0 ){
+            return 0;
+        }
+        return (double) unit.convert(totalCaptureNanos, TimeUnit.NANOSECONDS) / capturedCount;
+    }
+
+    /**
+     * @param unit
+     *
+     * @return average time a worker spent for decoding, converting and writing one screenshot
+     */
+    public double getAverageProcessingTime(TimeUnit unit) {
+        long processedCount = writtenCount + failedCount;
+        if( processedCount == 0 ){
+            return 0;
+        }
+        return (double) unit.convert(totalProcessingNanos, TimeUnit.NANOSECONDS) / processedCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Cr24ScreenshotSinkMetrics{queueDepth=%d, queueCapacity=%d, maxQueueDepth=%d, captured=%d, written=%d, dropped=%d, failed=%d, waits=%d, totalWaitMs=%d, avgCaptureMs=%.2f, avgProcessingMs=%.2f}",
+                queueDepth, queueCapacity, maxQueueDepth, capturedCount, writtenCount, droppedCount, failedCount, waitCount, getTotalWait(TimeUnit.MILLISECONDS), getAverageCaptureLatency(TimeUnit.MICROSECONDS) / 1000d, getAverageProcessingTime(TimeUnit.MICROSECONDS) / 1000d);
+    }
+
+}
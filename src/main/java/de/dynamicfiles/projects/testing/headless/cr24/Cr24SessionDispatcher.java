@@ -0,0 +1,539 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import com.google.common.collect.ImmutableMap;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.openqa.selenium.chrome.ChromeOptions;
+import org.openqa.selenium.remote.BeanToJsonConverter;
+import org.openqa.selenium.remote.JsonToBeanConverter;
+
+/**
+ * Local WebDriver endpoint, which lets other processes of the same host use one fleet of provisioned chromedriver
+ * processes (nodes) instead of provisioning their own. Clients connect like to any remote WebDriver server:
+ * <pre>
+ * new RemoteWebDriver(new URL(dispatcher.getUrl()), new ChromeOptions())
+ * </pre>
+ * New sessions get routed to the node serving the fewest sessions and get the provisioned browser plus the arguments of
+ * the ChromeOptions of the configuration (unless the client sets them itself). The amount of sessions running at the
+ * same time is limited, further new sessions wait for a free slot. Please call "close" after usage, which deletes all
+ * remaining sessions and stops the nodes.
+ *
+ * @author Danny Althoff
+ */
+public class Cr24SessionDispatcher implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(Cr24SessionDispatcher.class.getName());
+
+    private static final String LEGACY_CHROME_OPTIONS = "chromeOptions";
+    // older clients use this prefix for all paths
+    private static final String HUB_PREFIX = "/wd/hub";
+    private static final Pattern SESSION_PATH = Pattern.compile("/session/([^/]+)(/.*)?");
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    // page loads and scripts might take long, the client has its own timeouts anyway
+    private static final int COMMAND_TIMEOUT = 10 * 60 * 1000;
+    private static final long MAINTENANCE_INTERVAL = 10 * 1000L;
+
+    private static final class DispatchedSession {
+
+        private final DispatcherNode node;
+        private int runningCommands = 0;
+        private long lastUsedNanos = System.nanoTime();
+
+        DispatchedSession(DispatcherNode node) {
+            this.node = node;
+        }
+    }
+
+    private static final class NodeResponse {
+
+        private final int statusCode;
+        private final String contentType;
+        private final byte[] body;
+
+        NodeResponse(int statusCode, String contentType, byte[] body) {
+            this.statusCode = statusCode;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    private final Cr24SessionDispatcherConfiguration dispatcherConfiguration;
+    private final List<DispatcherNode> nodes;
+    // null lets chromedriver search for some locally installed browser
+    private final String browserBinary;
+    private final List<String> defaultArguments;
+
+    private final Semaphore sessionSlots;
+    private final Map<String, DispatchedSession> sessions = new HashMap<>();
+    private volatile boolean closed = false;
+
+    private final CloseableHttpClient nodeClient;
+    private final HttpServer server;
+    private final ExecutorService requestHandlers;
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cr24-dispatcher-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    Cr24SessionDispatcher(Cr24SessionDispatcherConfiguration dispatcherConfiguration, List<DispatcherNode> nodes, String browserBinary, List<String> defaultArguments) throws IOException {
+        this.dispatcherConfiguration = dispatcherConfiguration.copy();
+        this.nodes = new ArrayList<>(nodes);
+        this.browserBinary = browserBinary;
+        this.defaultArguments = new ArrayList<>(defaultArguments);
+        this.sessionSlots = new Semaphore(this.dispatcherConfiguration.getMaxSessions(), true);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(COMMAND_TIMEOUT)
+                .setSocketTimeout(COMMAND_TIMEOUT)
+                .build();
+        // every session might have one command running
+        int maxConnections = this.dispatcherConfiguration.getMaxSessions() + this.nodes.size();
+        this.nodeClient = HttpClientBuilder.create()
+                .setDefaultRequestConfig(requestConfig)
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .build();
+
+        AtomicInteger handlerCount = new AtomicInteger();
+        this.requestHandlers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "cr24-dispatcher-" + handlerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(this.dispatcherConfiguration.getBindAddress(), this.dispatcherConfiguration.getPort()), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(requestHandlers);
+        this.server.start();
+        maintenance.scheduleWithFixedDelay(this::maintain, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Provisions webdriver and browser the same way as building, launches the nodes and starts listening.
+     *
+     * @param configurationBuilder
+     * @param dispatcherConfiguration
+     *
+     * @return
+     *
+     * @throws IOException
+     * @throws Cr24ConfigurationBuilderException
+     */
+    public static Cr24SessionDispatcher start(Cr24ConfigurationBuilder configurationBuilder, Cr24SessionDispatcherConfiguration dispatcherConfiguration) throws IOException, Cr24ConfigurationBuilderException {
+        if( dispatcherConfiguration.getNodes() < 1 || dispatcherConfiguration.getMaxSessions() < 1 ){
+            throw new IllegalArgumentException("Amount of nodes and maximum sessions have to be at least 1");
+        }
+        File webdriverExecutable = null;
+        String webbrowserExecutable = null;
+        for( Cr24ArtifactReport report : configurationBuilder.prefetch() ){
+            if( "webdriver".equals(report.getArtifactName()) ){
+                webdriverExecutable = report.getExecutable().toFile();
+            } else if( "browser".equals(report.getArtifactName()) ){
+                webbrowserExecutable = report.getExecutable().toAbsolutePath().toString();
+            }
+        }
+        if( webdriverExecutable == null ){
+            throw new Cr24ConfigurationBuilderException("Webdriver executable does not exist");
+        }
+
+        List<DispatcherNode> nodes = new ArrayList<>();
+        try{
+            for( int i = 0; i < dispatcherConfiguration.getNodes(); i++ ){
+                nodes.add(DispatcherNode.launch(webdriverExecutable));
+            }
+            return new Cr24SessionDispatcher(dispatcherConfiguration, nodes, webbrowserExecutable, ProfileTemplate.getArguments(configurationBuilder.getConfiguration().getChromeOptions()));
+        } catch(IOException | RuntimeException ex){
+            nodes.forEach(DispatcherNode::stop);
+            throw ex;
+        }
+    }
+
+    /**
+     * @return base URL for RemoteWebDriver clients
+     */
+    public String getUrl() {
+        InetSocketAddress address = server.getAddress();
+        InetAddress host = address.getAddress();
+        return "http://" + (host.isAnyLocalAddress() ? "localhost" : host.getHostAddress()) + ":" + address.getPort();
+    }
+
+    public synchronized int getActiveSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * Stops listening, deletes all remaining sessions and stops the nodes.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        server.stop(0);
+        maintenance.shutdownNow();
+        List<String> remainingSessions;
+        synchronized(this){
+            remainingSessions = new ArrayList<>(sessions.keySet());
+        }
+        remainingSessions.forEach(this::deleteSession);
+        nodes.forEach(DispatcherNode::stop);
+        requestHandlers.shutdownNow();
+        try{
+            nodeClient.close();
+        } catch(IOException ex){
+            LOGGER.log(Level.FINE, "Could not close connections to nodes", ex);
+        }
+    }
+
+    private void handle(HttpExchange exchange) {
+        try{
+            String path = exchange.getRequestURI().getRawPath();
+            if( path.startsWith(HUB_PREFIX) ){
+                path = path.substring(HUB_PREFIX.length());
+            }
+            if( path.length() > 1 && path.endsWith("/") ){
+                path = path.substring(0, path.length() - 1);
+            }
+            String method = exchange.getRequestMethod();
+            byte[] body = readFully(exchange.getRequestBody());
+
+            if( "/status".equals(path) && "GET".equals(method) ){
+                respond(exchange, 200, JSON_CONTENT_TYPE, toJson(getStatus()));
+                return;
+            }
+            if( "/session".equals(path) && "POST".equals(method) ){
+                createSession(exchange, body);
+                return;
+            }
+            Matcher sessionMatcher = SESSION_PATH.matcher(path);
+            if( !sessionMatcher.matches() ){
+                respondError(exchange, 404, 9, "unknown command", "Unknown command " + method + " " + path);
+                return;
+            }
+            String query = exchange.getRequestURI().getRawQuery();
+            boolean deletesSession = sessionMatcher.group(2) == null && "DELETE".equals(method);
+            forwardToSession(exchange, sessionMatcher.group(1), method, query == null ? path : path + "?" + query, body, deletesSession);
+        } catch(IOException | RuntimeException ex){
+            LOGGER.log(Level.FINE, "Could not dispatch request", ex);
+            try{
+                respondError(exchange, 500, 13, "unknown error", String.valueOf(ex.getMessage()));
+            } catch(IOException | RuntimeException responseException){
+                // response was already sent partially
+            }
+        } finally{
+            exchange.close();
+        }
+    }
+
+    private void createSession(HttpExchange exchange, byte[] body) throws IOException {
+        if( !acquireSlot() ){
+            respondError(exchange, 500, 33, "session not created", "All " + dispatcherConfiguration.getMaxSessions() + " sessions are in use, waited " + dispatcherConfiguration.getSessionQueueTimeout() + "ms for a free one");
+            return;
+        }
+        boolean created = false;
+        try{
+            DispatcherNode node = reserveNode();
+            try{
+                NodeResponse response = forward(node, "POST", "/session", withDefaults(body), JSON_CONTENT_TYPE);
+                String sessionId = response.statusCode == 200 ? findSessionId(response.body) : null;
+                if( sessionId != null ){
+                    synchronized(this){
+                        sessions.put(sessionId, new DispatchedSession(node));
+                    }
+                    created = true;
+                }
+                respond(exchange, response.statusCode, response.contentType, response.body);
+            } finally{
+                if( !created ){
+                    synchronized(this){
+                        node.removeSession();
+                    }
+                }
+            }
+        } finally{
+            if( !created ){
+                sessionSlots.release();
+            }
+        }
+    }
+
+    private boolean acquireSlot() throws IOException {
+        try{
+            return sessionSlots.tryAcquire(dispatcherConfiguration.getSessionQueueTimeout(), TimeUnit.MILLISECONDS);
+        } catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a free session");
+        }
+    }
+
+    private synchronized DispatcherNode reserveNode() throws IOException {
+        DispatcherNode leastLoaded = null;
+        for( DispatcherNode node : nodes ){
+            if( node.isRunning() && (leastLoaded == null || node.getSessions() < leastLoaded.getSessions()) ){
+                leastLoaded = node;
+            }
+        }
+        if( leastLoaded == null ){
+            throw new IOException("No webdriver node is running");
+        }
+        leastLoaded.addSession();
+        return leastLoaded;
+    }
+
+    private void forwardToSession(HttpExchange exchange, String sessionId, String method, String pathAndQuery, byte[] body, boolean deletesSession) throws IOException {
+        DispatchedSession session;
+        synchronized(this){
+            session = sessions.get(sessionId);
+            if( session != null ){
+                session.runningCommands++;
+                session.lastUsedNanos = System.nanoTime();
+            }
+        }
+        if( session == null ){
+            respondError(exchange, 404, 6, "invalid session id", "Unknown session " + sessionId);
+            return;
+        }
+        try{
+            NodeResponse response = forward(session.node, method, pathAndQuery, body, exchange.getRequestHeaders().getFirst("Content-Type"));
+            respond(exchange, response.statusCode, response.contentType, response.body);
+        } finally{
+            synchronized(this){
+                session.runningCommands--;
+                session.lastUsedNanos = System.nanoTime();
+            }
+            // even a failed delete leaves nothing usable behind
+            if( deletesSession ){
+                endSession(sessionId);
+            }
+        }
+    }
+
+    private void endSession(String sessionId) {
+        synchronized(this){
+            DispatchedSession session = sessions.remove(sessionId);
+            if( session == null ){
+                return;
+            }
+            session.node.removeSession();
+        }
+        sessionSlots.release();
+    }
+
+    private void deleteSession(String sessionId) {
+        DispatchedSession session;
+        synchronized(this){
+            session = sessions.get(sessionId);
+        }
+        if( session == null ){
+            return;
+        }
+        if( session.node.isRunning() ){
+            try{
+                forward(session.node, "DELETE", "/session/" + sessionId, new byte[0], null);
+            } catch(IOException ex){
+                LOGGER.log(Level.FINE, "Could not delete session " + sessionId, ex);
+            }
+        }
+        endSession(sessionId);
+    }
+
+    private NodeResponse forward(DispatcherNode node, String method, String pathAndQuery, byte[] body, String contentType) throws IOException {
+        RequestBuilder request = RequestBuilder.create(method).setUri(node.getUrl() + pathAndQuery);
+        if( body.length > 0 ){
+            request.setEntity(new ByteArrayEntity(body, contentType == null ? ContentType.APPLICATION_JSON : ContentType.parse(contentType)));
+        }
+        try(CloseableHttpResponse response = nodeClient.execute(request.build())){
+            HttpEntity entity = response.getEntity();
+            String responseContentType = entity == null || entity.getContentType() == null ? JSON_CONTENT_TYPE : entity.getContentType().getValue();
+            return new NodeResponse(response.getStatusLine().getStatusCode(), responseContentType, entity == null ? new byte[0] : EntityUtils.toByteArray(entity));
+        }
+    }
+
+    /**
+     * Adds the provisioned browser and the default arguments to the requested capabilities, the client always wins.
+     */
+    private byte[] withDefaults(byte[] body) {
+        Map<String, Object> request = copyOf(new JsonToBeanConverter().convert(Map.class, new String(body, StandardCharsets.UTF_8)));
+        // clients of the JSON wire protocol send "desiredCapabilities", W3C clients "capabilities" (Selenium 3 sends both)
+        if( request.get("desiredCapabilities") instanceof Map ){
+            request.put("desiredCapabilities", withDefaults((Map<?, ?>) request.get("desiredCapabilities")));
+        }
+        if( request.get("capabilities") instanceof Map ){
+            Map<String, Object> capabilities = copyOf((Map<?, ?>) request.get("capabilities"));
+            if( capabilities.get("alwaysMatch") instanceof Map ){
+                capabilities.put("alwaysMatch", withDefaults((Map<?, ?>) capabilities.get("alwaysMatch")));
+            }
+            request.put("capabilities", capabilities);
+        }
+        return toJson(request);
+    }
+
+    private Map<String, Object> withDefaults(Map<?, ?> requestedCapabilities) {
+        Map<String, Object> capabilities = copyOf(requestedCapabilities);
+        String optionsKey = capabilities.containsKey(LEGACY_CHROME_OPTIONS) && !capabilities.containsKey(ChromeOptions.CAPABILITY) ? LEGACY_CHROME_OPTIONS : ChromeOptions.CAPABILITY;
+        Map<String, Object> chromeOptions = capabilities.get(optionsKey) instanceof Map ? copyOf((Map<?, ?>) capabilities.get(optionsKey)) : new LinkedHashMap<>();
+
+        if( browserBinary != null && !chromeOptions.containsKey("binary") ){
+            chromeOptions.put("binary", browserBinary);
+        }
+        List<Object> arguments = new ArrayList<>();
+        List<String> requestedSwitches = new ArrayList<>();
+        if( chromeOptions.get("args") instanceof List ){
+            for( Object argument : (List<?>) chromeOptions.get("args") ){
+                arguments.add(argument);
+                requestedSwitches.add(String.valueOf(argument).split("=", 2)[0]);
+            }
+        }
+        for( String defaultArgument : defaultArguments ){
+            if( !requestedSwitches.contains(defaultArgument.split("=", 2)[0]) ){
+                arguments.add(defaultArgument);
+            }
+        }
+        chromeOptions.put("args", arguments);
+        capabilities.put(optionsKey, chromeOptions);
+        return capabilities;
+    }
+
+    private String findSessionId(byte[] body) {
+        Map<?, ?> response = new JsonToBeanConverter().convert(Map.class, new String(body, StandardCharsets.UTF_8));
+        // the JSON wire protocol reports errors with status 200 too
+        Object status = response.get("status");
+        if( status instanceof Number && ((Number) status).intValue() != 0 ){
+            return null;
+        }
+        Object sessionId = response.get("sessionId");
+        if( sessionId == null && response.get("value") instanceof Map ){
+            sessionId = ((Map<?, ?>) response.get("value")).get("sessionId");
+        }
+        return sessionId == null ? null : sessionId.toString();
+    }
+
+    private synchronized Map<String, Object> getStatus() {
+        List<Map<String, Object>> nodeStatus = new ArrayList<>();
+        boolean anyNodeRunning = false;
+        for( DispatcherNode node : nodes ){
+            anyNodeRunning |= node.isRunning();
+            nodeStatus.add(ImmutableMap.of("url", node.getUrl(), "running", node.isRunning(), "sessions", node.getSessions()));
+        }
+        boolean ready = !closed && anyNodeRunning && sessions.size() < dispatcherConfiguration.getMaxSessions();
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("ready", ready);
+        value.put("message", ready ? "Ready for new sessions" : "No free session");
+        value.put("sessions", sessions.size());
+        value.put("maxSessions", dispatcherConfiguration.getMaxSessions());
+        value.put("nodes", nodeStatus);
+        return ImmutableMap.of("status", 0, "value", value);
+    }
+
+    private void maintain() {
+        try{
+            long idleBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(dispatcherConfiguration.getSessionIdleTimeout());
+            List<String> abandonedSessions = new ArrayList<>();
+            synchronized(this){
+                for( Iterator<Map.Entry<String, DispatchedSession>> iterator = sessions.entrySet().iterator(); iterator.hasNext(); ){
+                    Map.Entry<String, DispatchedSession> entry = iterator.next();
+                    DispatchedSession session = entry.getValue();
+                    if( !session.node.isRunning() || (session.runningCommands == 0 && session.lastUsedNanos - idleBefore < 0) ){
+                        abandonedSessions.add(entry.getKey());
+                    }
+                }
+            }
+            if( !abandonedSessions.isEmpty() ){
+                LOGGER.log(Level.INFO, "Deleting {0} idle or lost sessions", abandonedSessions.size());
+                abandonedSessions.forEach(this::deleteSession);
+            }
+            for( DispatcherNode node : nodes ){
+                if( !node.isRunning() && !closed ){
+                    LOGGER.log(Level.WARNING, "Webdriver node {0} is not running anymore, restarting it", node.getUrl());
+                    node.restart();
+                }
+            }
+        } catch(IOException | RuntimeException ex){
+            // the next interval has to run anyway
+            LOGGER.log(Level.WARNING, "Could not maintain dispatched sessions", ex);
+        }
+    }
+
+    private static Map<String, Object> copyOf(Map<?, ?> map) {
+        Map<String, Object> copy = new LinkedHashMap<>();
+        map.forEach((key, value) -> copy.put(String.valueOf(key), value));
+        return copy;
+    }
+
+    private static byte[] toJson(Object value) {
+        return new BeanToJsonConverter().convert(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while( (read = input.read(buffer)) != -1 ){
+            content.write(buffer, 0, read);
+        }
+        return content.toByteArray();
+    }
+
+    private static void respondError(HttpExchange exchange, int statusCode, int legacyStatus, String error, String message) throws IOException {
+        // understood by clients of the JSON wire protocol (status) and W3C clients (error)
+        respond(exchange, statusCode, JSON_CONTENT_TYPE, toJson(ImmutableMap.of("status", legacyStatus, "value", ImmutableMap.of("error", error, "message", message))));
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(statusCode, body.length == 0 ? -1 : body.length);
+        if( body.length > 0 ){
+            try(OutputStream responseBody = exchange.getResponseBody()){
+                responseBody.write(body);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+/**
+ * Contains the address, fleet size and limits of a Cr24SessionDispatcher.
+ *
+ * @author Danny Althoff
+ */
+public final class Cr24SessionDispatcherConfiguration {
+
+    private String bindAddress = "127.0.0.1";
+    // 0 picks any free port
+    private int port = 4444;
+
+    private int nodes = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int maxSessions = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private long sessionQueueTimeout = 60 * 1000L;
+    private long sessionIdleTimeout = 5 * 60 * 1000L;
+
+    public String getBindAddress() {
+        return bindAddress;
+    }
+
+    /**
+     * Address to listen on, the default only accepts clients of the same host.
+     *
+     * @param bindAddress
+     */
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Port to listen on, 0 picks any free port (see Cr24SessionDispatcher::getUrl).
+     *
+     * @param port
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Amount of chromedriver processes, new sessions get routed to the one serving the fewest sessions.
+     *
+     * @param nodes
+     */
+    public void setNodes(int nodes) {
+        this.nodes = nodes;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Maximum amount of sessions running at the same time over all nodes, further new sessions have to wait.
+     *
+     * @param maxSessions
+     */
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public long getSessionQueueTimeout() {
+        return sessionQueueTimeout;
+    }
+
+    /**
+     * Milliseconds a new session waits for a free slot, afterwards its creation fails.
+     *
+     * @param sessionQueueTimeout
+     */
+    public void setSessionQueueTimeout(long sessionQueueTimeout) {
+        this.sessionQueueTimeout = sessionQueueTimeout;
+    }
+
+    public long getSessionIdleTimeout() {
+        return sessionIdleTimeout;
+    }
+
+    /**
+     * Sessions without any command for this amount of milliseconds get deleted, so clients which died without quitting
+     * do not hold their slot forever.
+     *
+     * @param sessionIdleTimeout
+     */
+    public void setSessionIdleTimeout(long sessionIdleTimeout) {
+        this.sessionIdleTimeout = sessionIdleTimeout;
+    }
+
+    public Cr24SessionDispatcherConfiguration copy() {
+        Cr24SessionDispatcherConfiguration dispatcherConfiguration = new Cr24SessionDispatcherConfiguration();
+
+        dispatcherConfiguration.bindAddress = this.bindAddress;
+        dispatcherConfiguration.port = this.port;
+
+        dispatcherConfiguration.nodes = this.nodes;
+        dispatcherConfiguration.maxSessions = this.maxSessions;
+
+        dispatcherConfiguration.sessionQueueTimeout = this.sessionQueueTimeout;
+        dispatcherConfiguration.sessionIdleTimeout = this.sessionIdleTimeout;
+
+        return dispatcherConfiguration;
+    }
+
+}
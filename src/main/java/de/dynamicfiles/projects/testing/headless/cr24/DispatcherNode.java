@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.File;
+import java.io.IOException;
+import org.openqa.selenium.chrome.ChromeDriverService;
+
+/**
+ * One chromedriver process of the Cr24SessionDispatcher, serving many sessions.
+ *
+ * @author Danny Althoff
+ */
+final class DispatcherNode {
+
+    private final String url;
+    // null when the process is not owned by the dispatcher
+    private final ChromeDriverService service;
+
+    // guarded by the dispatcher
+    private int sessions = 0;
+
+    DispatcherNode(String url, ChromeDriverService service) {
+        this.url = url;
+        this.service = service;
+    }
+
+    static DispatcherNode launch(File webdriverExecutable) throws IOException {
+        ChromeDriverService service = new ChromeDriverService.Builder()
+                .usingDriverExecutable(webdriverExecutable)
+                .usingAnyFreePort()
+                // inherited by the browser, so leftovers of a crashed JVM can be found
+                .withEnvironment(ResourceReaper.getOwnerEnvironment())
+                .build();
+        service.start();
+        return new DispatcherNode(service.getUrl().toString(), service);
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    int getSessions() {
+        return sessions;
+    }
+
+    void addSession() {
+        sessions++;
+    }
+
+    void removeSession() {
+        sessions--;
+    }
+
+    boolean isRunning() {
+        return service == null || service.isRunning();
+    }
+
+    /**
+     * Starts the process again after it died, its sessions are lost.
+     *
+     * @throws IOException
+     */
+    void restart() throws IOException {
+        if( service != null && !service.isRunning() ){
+            // the service keeps the dead process otherwise and would not start a new one
+            service.stop();
+            service.start();
+        }
+    }
+
+    void stop() {
+        if( service != null ){
+            service.stop();
+        }
+    }
+
+}
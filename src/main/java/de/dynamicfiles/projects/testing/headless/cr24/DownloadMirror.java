@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Statistics of one download server (identified by scheme, host and port), kept for the lifetime of the JVM. The latency
+ * gets probed with a tiny range request, the throughput is measured by every download and smoothed over time. Both are
+ * used for trying the fastest server first.
+ *
+ * @author Danny Althoff
+ */
+final class DownloadMirror {
+
+    private static final Logger LOGGER = Logger.getLogger(DownloadMirror.class.getName());
+
+    // latencies change slowly, probing before every download would cost more than it gains
+    static final long PROBE_INTERVAL = TimeUnit.MINUTES.toNanos(5);
+    // weight of the newest measurement, older ones fade out with every download
+    private static final double SMOOTHING_FACTOR = 0.3;
+    // tiny transfers mostly measure the latency, they would spoil the throughput
+    private static final long MINIMUM_MEASURED_BYTES = 64 * 1024;
+    // size used for comparing latency and throughput of different servers
+    private static final double REFERENCE_DOWNLOAD_SIZE = 16 * 1024 * 1024;
+
+    private static final ConcurrentMap<String, DownloadMirror> MIRRORS = new ConcurrentHashMap<>();
+
+    private static final ExecutorService PROBE_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cr24-mirror-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String origin;
+    private double throughput = -1;
+    private long latencyNanos = -1;
+    private long probedAtNanos = 0;
+    private int failures = 0;
+
+    private DownloadMirror(String origin) {
+        this.origin = origin;
+    }
+
+    static DownloadMirror forUrl(String url) {
+        return MIRRORS.computeIfAbsent(toOrigin(url), DownloadMirror::new);
+    }
+
+    static void resetAll() {
+        MIRRORS.clear();
+    }
+
+    private static String toOrigin(String url) {
+        try{
+            URI uri = URI.create(url);
+            if( uri.getScheme() != null && uri.getAuthority() != null ){
+                return uri.getScheme().toLowerCase() + "://" + uri.getAuthority().toLowerCase();
+            }
+        } catch(IllegalArgumentException ex){
+            // broken URLs fail when downloading, use them as they are
+        }
+        return url;
+    }
+
+    /**
+     * Orders the sources by their expected download duration, fastest first. Servers without recent latency get probed
+     * (in parallel), servers which failed recently come last. Sources of equal speed keep their given order.
+     *
+     * @param sources
+     * @param connectionTimeout
+     *
+     * @return
+     */
+    static List<String> rank(List<String> sources, int connectionTimeout) {
+        List<String> ranked = new ArrayList<>(sources);
+        if( ranked.size() < 2 ){
+            return ranked;
+        }
+        List<CompletableFuture<Void>> probes = new ArrayList<>();
+        for( String source : ranked ){
+            DownloadMirror mirror = forUrl(source);
+            if( mirror.needsProbe() ){
+                probes.add(CompletableFuture.runAsync(() -> mirror.probe(source, connectionTimeout), PROBE_EXECUTOR));
+            }
+        }
+        CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[probes.size()])).join();
+
+        // unmeasured servers are assumed to be as fast as the best measured one, so they get their chance
+        double bestThroughput = ranked.stream().mapToDouble(source -> forUrl(source).getThroughput()).max().orElse(-1);
+        // other downloads update the statistics concurrently, sorting needs stable values
+        Map<String, Integer> failures = new HashMap<>();
+        Map<String, Double> estimatedSeconds = new HashMap<>();
+        for( String source : ranked ){
+            failures.put(source, forUrl(source).getFailures());
+            estimatedSeconds.put(source, forUrl(source).estimateSeconds(bestThroughput));
+        }
+        ranked.sort(Comparator.comparingInt((String source) -> failures.get(source)).thenComparingDouble(estimatedSeconds::get));
+        return ranked;
+    }
+
+    String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return smoothed bytes per second, or -1 when nothing got downloaded yet
+     */
+    synchronized double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return smoothed time until the first response, or -1 when not probed yet
+     */
+    synchronized long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    synchronized int getFailures() {
+        return failures;
+    }
+
+    synchronized void recordTransfer(long bytes, long durationNanos) {
+        if( bytes < MINIMUM_MEASURED_BYTES || durationNanos <= 0 ){
+            return;
+        }
+        double measured = bytes / (durationNanos / 1_000_000_000d);
+        throughput = throughput < 0 ? measured : throughput * (1 - SMOOTHING_FACTOR) + measured * SMOOTHING_FACTOR;
+        failures = 0;
+    }
+
+    synchronized void recordFailure() {
+        failures++;
+        // probe again before next use, the server might be back by then
+        probedAtNanos = 0;
+    }
+
+    private synchronized void recordLatency(long measuredNanos) {
+        latencyNanos = latencyNanos < 0 ? measuredNanos : (long) (latencyNanos * (1 - SMOOTHING_FACTOR) + measuredNanos * SMOOTHING_FACTOR);
+        probedAtNanos = System.nanoTime();
+        failures = 0;
+    }
+
+    private synchronized boolean needsProbe() {
+        return latencyNanos < 0 || probedAtNanos == 0 || System.nanoTime() - probedAtNanos > PROBE_INTERVAL;
+    }
+
+    private synchronized double estimateSeconds(double assumedThroughput) {
+        // unknown latency sorts behind every probed server
+        double latencySeconds = latencyNanos < 0 ? Double.MAX_VALUE / 2 : latencyNanos / 1_000_000_000d;
+        double expectedThroughput = throughput > 0 ? throughput : assumedThroughput;
+        return expectedThroughput > 0 ? latencySeconds + REFERENCE_DOWNLOAD_SIZE / expectedThroughput : latencySeconds;
+    }
+
+    private void probe(String source, int connectionTimeout) {
+        long startNanos = System.nanoTime();
+        HttpGet request = new HttpGet(source);
+        request.setHeader("Range", "bytes=0-0");
+        try(CloseableHttpClient client = SegmentedDownload.createClient(connectionTimeout, connectionTimeout, 1); CloseableHttpResponse response = client.execute(request)){
+            int statusCode = response.getStatusLine().getStatusCode();
+            if( statusCode != HttpStatus.SC_PARTIAL_CONTENT && statusCode != HttpStatus.SC_OK ){
+                throw new IOException("Unexpected HTTP status " + statusCode + " while probing " + source);
+            }
+            // closing without reading the body drops the connection, servers without range support would send everything
+            recordLatency(System.nanoTime() - startNanos);
+        } catch(IOException | RuntimeException ex){
+            LOGGER.log(Level.FINE, "Probing download mirror " + origin + " failed", ex);
+            recordFailure();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s (latency %.1fms, throughput %.0f bytes/s, failures %d)", origin, latencyNanos / 1_000_000d, throughput, failures);
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads one file from a list of mirrors, ordered by their expected speed. When the current mirror did not finish
+ * within the hedge delay, the next mirror gets raced against it; the first complete download wins and all others get
+ * cancelled. Failing mirrors are replaced by the next one immediately.
+ * <p>
+ * The first mirror downloads into the target directly (so it can be resumed), all others use a staging file next to it,
+ * which gets moved into place when winning.
+ *
+ * @author Danny Althoff
+ */
+final class HedgedDownload {
+
+    private static final Logger LOGGER = Logger.getLogger(HedgedDownload.class.getName());
+
+    static final String STAGING_SUFFIX = ".mirror-";
+
+    // attempts run on their own pool, the provisioning executor might be bounded and is waiting for this download
+    private static final ExecutorService ATTEMPT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cr24-download-mirror");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final class Attempt {
+
+        private final String source;
+        private final Path attemptTarget;
+        private final SegmentedDownload download;
+        private long durationNanos;
+        private IOException failure;
+
+        Attempt(String source, Path attemptTarget) {
+            this.source = source;
+            this.attemptTarget = attemptTarget;
+            this.download = new SegmentedDownload(source, attemptTarget, connectionTimeout, readTimeout, maxSegments, checksum);
+        }
+
+        Attempt run() {
+            long startNanos = System.nanoTime();
+            try{
+                download.run();
+            } catch(IOException | RuntimeException ex){
+                failure = ex instanceof IOException ? (IOException) ex : new IOException("Problems while downloading " + source, ex);
+            }
+            durationNanos = System.nanoTime() - startNanos;
+            return this;
+        }
+
+        boolean isStaged() {
+            return !attemptTarget.equals(target);
+        }
+    }
+
+    private final List<String> sources;
+    private final Path target;
+    private final int connectionTimeout;
+    private final int readTimeout;
+    private final int maxSegments;
+    private final ArchiveChecksum checksum;
+    private final long hedgeDelay;
+
+    /**
+     * @param sources download URLs of the same file, the fastest one first
+     * @param target
+     * @param connectionTimeout
+     * @param readTimeout
+     * @param maxSegments
+     * @param checksum
+     * @param hedgeDelay milliseconds before racing the next mirror, 0 only switches mirrors on failures
+     */
+    HedgedDownload(List<String> sources, Path target, int connectionTimeout, int readTimeout, int maxSegments, ArchiveChecksum checksum, long hedgeDelay) {
+        if( sources.isEmpty() ){
+            throw new IllegalArgumentException("At least one download source is required");
+        }
+        this.sources = sources;
+        this.target = target;
+        this.connectionTimeout = connectionTimeout;
+        this.readTimeout = readTimeout;
+        this.maxSegments = maxSegments;
+        this.checksum = checksum;
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * @return amount of bytes transferred from all mirrors, resumed parts are not counted
+     *
+     * @throws IOException when no mirror could deliver the file
+     */
+    long run() throws IOException {
+        CompletionService<Attempt> completion = new ExecutorCompletionService<>(ATTEMPT_EXECUTOR);
+        List<Attempt> running = new ArrayList<>();
+        List<Attempt> finished = new ArrayList<>();
+        List<Attempt> cancelled = new ArrayList<>();
+        IOException failure = null;
+        Attempt winner = null;
+        int nextSource = 0;
+
+        try{
+            nextSource = start(completion, running, nextSource);
+            while( !running.isEmpty() ){
+                boolean canHedge = hedgeDelay > 0 && nextSource < sources.size();
+                Future<Attempt> done = canHedge ? completion.poll(hedgeDelay, TimeUnit.MILLISECONDS) : completion.take();
+                if( done == null ){
+                    LOGGER.log(Level.FINE, "Download from {0} is slow, racing {1}", new Object[]{running.get(0).source, sources.get(nextSource)});
+                    nextSource = start(completion, running, nextSource);
+                    continue;
+                }
+                Attempt attempt = getAttempt(done);
+                running.remove(attempt);
+                finished.add(attempt);
+                if( attempt.failure == null ){
+                    winner = attempt;
+                    break;
+                }
+                DownloadMirror.forUrl(attempt.source).recordFailure();
+                if( failure == null ){
+                    failure = attempt.failure;
+                } else {
+                    failure.addSuppressed(attempt.failure);
+                }
+                if( nextSource < sources.size() ){
+                    nextSource = start(completion, running, nextSource);
+                }
+            }
+        } catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            failure = new InterruptedIOException("Interrupted while downloading " + target);
+        } finally{
+            for( Attempt attempt : running ){
+                attempt.download.cancel();
+            }
+            for( Attempt attempt : running ){
+                cancelled.add(awaitCancelled(completion));
+            }
+            finished.addAll(cancelled);
+        }
+
+        long transferredBytes = 0;
+        for( Attempt attempt : finished ){
+            transferredBytes += attempt.download.getTransferredBytes();
+        }
+        if( winner != null ){
+            DownloadMirror.forUrl(winner.source).recordTransfer(winner.download.getTransferredBytes(), winner.durationNanos);
+        }
+        for( Attempt attempt : cancelled ){
+            // losers still measured their mirror until being cancelled, which helps picking the next time
+            DownloadMirror.forUrl(attempt.source).recordTransfer(attempt.download.getTransferredBytes(), attempt.durationNanos);
+        }
+        if( winner == null ){
+            cleanUp(finished, null);
+            throw failure;
+        }
+        if( winner.isStaged() ){
+            promote(winner.attemptTarget);
+        }
+        cleanUp(finished, winner);
+        return transferredBytes;
+    }
+
+    private int start(CompletionService<Attempt> completion, List<Attempt> running, int sourceIndex) {
+        // only the first mirror may use the target directly, its progress stays resumable
+        Path attemptTarget = sourceIndex == 0 ? target : target.resolveSibling(target.getFileName().toString() + STAGING_SUFFIX + sourceIndex);
+        Attempt attempt = new Attempt(sources.get(sourceIndex), attemptTarget);
+        running.add(attempt);
+        completion.submit(attempt::run);
+        return sourceIndex + 1;
+    }
+
+    private Attempt getAttempt(Future<Attempt> done) throws InterruptedException {
+        try{
+            return done.get();
+        } catch(ExecutionException ex){
+            // attempts catch their own failures
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    private Attempt awaitCancelled(CompletionService<Attempt> completion) {
+        boolean interrupted = false;
+        try{
+            while( true ){
+                try{
+                    return getAttempt(completion.take());
+                } catch(InterruptedException ex){
+                    // cancelled downloads stop quickly, their files must not be touched before
+                    interrupted = true;
+                }
+            }
+        } finally{
+            if( interrupted ){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void promote(Path stagedTarget) throws IOException {
+        Files.move(ArchiveChecksum.getChecksumFile(stagedTarget), ArchiveChecksum.getChecksumFile(target), StandardCopyOption.REPLACE_EXISTING);
+        try{
+            Files.move(stagedTarget, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException ex){
+            Files.move(stagedTarget, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void cleanUp(List<Attempt> finished, Attempt winner) {
+        for( Attempt attempt : finished ){
+            if( attempt == winner || (winner == null && !attempt.isStaged()) ){
+                // without winner, the progress of the first mirror is kept for resuming
+                continue;
+            }
+            Path attemptTarget = attempt.attemptTarget;
+            try{
+                if( attempt.isStaged() ){
+                    Files.deleteIfExists(attemptTarget);
+                    Files.deleteIfExists(ArchiveChecksum.getChecksumFile(attemptTarget));
+                }
+                Files.deleteIfExists(attemptTarget.resolveSibling(attemptTarget.getFileName().toString() + SegmentedDownload.PART_SUFFIX));
+                Files.deleteIfExists(attemptTarget.resolveSibling(attemptTarget.getFileName().toString() + SegmentedDownload.STATE_SUFFIX));
+            } catch(IOException ex){
+                LOGGER.log(Level.FINE, "Could not remove leftovers of download " + attemptTarget, ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openqa.selenium.chrome.ChromeDriver;
+import org.openqa.selenium.chrome.ChromeDriverService;
+import org.openqa.selenium.chrome.ChromeOptions;
+import org.openqa.selenium.remote.Response;
+
+/**
+ * ChromeDriver releasing everything that belongs to its session (e.g. the cloned profile) after being quit. The session
+ * can be recycled instead of being quit, which resets it for the next user while keeping the browser running.
+ * <p>
+ * The currently running command is tracked, so the watchdog can detect hanging sessions.
+ *
+ * @author Danny Althoff
+ */
+final class ManagedChromeDriver extends ChromeDriver {
+
+    private static final Logger LOGGER = Logger.getLogger(ManagedChromeDriver.class.getName());
+
+    private final Runnable releaseSessionResources;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    // no initializers, the session gets created by the super constructor before they would run
+    private volatile long commandStartNanos;
+    private volatile String runningCommand;
+    private volatile boolean unresponsive;
+
+    /**
+     * @param service
+     * @param options
+     * @param releaseSessionResources gets called once after quitting, even when quitting failed
+     */
+    ManagedChromeDriver(ChromeDriverService service, ChromeOptions options, Runnable releaseSessionResources) {
+        super(service, options);
+        this.releaseSessionResources = releaseSessionResources;
+    }
+
+    /**
+     * Removes everything the previous user left behind in the browser, the session stays the same.
+     *
+     * @throws IOException when the session could not be reset, it should be quit then
+     */
+    synchronized void recycle() throws IOException {
+        if( getSessionId() == null ){
+            throw new IOException("Session was already quit");
+        }
+        new SessionRecycler(this).recycle();
+    }
+
+    @Override
+    protected Response execute(String driverCommand, Map<String, ?> parameters) {
+        long startNanos = System.nanoTime();
+        runningCommand = driverCommand;
+        commandStartNanos = startNanos;
+        try{
+            return super.execute(driverCommand, parameters);
+        } finally{
+            if( commandStartNanos == startNanos ){
+                commandStartNanos = 0;
+            }
+        }
+    }
+
+    /**
+     * @return nanoseconds the current command is running, 0 when there is none
+     */
+    long getRunningCommandNanos() {
+        long startNanos = commandStartNanos;
+        return startNanos == 0 ? 0 : System.nanoTime() - startNanos;
+    }
+
+    String getRunningCommand() {
+        return runningCommand;
+    }
+
+    boolean isUnresponsive() {
+        return unresponsive;
+    }
+
+    /**
+     * Called by the watchdog after killing the processes of this session.
+     */
+    void markUnresponsive() {
+        unresponsive = true;
+    }
+
+    @Override
+    public void quit() {
+        try{
+            super.quit();
+        } finally{
+            release();
+        }
+    }
+
+    private void release() {
+        if( releaseSessionResources == null || !released.compareAndSet(false, true) ){
+            return;
+        }
+        try{
+            releaseSessionResources.run();
+        } catch(RuntimeException ex){
+            LOGGER.log(Level.WARNING, "Could not release resources of quit session", ex);
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Memory-backed filesystem (e.g. /dev/shm) used for extracted executables and session profiles instead of the disk. It
+ * only gets used while enough space is left, as the browser itself needs shared memory from the very same place.
+ * Executables are only placed there when the filesystem allows executing them, hardened hosts mount it "noexec".
+ *
+ * @author Danny Althoff
+ */
+final class MemoryStorage {
+
+    private static final Logger LOGGER = Logger.getLogger(MemoryStorage.class.getName());
+
+    static final String FOLDER_NAME = "cr24";
+
+    // probing needs to write some file, so it happens once per filesystem
+    private static final Map<Path, Boolean> EXECUTION_ALLOWED = new ConcurrentHashMap<>();
+
+    private final Path root;
+    private final Path folder;
+    private final long reserve;
+
+    /**
+     * @param root mount point of the memory-backed filesystem
+     * @param reserve bytes which always have to stay free
+     */
+    MemoryStorage(Path root, long reserve) {
+        this.root = root;
+        this.folder = root.resolve(FOLDER_NAME);
+        this.reserve = reserve;
+    }
+
+    /**
+     * @return folder containing everything placed into memory
+     */
+    Path getFolder() {
+        return folder;
+    }
+
+    boolean contains(Path path) {
+        return path.toAbsolutePath().normalize().startsWith(folder.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Checks if the given amount of bytes fits into memory without touching the reserve.
+     *
+     * @param purpose used for logging the chosen backing
+     * @param requiredBytes
+     *
+     * @return
+     */
+    boolean hasSpaceFor(String purpose, long requiredBytes) {
+        if( !Files.isDirectory(root) || !Files.isWritable(root) ){
+            LOGGER.log(Level.FINE, "Memory-backed storage {0} is not available, using disk for {1}", new Object[]{root, purpose});
+            return false;
+        }
+        try{
+            FileStore fileStore = Files.getFileStore(root);
+            long usableSpace = fileStore.getUsableSpace();
+            if( usableSpace - requiredBytes < reserve ){
+                LOGGER.log(Level.INFO, "Not enough space on {0} for {1} ({2} bytes free, {3} bytes required, {4} bytes reserved), using disk", new Object[]{root, purpose, usableSpace, requiredBytes, reserve});
+                return false;
+            }
+            LOGGER.log(Level.FINE, "Using {0} storage {1} for {2}", new Object[]{fileStore.type(), root, purpose});
+            return true;
+        } catch(IOException ex){
+            LOGGER.log(Level.FINE, "Could not check free space of " + root + ", using disk for " + purpose, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Checks if executables placed into memory can be started, by creating some executable file and asking the operating
+     * system about it (which reports "noexec" mounts as not executable).
+     *
+     * @return
+     */
+    boolean allowsExecution() {
+        if( !Files.isDirectory(root) || !Files.isWritable(root) ){
+            return false;
+        }
+        return EXECUTION_ALLOWED.computeIfAbsent(root.toAbsolutePath().normalize(), normalizedRoot -> probeExecution());
+    }
+
+    private boolean probeExecution() {
+        if( !root.getFileSystem().supportedFileAttributeViews().contains("posix") ){
+            // no execute permissions at all
+            return true;
+        }
+        Path probe = null;
+        try{
+            probe = Files.createTempFile(Files.createDirectories(folder), "execution-probe-", "", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            if( Files.isExecutable(probe) ){
+                return true;
+            }
+            LOGGER.log(Level.INFO, "Files on {0} can not be executed (mounted noexec), using disk for executables", root);
+            return false;
+        } catch(IOException ex){
+            LOGGER.log(Level.FINE, "Could not check if files on " + root + " can be executed, using disk for executables", ex);
+            return false;
+        } finally{
+            if( probe != null ){
+                try{
+                    Files.deleteIfExists(probe);
+                } catch(IOException ex){
+                    LOGGER.log(Level.FINE, "Could not delete " + probe, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps some path on disk to its counterpart in memory, paths inside the home folder keep their relative location.
+     *
+     * @param diskPath
+     *
+     * @return
+     */
+    Path relocate(Path diskPath) {
+        Path absolutePath = diskPath.toAbsolutePath().normalize();
+        Path home = Paths.get(System.getProperty("user.home")).toAbsolutePath().normalize();
+        Path relativePath;
+        if( absolutePath.startsWith(home) ){
+            relativePath = home.relativize(absolutePath);
+        } else {
+            relativePath = absolutePath.getRoot() == null ? absolutePath : absolutePath.getRoot().relativize(absolutePath);
+        }
+        // the root of windows paths (e.g. "C:\") would not be a valid name
+        return folder.resolve(relativePath.toString().replace(':', '_'));
+    }
+
+    static long measure(Path path) throws IOException {
+        if( !Files.exists(path) ){
+            return 0;
+        }
+        try(Stream<Path> files = Files.walk(path)){
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+}
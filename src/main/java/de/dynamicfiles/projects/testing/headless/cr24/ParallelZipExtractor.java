@@ -0,0 +1,407 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts zip-archives using all available cores and restores the unix file modes (and symbolic links) stored inside the
+ * "external attributes" of the central directory, so extracted helper binaries are executable without further work.
+ *
+ * @author Danny Althoff
+ */
+final class ParallelZipExtractor {
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_DIRECTORY_ENTRY_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_MIN_SIZE = 22;
+    private static final int MAX_ARCHIVE_COMMENT_SIZE = 0xFFFF;
+    private static final int MADE_BY_UNIX = 3;
+
+    private static final int FILE_TYPE_MASK = 0170000;
+    private static final int FILE_TYPE_SYMBOLIC_LINK = 0120000;
+
+    private static final PosixFilePermission[] PERMISSION_BITS = {
+        PosixFilePermission.OTHERS_EXECUTE, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_READ,
+        PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_READ,
+        PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_READ
+    };
+
+    // inflating is cpu-bound, so one thread per core is enough
+    private static final ExecutorService EXTRACTION_EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+        Thread thread = new Thread(runnable, "cr24-extraction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path sourceArchive;
+    private final String entryPrefix;
+    private final Path targetFolder;
+    private final boolean posixSupported;
+
+    private long extractedEntries = 0;
+    private long extractedBytes = 0;
+
+    ParallelZipExtractor(Path sourceArchive, String rootInsideArchive, Path targetFolder) throws IOException {
+        this.sourceArchive = sourceArchive;
+        this.entryPrefix = toEntryPrefix(rootInsideArchive);
+        this.targetFolder = Files.createDirectories(targetFolder).toAbsolutePath().normalize();
+        this.posixSupported = this.targetFolder.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    /**
+     * Converts the root folder notation used by the configuration (e.g. "/" or "/chrome-linux") into the prefix of the zip
+     * entry names.
+     *
+     * @param rootInsideArchive
+     *
+     * @return
+     */
+    static String toEntryPrefix(String rootInsideArchive) {
+        String root = rootInsideArchive.replaceAll("^/+", "").replaceAll("/+$", "");
+        return root.isEmpty() ? "" : root + "/";
+    }
+
+    /**
+     * Sums up the uncompressed sizes of all files below the root folder, only reading the central directory.
+     *
+     * @param sourceArchive
+     * @param rootInsideArchive
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    static long measureExtractedSize(Path sourceArchive, String rootInsideArchive) throws IOException {
+        String prefix = toEntryPrefix(rootInsideArchive);
+        try(ZipFile zipFile = new ZipFile(sourceArchive.toFile())){
+            return Collections.list(zipFile.entries()).stream()
+                    .filter(entry -> !entry.isDirectory() && entry.getName().replace('\\', '/').startsWith(prefix))
+                    .mapToLong(entry -> Math.max(0, entry.getSize()))
+                    .sum();
+        }
+    }
+
+    long getExtractedEntries() {
+        return extractedEntries;
+    }
+
+    long getExtractedBytes() {
+        return extractedBytes;
+    }
+
+    void extract() throws IOException {
+        Map<String, Integer> unixModes = readUnixModes();
+        try(ZipFile zipFile = new ZipFile(sourceArchive.toFile())){
+            List<ZipEntry> directories = new ArrayList<>();
+            List<ZipEntry> files = new ArrayList<>();
+            List<ZipEntry> symbolicLinks = new ArrayList<>();
+            for( ZipEntry entry : Collections.list(zipFile.entries()) ){
+                if( !isBelowRoot(entry.getName()) ){
+                    continue;
+                }
+                if( entry.isDirectory() ){
+                    directories.add(entry);
+                } else if( posixSupported && isSymbolicLink(unixModes.get(entry.getName())) ){
+                    symbolicLinks.add(entry);
+                } else {
+                    files.add(entry);
+                }
+            }
+
+            // creating folders up front avoids racing workers on shared parents
+            for( ZipEntry directory : directories ){
+                Files.createDirectories(resolveTarget(directory.getName()));
+            }
+
+            // biggest files first, as they take longest and would otherwise be the last task running
+            files.sort(Comparator.comparingLong(ZipEntry::getSize).reversed());
+            List<Future<Long>> runningExtractions = new ArrayList<>();
+            for( ZipEntry file : files ){
+                runningExtractions.add(EXTRACTION_EXECUTOR.submit(() -> extractFile(zipFile, file, unixModes.get(file.getName()))));
+            }
+            for( Future<Long> runningExtraction : runningExtractions ){
+                try{
+                    extractedBytes += runningExtraction.get();
+                    extractedEntries++;
+                } catch(ExecutionException ex){
+                    runningExtractions.forEach(extraction -> extraction.cancel(false));
+                    if( ex.getCause() instanceof IOException ){
+                        throw (IOException) ex.getCause();
+                    }
+                    throw new IOException("Problems while extracting " + sourceArchive, ex.getCause());
+                } catch(InterruptedException ex){
+                    runningExtractions.forEach(extraction -> extraction.cancel(true));
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while extracting " + sourceArchive, ex);
+                }
+            }
+
+            // links are created after all files got written, so no file can be written through some link
+            List<Path> createdLinks = new ArrayList<>();
+            for( ZipEntry symbolicLink : symbolicLinks ){
+                createdLinks.add(createSymbolicLink(resolveTarget(symbolicLink.getName()), readLinkTarget(zipFile, symbolicLink)));
+                extractedEntries++;
+            }
+            verifyContained(createdLinks);
+
+            // restrictive folder modes are applied last, otherwise they could prevent writing their content
+            directories.sort(Comparator.comparing(ZipEntry::getName).reversed());
+            for( ZipEntry directory : directories ){
+                applyMode(resolveTarget(directory.getName()), unixModes.get(directory.getName()));
+                extractedEntries++;
+            }
+        }
+    }
+
+    /**
+     * Only applies the unix file modes on already extracted files, e.g. after extracting via stream, which does not have
+     * access to the central directory.
+     *
+     * @throws IOException
+     */
+    void restoreModes() throws IOException {
+        List<Path> createdLinks = new ArrayList<>();
+        for( Map.Entry<String, Integer> unixMode : readUnixModes().entrySet() ){
+            if( !isBelowRoot(unixMode.getKey()) ){
+                continue;
+            }
+            Path entryTarget = resolveTarget(unixMode.getKey());
+            if( isSymbolicLink(unixMode.getValue()) ){
+                if( posixSupported && Files.isRegularFile(entryTarget, LinkOption.NOFOLLOW_LINKS) ){
+                    // the stream extraction wrote the link target as file content
+                    String linkTarget = new String(Files.readAllBytes(entryTarget), StandardCharsets.UTF_8);
+                    createdLinks.add(createSymbolicLink(entryTarget, linkTarget));
+                }
+                // modes of links would get applied to the file they point to
+                continue;
+            }
+            if( Files.exists(entryTarget, LinkOption.NOFOLLOW_LINKS) ){
+                applyMode(entryTarget, unixMode.getValue());
+            }
+        }
+        verifyContained(createdLinks);
+    }
+
+    private boolean isBelowRoot(String entryName) {
+        String normalizedName = entryName.replace('\\', '/');
+        return normalizedName.startsWith(entryPrefix) && normalizedName.length() > entryPrefix.length();
+    }
+
+    private Path resolveTarget(String entryName) throws IOException {
+        Path entryTarget = targetFolder.resolve(entryName.replace('\\', '/').substring(entryPrefix.length())).normalize();
+        if( !entryTarget.startsWith(targetFolder) ){
+            throw new IOException("Archive entry is outside of the target folder: " + entryName);
+        }
+        return entryTarget;
+    }
+
+    private long extractFile(ZipFile zipFile, ZipEntry file, Integer unixMode) throws IOException {
+        Path entryTarget = resolveTarget(file.getName());
+        Files.createDirectories(entryTarget.getParent());
+
+        long written;
+        try(InputStream entryContent = zipFile.getInputStream(file)){
+            written = Files.copy(entryContent, entryTarget, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if( file.getTime() != -1 ){
+            Files.setLastModifiedTime(entryTarget, FileTime.fromMillis(file.getTime()));
+        }
+        applyMode(entryTarget, unixMode);
+        return written;
+    }
+
+    private boolean isSymbolicLink(Integer unixMode) {
+        return unixMode != null && (unixMode & FILE_TYPE_MASK) == FILE_TYPE_SYMBOLIC_LINK;
+    }
+
+    private String readLinkTarget(ZipFile zipFile, ZipEntry symbolicLink) throws IOException {
+        // content of a symbolic link entry is the path it points to
+        try(InputStream entryContent = zipFile.getInputStream(symbolicLink)){
+            byte[] linkTargetBytes = new byte[(int) symbolicLink.getSize()];
+            int offset = 0;
+            int read = 0;
+            while( offset < linkTargetBytes.length && read != -1 ){
+                read = entryContent.read(linkTargetBytes, offset, linkTargetBytes.length - offset);
+                offset += Math.max(0, read);
+            }
+            return new String(linkTargetBytes, 0, offset, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Creates the link, but only when it points to something inside the target folder. Otherwise some archive could
+     * point links (and files extracted through them) anywhere.
+     *
+     * @param entryTarget
+     * @param linkTarget
+     *
+     * @return the created link
+     *
+     * @throws IOException
+     */
+    private Path createSymbolicLink(Path entryTarget, String linkTarget) throws IOException {
+        Path link = entryTarget.getFileSystem().getPath(linkTarget);
+        if( link.isAbsolute() || !entryTarget.getParent().resolve(link).normalize().startsWith(targetFolder) ){
+            throw new IOException("Symbolic link is pointing outside of the target folder: " + entryTarget + " -> " + linkTarget);
+        }
+        Files.createDirectories(entryTarget.getParent());
+        Files.deleteIfExists(entryTarget);
+        try{
+            Files.createSymbolicLink(entryTarget, link);
+        } catch(FileAlreadyExistsException ex){
+            // already existing from some other extraction, nothing to do
+        }
+        return entryTarget;
+    }
+
+    /**
+     * A ".." behind some other link (e.g. "current/.." with "current" pointing to ".") is only visible when resolving the
+     * real path, which is only possible after all links exist.
+     *
+     * @param links
+     *
+     * @throws IOException
+     */
+    private void verifyContained(List<Path> links) throws IOException {
+        Path realTargetFolder = targetFolder.toRealPath();
+        for( Path link : links ){
+            if( Files.exists(link) && !link.toRealPath().startsWith(realTargetFolder) ){
+                Path linkTarget = Files.readSymbolicLink(link);
+                Files.delete(link);
+                throw new IOException("Symbolic link is pointing outside of the target folder: " + link + " -> " + linkTarget);
+            }
+        }
+    }
+
+    private void applyMode(Path entryTarget, Integer unixMode) throws IOException {
+        if( !posixSupported || unixMode == null || (unixMode & 0777) == 0 ){
+            return;
+        }
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        for( int bit = 0; bit < PERMISSION_BITS.length; bit++ ){
+            if( (unixMode & (1 << bit)) != 0 ){
+                permissions.add(PERMISSION_BITS[bit]);
+            }
+        }
+        // never lock ourselves out, otherwise the extraction could not be replaced later
+        permissions.add(PosixFilePermission.OWNER_READ);
+        permissions.add(PosixFilePermission.OWNER_WRITE);
+        if( Files.isDirectory(entryTarget, LinkOption.NOFOLLOW_LINKS) ){
+            permissions.add(PosixFilePermission.OWNER_EXECUTE);
+        }
+        Files.setPosixFilePermissions(entryTarget, permissions);
+    }
+
+    /**
+     * Reads the unix modes of all entries made on unix systems. This only reads the central directory at the end of the
+     * archive, not the entries themselves.
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    private Map<String, Integer> readUnixModes() throws IOException {
+        Map<String, Integer> unixModes = new HashMap<>();
+        try(FileChannel archiveChannel = FileChannel.open(sourceArchive, StandardOpenOption.READ)){
+            long archiveSize = archiveChannel.size();
+            int tailSize = (int) Math.min(archiveSize, END_OF_CENTRAL_DIRECTORY_MIN_SIZE + MAX_ARCHIVE_COMMENT_SIZE);
+            ByteBuffer tail = read(archiveChannel, archiveSize - tailSize, tailSize);
+
+            int endOfCentralDirectory = -1;
+            for( int position = tailSize - END_OF_CENTRAL_DIRECTORY_MIN_SIZE; position >= 0; position-- ){
+                if( tail.getInt(position) == END_OF_CENTRAL_DIRECTORY_SIGNATURE ){
+                    endOfCentralDirectory = position;
+                    break;
+                }
+            }
+            if( endOfCentralDirectory == -1 ){
+                throw new IOException("Not a zip-archive: " + sourceArchive);
+            }
+            long centralDirectorySize = Integer.toUnsignedLong(tail.getInt(endOfCentralDirectory + 12));
+            long centralDirectoryOffset = Integer.toUnsignedLong(tail.getInt(endOfCentralDirectory + 16));
+
+            int zip64Locator = endOfCentralDirectory - 20;
+            if( zip64Locator >= 0 && tail.getInt(zip64Locator) == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE ){
+                ByteBuffer zip64EndOfCentralDirectory = read(archiveChannel, tail.getLong(zip64Locator + 8), 56);
+                if( zip64EndOfCentralDirectory.getInt(0) == ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE ){
+                    centralDirectorySize = zip64EndOfCentralDirectory.getLong(40);
+                    centralDirectoryOffset = zip64EndOfCentralDirectory.getLong(48);
+                }
+            }
+
+            ByteBuffer centralDirectory = read(archiveChannel, centralDirectoryOffset, (int) centralDirectorySize);
+            int position = 0;
+            while( position + 46 <= centralDirectory.limit() && centralDirectory.getInt(position) == CENTRAL_DIRECTORY_ENTRY_SIGNATURE ){
+                int madeBy = (centralDirectory.getShort(position + 4) >> 8) & 0xFF;
+                int nameLength = centralDirectory.getShort(position + 28) & 0xFFFF;
+                int extraLength = centralDirectory.getShort(position + 30) & 0xFFFF;
+                int commentLength = centralDirectory.getShort(position + 32) & 0xFFFF;
+                int externalAttributes = centralDirectory.getInt(position + 38);
+
+                if( madeBy == MADE_BY_UNIX ){
+                    byte[] name = new byte[nameLength];
+                    centralDirectory.position(position + 46);
+                    centralDirectory.get(name);
+                    unixModes.put(new String(name, StandardCharsets.UTF_8), (externalAttributes >>> 16) & 0xFFFF);
+                }
+                position += 46 + nameLength + extraLength + commentLength;
+            }
+        }
+        return unixModes;
+    }
+
+    private ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while( buffer.hasRemaining() ){
+            if( channel.read(buffer, offset + buffer.position()) == -1 ){
+                throw new IOException("Unexpected end of zip-archive: " + sourceArchive);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Snapshot of all processes visible inside /proc (Linux), with parent and consumed CPU time of each of them.
+ *
+ * @author Danny Althoff
+ */
+final class ProcessTable {
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessTable.class.getName());
+
+    private static final Path PROC = Paths.get("/proc");
+
+    // USER_HZ, which is 100 on every common architecture
+    static final long CLOCK_TICKS_PER_SECOND = 100;
+
+    private static final class ProcessEntry {
+
+        private final int parentPid;
+        private final long cpuTicks;
+
+        ProcessEntry(int parentPid, long cpuTicks) {
+            this.parentPid = parentPid;
+            this.cpuTicks = cpuTicks;
+        }
+    }
+
+    private final Map<Integer, ProcessEntry> processes;
+
+    private ProcessTable(Map<Integer, ProcessEntry> processes) {
+        this.processes = processes;
+    }
+
+    static boolean isSupported() {
+        return Files.isDirectory(PROC.resolve("self"));
+    }
+
+    /**
+     * @return snapshot of all processes, empty when /proc is not available
+     */
+    static ProcessTable read() {
+        Map<Integer, ProcessEntry> processes = new HashMap<>();
+        if( !isSupported() ){
+            return new ProcessTable(processes);
+        }
+        try(DirectoryStream<Path> processFolders = Files.newDirectoryStream(PROC, path -> path.getFileName().toString().matches("\\d+"))){
+            for( Path processFolder : processFolders ){
+                String stat;
+                try{
+                    stat = new String(Files.readAllBytes(processFolder.resolve("stat")), StandardCharsets.UTF_8);
+                } catch(IOException ex){
+                    // already gone
+                    continue;
+                }
+                // the command name is in parentheses and might contain spaces, the numeric fields follow it
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                // state, ppid, pgrp, session, tty_nr, tpgid, flags, minflt, cminflt, majflt, cmajflt, utime, stime
+                processes.put(Integer.valueOf(processFolder.getFileName().toString()), new ProcessEntry(Integer.parseInt(fields[1]), Long.parseLong(fields[11]) + Long.parseLong(fields[12])));
+            }
+        } catch(IOException | RuntimeException ex){
+            LOGGER.log(Level.FINE, "Could not read process table", ex);
+        }
+        return new ProcessTable(processes);
+    }
+
+    boolean contains(int pid) {
+        return processes.containsKey(pid);
+    }
+
+    /**
+     * @param pid
+     *
+     * @return user and system CPU time in clock ticks, 0 when the process is unknown
+     */
+    long getCpuTicks(int pid) {
+        ProcessEntry entry = processes.get(pid);
+        return entry == null ? 0 : entry.cpuTicks;
+    }
+
+    /**
+     * @param argument
+     *
+     * @return all processes having the given argument on their command line
+     */
+    List<Integer> findByArgument(String argument) {
+        List<Integer> matchingProcesses = new ArrayList<>();
+        for( Integer pid : processes.keySet() ){
+            try{
+                byte[] commandLine = Files.readAllBytes(PROC.resolve(pid.toString()).resolve("cmdline"));
+                if( Arrays.asList(new String(commandLine, StandardCharsets.UTF_8).split("\u0000")).contains(argument) ){
+                    matchingProcesses.add(pid);
+                }
+            } catch(IOException ex){
+                // already gone
+            }
+        }
+        return matchingProcesses;
+    }
+
+    /**
+     * @param folder
+     *
+     * @return whether some process is running an executable located inside the given folder
+     */
+    boolean isExecutingFrom(Path folder) {
+        Path normalizedFolder = folder.toAbsolutePath().normalize();
+        for( Integer pid : processes.keySet() ){
+            try{
+                if( Files.readSymbolicLink(PROC.resolve(pid.toString()).resolve("exe")).startsWith(normalizedFolder) ){
+                    return true;
+                }
+            } catch(IOException | UnsupportedOperationException ex){
+                // already gone or owned by someone else
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param roots
+     *
+     * @return the given processes and all their descendants, which are still running
+     */
+    Set<Integer> getTree(Collection<Integer> roots) {
+        Map<Integer, List<Integer>> children = new HashMap<>();
+        processes.forEach((pid, entry) -> children.computeIfAbsent(entry.parentPid, parentPid -> new ArrayList<>()).add(pid));
+
+        Set<Integer> tree = new LinkedHashSet<>();
+        Deque<Integer> pending = new ArrayDeque<>();
+        roots.stream().filter(processes::containsKey).forEach(pending::add);
+        while( !pending.isEmpty() ){
+            Integer pid = pending.poll();
+            if( tree.add(pid) ){
+                pending.addAll(children.getOrDefault(pid, Collections.emptyList()));
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * @param pid
+     *
+     * @return resident memory of the process, 0 when it is already gone
+     */
+    static long readResidentBytes(int pid) {
+        try{
+            for( String line : Files.readAllLines(PROC.resolve(String.valueOf(pid)).resolve("status"), StandardCharsets.UTF_8) ){
+                if( line.startsWith("VmRSS:") ){
+                    // always reported in kB
+                    return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch(IOException | RuntimeException ex){
+            LOGGER.log(Level.FINEST, "Could not read memory usage of process " + pid, ex);
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import de.dynamicfiles.projects.testing.headless.cr24.Cr24Configuration.ProfilePreparationCallback;
+import org.openqa.selenium.chrome.ChromeDriver;
+import org.openqa.selenium.chrome.ChromeOptions;
+
+/**
+ * Browser profile ("user-data-dir") which already went through the first-run initialization, created once per browser
+ * version. Every session gets its own clone, so sessions stay isolated but do not pay for initializing an empty profile.
+ * <p>
+ * Clones are real copies (copy-on-write when the filesystem supports reflinks), hardlinks are not an option as the
+ * browser modifies its databases in place.
+ *
+ * @author Danny Althoff
+ */
+final class ProfileTemplate {
+
+    private static final Logger LOGGER = Logger.getLogger(ProfileTemplate.class.getName());
+
+    static final String TEMPLATE_MARKER = ".cr24-template";
+    static final String PROFILE_FOLDER_PREFIX = "cr24-profile-";
+    static final String USER_DATA_DIR_ARGUMENT = "--user-data-dir=";
+
+    // only valid while the browser is running, a clone must not look like being in use
+    private static final String[] SINGLETON_FILES = {"SingletonLock", "SingletonSocket", "SingletonCookie", "lockfile"};
+
+    @FunctionalInterface
+    interface SessionStarter {
+
+        ChromeDriver start(Path userDataDir) throws IOException;
+    }
+
+    private ProfileTemplate() {
+        // only static methods
+    }
+
+    static boolean isCreated(Path template) {
+        return Files.isRegularFile(template.resolve(TEMPLATE_MARKER));
+    }
+
+    /**
+     * Creates the template by running one session on it, unless it exists already. Other processes creating the same
+     * template at the same time are waited for.
+     *
+     * @param template
+     * @param lockTimeout maximum milliseconds to wait for other processes
+     * @param sessionStarter
+     * @param preparation gets the session for seeding the profile before it gets quit
+     *
+     * @throws IOException
+     */
+    // the lock only has to be held, it is never referenced
+    @SuppressWarnings("try")
+    static void createOnce(Path template, long lockTimeout, SessionStarter sessionStarter, ProfilePreparationCallback preparation) throws IOException {
+        if( isCreated(template) ){
+            return;
+        }
+        try(ArchiveLock ignored = ArchiveLock.acquire(template, lockTimeout)){
+            if( isCreated(template) ){
+                return;
+            }
+            Utils utils = new Utils();
+            Path parentFolder = Files.createDirectories(template.toAbsolutePath().getParent());
+            Path stagingFolder = Files.createTempDirectory(parentFolder, template.getFileName().toString() + "-staging-");
+            try{
+                ChromeDriver session = sessionStarter.start(stagingFolder);
+                try{
+                    preparation.prepareProfile(session);
+                } finally{
+                    // the browser writes its profile when exiting
+                    session.quit();
+                }
+                for( String singletonFile : SINGLETON_FILES ){
+                    Files.deleteIfExists(stagingFolder.resolve(singletonFile));
+                }
+                Files.createFile(stagingFolder.resolve(TEMPLATE_MARKER));
+
+                // remove some incomplete template (e.g. from older versions)
+                if( Files.exists(template) ){
+                    utils.deleteRecursive(template);
+                }
+                Files.move(stagingFolder, template, StandardCopyOption.ATOMIC_MOVE);
+            } finally{
+                if( Files.exists(stagingFolder) ){
+                    utils.deleteRecursive(stagingFolder);
+                }
+            }
+        }
+    }
+
+    /**
+     * Clones the template into a new temporary folder, which gets deleted when the JVM exits.
+     *
+     * @param template
+     * @param parentFolder where to create the clone
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    static Path cloneForSession(Path template, Path parentFolder) throws IOException {
+        Path profile = ResourceReaper.createTemporaryFolder(parentFolder, PROFILE_FOLDER_PREFIX);
+        try{
+            if( !copyOnWrite(template, profile) ){
+                new Utils().copyRecursive(template, profile, LOGGER);
+            }
+            Files.deleteIfExists(profile.resolve(TEMPLATE_MARKER));
+            return profile;
+        } catch(IOException | RuntimeException ex){
+            ResourceReaper.deleteTemporaryFolder(profile);
+            throw ex;
+        }
+    }
+
+    /**
+     * Uses "cp --reflink=auto", which shares the blocks on filesystems like btrfs or XFS and copies them everywhere else.
+     *
+     * @return false when not available, nothing got copied then
+     */
+    private static boolean copyOnWrite(Path template, Path profile) throws IOException {
+        if( !System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("linux") ){
+            return false;
+        }
+        Process copying;
+        try{
+            copying = new ProcessBuilder("cp", "-a", "--reflink=auto", template.toAbsolutePath() + "/.", profile.toAbsolutePath().toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File("/dev/null"))
+                    .start();
+        } catch(IOException ex){
+            LOGGER.log(Level.FINE, "Could not start cp, copying profile template without it", ex);
+            return false;
+        }
+        try{
+            if( !copying.waitFor(1, TimeUnit.MINUTES) ){
+                copying.destroyForcibly();
+                throw new IOException("Timed out cloning profile template " + template);
+            }
+        } catch(InterruptedException ex){
+            copying.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while cloning profile template " + template, ex);
+        }
+        if( copying.exitValue() != 0 ){
+            LOGGER.log(Level.FINE, "cp failed with exit code {0}, copying profile template without it", copying.exitValue());
+            return false;
+        }
+        return true;
+    }
+
+    static boolean hasUserDataDir(ChromeOptions options) {
+        return getArguments(options).stream().anyMatch(argument -> argument.startsWith(USER_DATA_DIR_ARGUMENT));
+    }
+
+    /**
+     * ChromeOptions can not be copied, so the session gets new options rebuilt from the capabilities of the configured
+     * ones plus the profile argument. This way the options of the configuration stay untouched for all other sessions.
+     *
+     * @param options
+     * @param userDataDir
+     *
+     * @return
+     */
+    static ChromeOptions withUserDataDir(ChromeOptions options, Path userDataDir) {
+        ChromeOptions sessionOptions = new ChromeOptions();
+        Map<String, ?> capabilities = options.asMap();
+        capabilities.forEach((name, value) -> {
+            if( !ChromeOptions.CAPABILITY.equals(name) ){
+                sessionOptions.setCapability(name, value);
+            }
+        });
+        asMap(capabilities.get(ChromeOptions.CAPABILITY)).forEach((name, value) -> {
+            switch(name){
+                case "binary":
+                    sessionOptions.setBinary(String.valueOf(value));
+                    break;
+                case "args":
+                    // gets added below
+                    break;
+                case "extensions":
+                    ((List<?>) value).forEach(extension -> sessionOptions.addEncodedExtensions(String.valueOf(extension)));
+                    break;
+                default:
+                    // everything else inside the chrome options is some experimental option
+                    sessionOptions.setExperimentalOption(name, value);
+            }
+        });
+        sessionOptions.addArguments(getArguments(options));
+        sessionOptions.addArguments(USER_DATA_DIR_ARGUMENT + userDataDir.toAbsolutePath());
+        return sessionOptions;
+    }
+
+    static List<String> getArguments(ChromeOptions options) {
+        Object arguments = asMap(options.asMap().get(ChromeOptions.CAPABILITY)).get("args");
+        List<String> argumentList = new ArrayList<>();
+        if( arguments instanceof List ){
+            ((List<?>) arguments).forEach(argument -> argumentList.add(String.valueOf(argument)));
+        }
+        return argumentList;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : new HashMap<>();
+    }
+
+}
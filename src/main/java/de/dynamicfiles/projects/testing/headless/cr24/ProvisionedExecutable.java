@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.File;
+
+/**
+ * Result of provisioning the archive of some executable, together with the amount of bytes it took.
+ *
+ * @author Danny Althoff
+ */
+final class ProvisionedExecutable {
+
+    private final File executable;
+    private final long downloadedBytes;
+    private final long archiveSize;
+    private final boolean memoryBacked;
+
+    ProvisionedExecutable(File executable, long downloadedBytes, long archiveSize, boolean memoryBacked) {
+        this.executable = executable;
+        this.downloadedBytes = downloadedBytes;
+        this.archiveSize = archiveSize;
+        this.memoryBacked = memoryBacked;
+    }
+
+    File getExecutable() {
+        return executable;
+    }
+
+    /**
+     * @return transferred bytes, 0 when the archive was cached already
+     */
+    long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    long getArchiveSize() {
+        return archiveSize;
+    }
+
+    boolean isMemoryBacked() {
+        return memoryBacked;
+    }
+
+}
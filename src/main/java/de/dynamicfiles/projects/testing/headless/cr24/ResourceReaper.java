@@ -0,0 +1,362 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of everything a JVM leaves behind: temporary extractions get deleted and still running chromedriver and
+ * browser processes get killed when the JVM exits. Crashed JVMs can not clean up, so their leftovers get removed by the
+ * next JVM using headless-cr24.
+ * <p>
+ * Ownership is recorded inside a marker file of every temporary folder and inside an environment variable of every
+ * launched chromedriver, which gets inherited by the browser and all its helper processes. Finding processes this way
+ * requires the /proc filesystem (Linux), on other systems only folders get cleaned.
+ *
+ * @author Danny Althoff
+ */
+final class ResourceReaper {
+
+    private static final Logger LOGGER = Logger.getLogger(ResourceReaper.class.getName());
+
+    static final String OWNER_VARIABLE = "CR24_OWNER";
+    static final String OWNER_MARKER = ".cr24-owner";
+
+    // ownership of older or foreign folders can not be checked, only remove them when nobody could be using them anymore
+    static final long STALE_AGE = TimeUnit.DAYS.toMillis(1);
+
+    static final String[] TEMPORARY_FOLDER_PREFIXES = {"webdriver-", "webbrowser-", ProfileTemplate.PROFILE_FOLDER_PREFIX};
+    private static final String[] KNOWN_EXECUTABLES = {"chromedriver", "chromedriver.exe", "chrome", "chrome.exe", "Chromium.app"};
+
+    private static final Path PROC = Paths.get("/proc");
+
+    // same format as used by the archive locks: pid@hostname
+    private static final String OWNER = ManagementFactory.getRuntimeMXBean().getName();
+
+    private static final Set<Path> TEMPORARY_FOLDERS = new LinkedHashSet<>();
+    private static final AtomicBoolean SWEPT = new AtomicBoolean(false);
+    private static boolean shutdownHookRegistered = false;
+
+    private ResourceReaper() {
+        // only static methods
+    }
+
+    static String getOwner() {
+        return OWNER;
+    }
+
+    /**
+     * @return environment for chromedriver, marking it and all processes launched by it as being owned by this JVM
+     */
+    static Map<String, String> getOwnerEnvironment() {
+        return Collections.singletonMap(OWNER_VARIABLE, OWNER);
+    }
+
+    /**
+     * Creates some temporary folder, which gets deleted when the JVM exits.
+     *
+     * @param prefix
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    static Path createTemporaryFolder(String prefix) throws IOException {
+        return createTemporaryFolder(getDefaultTemporaryFolder(), prefix);
+    }
+
+    /**
+     * Creates some temporary folder inside the given parent folder, which gets deleted when the JVM exits.
+     *
+     * @param parentFolder
+     * @param prefix
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    static Path createTemporaryFolder(Path parentFolder, String prefix) throws IOException {
+        Path folder = Files.createTempDirectory(Files.createDirectories(parentFolder), prefix);
+        Properties ownerContent = new Properties();
+        ownerContent.setProperty("owner", OWNER);
+        try(OutputStream ownerStream = Files.newOutputStream(folder.resolve(OWNER_MARKER))){
+            ownerContent.store(ownerStream, null);
+        }
+        synchronized(TEMPORARY_FOLDERS){
+            TEMPORARY_FOLDERS.add(folder);
+            if( !shutdownHookRegistered ){
+                Runtime.getRuntime().addShutdownHook(new Thread(ResourceReaper::cleanUpOwnResources, "cr24-reaper-shutdown"));
+                shutdownHookRegistered = true;
+            }
+        }
+        return folder;
+    }
+
+    /**
+     * Deletes some temporary folder before the JVM exits, e.g. because it could not be filled.
+     *
+     * @param folder
+     */
+    static void deleteTemporaryFolder(Path folder) {
+        synchronized(TEMPORARY_FOLDERS){
+            TEMPORARY_FOLDERS.remove(folder);
+        }
+        delete(folder);
+    }
+
+    static Path getDefaultTemporaryFolder() {
+        return Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Removes leftovers of crashed JVMs in the background, only once per JVM.
+     *
+     * @param executor
+     * @param parentFolders where temporary folders might have been created
+     */
+    static void reapStaleResourcesOnce(Executor executor, List<Path> parentFolders) {
+        if( !SWEPT.compareAndSet(false, true) ){
+            return;
+        }
+        try{
+            executor.execute(() -> {
+                int killedProcesses = killOrphanedProcesses();
+                int deletedFolders = parentFolders.stream().filter(Files::isDirectory).mapToInt(ResourceReaper::deleteStaleFolders).sum();
+                if( killedProcesses > 0 || deletedFolders > 0 ){
+                    LOGGER.log(Level.INFO, "Removed leftovers of previous runs: {0} processes, {1} temporary folders", new Object[]{killedProcesses, deletedFolders});
+                }
+            });
+        } catch(RuntimeException ex){
+            // cleaning up is optional, the next JVM tries again
+            LOGGER.log(Level.FINE, "Could not start removing leftovers of previous runs", ex);
+        }
+    }
+
+    /**
+     * Deletes temporary folders of JVMs which are not running anymore.
+     *
+     * @param parentFolder
+     *
+     * @return amount of deleted folders
+     */
+    static int deleteStaleFolders(Path parentFolder) {
+        int deleted = 0;
+        try(DirectoryStream<Path> folders = Files.newDirectoryStream(parentFolder, ResourceReaper::isTemporaryFolder)){
+            for( Path folder : folders ){
+                if( isStale(folder) && delete(folder) ){
+                    deleted++;
+                }
+            }
+        } catch(IOException | RuntimeException ex){
+            LOGGER.log(Level.FINE, "Could not search for stale temporary folders in " + parentFolder, ex);
+        }
+        return deleted;
+    }
+
+    /**
+     * Kills all processes launched by JVMs which are not running anymore.
+     *
+     * @return amount of killed processes
+     */
+    static int killOrphanedProcesses() {
+        List<String> orphans = new ArrayList<>();
+        findOwnedProcesses().forEach((pid, owner) -> {
+            if( Boolean.FALSE.equals(isOwnerAlive(owner)) ){
+                orphans.add(pid);
+            }
+        });
+        kill(orphans);
+        return orphans.size();
+    }
+
+    private static void cleanUpOwnResources() {
+        // sessions nobody did quit, their processes have to go before their files can be removed
+        List<String> ownProcesses = new ArrayList<>();
+        findOwnedProcesses().forEach((pid, owner) -> {
+            if( OWNER.equals(owner) ){
+                ownProcesses.add(pid);
+            }
+        });
+        kill(ownProcesses);
+
+        List<Path> folders;
+        synchronized(TEMPORARY_FOLDERS){
+            folders = new ArrayList<>(TEMPORARY_FOLDERS);
+            TEMPORARY_FOLDERS.clear();
+        }
+        folders.forEach(ResourceReaper::delete);
+    }
+
+    private static boolean isTemporaryFolder(Path path) {
+        String name = path.getFileName().toString();
+        for( String prefix : TEMPORARY_FOLDER_PREFIXES ){
+            if( name.startsWith(prefix) ){
+                return Files.isDirectory(path);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isStale(Path folder) throws IOException {
+        Path ownerMarker = folder.resolve(OWNER_MARKER);
+        boolean oldEnough = System.currentTimeMillis() - Files.getLastModifiedTime(folder).toMillis() > STALE_AGE;
+        if( !Files.isRegularFile(ownerMarker) ){
+            // created before ownership got recorded, only remove folders which clearly contain some extraction
+            if( !oldEnough ){
+                return false;
+            }
+            for( String executable : KNOWN_EXECUTABLES ){
+                if( Files.exists(folder.resolve(executable)) ){
+                    return true;
+                }
+            }
+            return false;
+        }
+        Properties ownerContent = new Properties();
+        try(InputStream ownerStream = Files.newInputStream(ownerMarker)){
+            ownerContent.load(ownerStream);
+        }
+        Boolean ownerAlive = isOwnerAlive(ownerContent.getProperty("owner", ""));
+        return ownerAlive == null ? oldEnough : !ownerAlive;
+    }
+
+    /**
+     * @param owner
+     *
+     * @return null when it can not be checked (e.g. other host or no /proc)
+     */
+    private static Boolean isOwnerAlive(String owner) {
+        if( OWNER.equals(owner) ){
+            return true;
+        }
+        int separator = owner.indexOf('@');
+        if( separator <= 0 || !owner.substring(separator + 1).equals(OWNER.substring(OWNER.indexOf('@') + 1)) || !Files.isDirectory(PROC) ){
+            return null;
+        }
+        return Files.isDirectory(PROC.resolve(owner.substring(0, separator)));
+    }
+
+    /**
+     * @return owner of every process started by some JVM using headless-cr24, indexed by process id
+     */
+    private static Map<String, String> findOwnedProcesses() {
+        Map<String, String> ownedProcesses = new HashMap<>();
+        if( !Files.isDirectory(PROC) ){
+            return ownedProcesses;
+        }
+        try(DirectoryStream<Path> processes = Files.newDirectoryStream(PROC, path -> path.getFileName().toString().matches("\\d+"))){
+            for( Path process : processes ){
+                String owner = readOwner(process);
+                if( owner != null ){
+                    ownedProcesses.put(process.getFileName().toString(), owner);
+                }
+            }
+        } catch(IOException | RuntimeException ex){
+            LOGGER.log(Level.FINE, "Could not search for processes", ex);
+        }
+        return ownedProcesses;
+    }
+
+    /**
+     * @param pid
+     *
+     * @return true when the process got started by this JVM (directly or by some process launched by it)
+     */
+    static boolean isOwnProcess(int pid) {
+        return OWNER.equals(readOwner(PROC.resolve(String.valueOf(pid))));
+    }
+
+    /**
+     * @param process folder of the process inside /proc
+     *
+     * @return null when the process is not owned by any JVM using headless-cr24 or its environment can not be read
+     */
+    private static String readOwner(Path process) {
+        byte[] environment;
+        try{
+            environment = Files.readAllBytes(process.resolve("environ"));
+        } catch(IOException ex){
+            // processes of other users or already gone
+            return null;
+        }
+        String ownerPrefix = OWNER_VARIABLE + "=";
+        for( String variable : new String(environment, StandardCharsets.UTF_8).split("\u0000") ){
+            if( variable.startsWith(ownerPrefix) ){
+                return variable.substring(ownerPrefix.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Kills the given processes immediately (SIGKILL), unknown processes are ignored.
+     *
+     * @param pids
+     */
+    static void kill(List<String> pids) {
+        if( pids.isEmpty() ){
+            return;
+        }
+        List<String> command = new ArrayList<>();
+        command.add("kill");
+        command.add("-KILL");
+        command.addAll(pids);
+        try{
+            Process killing = new ProcessBuilder(command).redirectErrorStream(true).start();
+            if( !killing.waitFor(5, TimeUnit.SECONDS) ){
+                killing.destroyForcibly();
+            }
+        } catch(IOException ex){
+            LOGGER.log(Level.FINE, "Could not kill processes " + pids, ex);
+        } catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean delete(Path folder) {
+        try{
+            if( Files.exists(folder) ){
+                new Utils().deleteRecursive(folder);
+            }
+            return true;
+        } catch(IOException ex){
+            LOGGER.log(Level.FINE, "Could not delete " + folder, ex);
+            return false;
+        }
+    }
+
+}
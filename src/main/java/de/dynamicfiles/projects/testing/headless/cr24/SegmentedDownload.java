@@ -0,0 +1,496 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Downloads one file into a ".part"-file next to the target, using multiple HTTP range requests in parallel when the
+ * server supports them. Progress of every segment is stored inside a ".part.segments"-file, so an interrupted download
+ * continues where it stopped. The target file only appears (by renaming the ".part"-file) after all bytes arrived.
+ *
+ * @author Danny Althoff
+ */
+final class SegmentedDownload {
+
+    static final String PART_SUFFIX = ".part";
+    static final String STATE_SUFFIX = ".part.segments";
+
+    // splitting smaller files does not pay off, the additional requests cost more than they gain
+    static final long MINIMUM_SEGMENT_SIZE = 4L * 1024 * 1024;
+    private static final long STATE_SAVE_INTERVAL = 4L * 1024 * 1024;
+
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    // segments run on their own pool, the provisioning executor might be bounded and is waiting for this download
+    private static final ExecutorService SEGMENT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cr24-download-segment");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class SegmentState {
+
+        private final long length;
+        private final String validator;
+        private final long[] starts;
+        private final long[] ends;
+        private final AtomicLongArray completed;
+
+        SegmentState(long length, String validator, int segmentCount) {
+            this.length = length;
+            this.validator = validator;
+            this.starts = new long[segmentCount];
+            this.ends = new long[segmentCount];
+            this.completed = new AtomicLongArray(segmentCount);
+            long segmentSize = length / segmentCount;
+            for( int segment = 0; segment < segmentCount; segment++ ){
+                starts[segment] = segment * segmentSize;
+                // last segment takes the remaining bytes
+                ends[segment] = segment == segmentCount - 1 ? length - 1 : (segment + 1) * segmentSize - 1;
+            }
+        }
+
+        long remaining(int segment) {
+            return ends[segment] - starts[segment] + 1 - completed.get(segment);
+        }
+
+        int segmentOf(long position) {
+            for( int segment = 0; segment < starts.length; segment++ ){
+                if( position >= starts[segment] && position <= ends[segment] ){
+                    return segment;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Digests the bytes in file order while segments arrive in parallel. Bytes written right at the end of the already
+     * digested range are digested directly; when some segment is ahead, the digest catches up by reading the bytes it
+     * already wrote (still inside the page cache) and then follows that segment directly again.
+     */
+    private final class InlineDigest {
+
+        private final MessageDigest digest;
+        private final SegmentState state;
+        private long digestedUpTo = 0;
+
+        InlineDigest(MessageDigest digest, SegmentState state) {
+            this.digest = digest;
+            this.state = state;
+        }
+
+        synchronized void update(int segment, long offset, byte[] buffer, int length) throws IOException {
+            if( offset > digestedUpTo && state.segmentOf(digestedUpTo) == segment ){
+                catchUp(offset);
+            }
+            if( offset == digestedUpTo ){
+                digest.update(buffer, 0, length);
+                digestedUpTo += length;
+            }
+        }
+
+        synchronized String finish() throws IOException {
+            catchUp(state.length);
+            return new Utils().toHex(digest.digest());
+        }
+
+        private void catchUp(long upTo) throws IOException {
+            try(FileChannel partChannel = FileChannel.open(partFile, StandardOpenOption.READ)){
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                while( digestedUpTo < upTo ){
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), upTo - digestedUpTo));
+                    int read = partChannel.read(buffer, digestedUpTo);
+                    if( read <= 0 ){
+                        throw new IOException("Unexpected end of downloaded file " + partFile);
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    digestedUpTo += read;
+                }
+            }
+        }
+    }
+
+    private final String source;
+    private final Path target;
+    private final Path partFile;
+    private final Path stateFile;
+    private final int connectionTimeout;
+    private final int readTimeout;
+    private final int maxSegments;
+    private final ArchiveChecksum checksum;
+
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private volatile boolean aborted = false;
+    private volatile boolean cancelled = false;
+    private volatile CloseableHttpClient runningClient;
+    private volatile boolean discardPartialDownload = false;
+
+    private MessageDigest wholeDigest;
+    private InlineDigest segmentDigest;
+
+    SegmentedDownload(String source, Path target, int connectionTimeout, int readTimeout, int maxSegments, ArchiveChecksum checksum) {
+        this.source = source;
+        this.target = target;
+        this.partFile = target.resolveSibling(target.getFileName().toString() + PART_SUFFIX);
+        this.stateFile = target.resolveSibling(target.getFileName().toString() + STATE_SUFFIX);
+        this.connectionTimeout = connectionTimeout;
+        this.readTimeout = readTimeout;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return amount of bytes transferred by this run, resumed parts are not counted
+     *
+     * @throws IOException
+     */
+    long run() throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        try(CloseableHttpClient client = createClient(connectionTimeout, readTimeout, maxSegments)){
+            runningClient = client;
+            if( cancelled ){
+                throw new IOException("Download got cancelled: " + source);
+            }
+            SegmentState state = loadState();
+            if( state == null ){
+                state = probe(client);
+            }
+            // no state means the server did send the whole file already
+            String digest;
+            if( state != null ){
+                segmentDigest = new InlineDigest(checksum.createDigest(), state);
+                downloadSegments(client, state);
+                digest = segmentDigest.finish();
+            } else {
+                digest = new Utils().toHex(wholeDigest.digest());
+            }
+            // a corrupt download can not be resumed, it has to start from scratch
+            discardPartialDownload = true;
+            checksum.verify(source, digest);
+            checksum.store(target, digest, Files.size(partFile));
+        } catch(IOException | RuntimeException ex){
+            if( discardPartialDownload ){
+                Files.deleteIfExists(partFile);
+                Files.deleteIfExists(stateFile);
+            }
+            throw ex;
+        } finally{
+            runningClient = null;
+        }
+
+        try{
+            Files.move(partFile, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException ex){
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(stateFile);
+        return transferredBytes.get();
+    }
+
+    long getTransferredBytes() {
+        return transferredBytes.get();
+    }
+
+    /**
+     * Stops a running download from another thread, the running call fails and leaves everything for resuming later.
+     */
+    void cancel() {
+        cancelled = true;
+        aborted = true;
+        CloseableHttpClient client = runningClient;
+        if( client != null ){
+            try{
+                // drops all open connections, so blocked reads return immediately
+                client.close();
+            } catch(IOException ex){
+                // the download fails anyway
+            }
+        }
+    }
+
+    static CloseableHttpClient createClient(int connectionTimeout, int readTimeout, int maxConnections) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectionTimeout)
+                .setConnectionRequestTimeout(readTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+        return HttpClientBuilder.create()
+                .useSystemProperties()
+                .setMaxConnPerRoute(maxConnections)
+                .setMaxConnTotal(maxConnections)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+    }
+
+    /**
+     * Requests the first byte only, which tells if the server supports range requests and how big the file is. Servers
+     * without range support answer with the whole file, which then gets written directly.
+     */
+    private SegmentState probe(CloseableHttpClient client) throws IOException {
+        HttpGet request = new HttpGet(source);
+        request.setHeader("Range", "bytes=0-0");
+        try(CloseableHttpResponse response = client.execute(request)){
+            int statusCode = response.getStatusLine().getStatusCode();
+            if( statusCode == HttpStatus.SC_PARTIAL_CONTENT ){
+                long length = parseTotalLength(response);
+                EntityUtils.consume(response.getEntity());
+                if( length > 0 ){
+                    int segmentCount = (int) Math.max(1, Math.min(maxSegments, length / MINIMUM_SEGMENT_SIZE));
+                    SegmentState state = new SegmentState(length, getValidator(response), segmentCount);
+                    try(RandomAccessFile preallocatedFile = new RandomAccessFile(partFile.toFile(), "rw")){
+                        preallocatedFile.setLength(length);
+                    }
+                    saveState(state);
+                    return state;
+                }
+                // unknown length, fall back to a plain download
+                downloadWhole(client);
+                return null;
+            }
+            if( statusCode == HttpStatus.SC_OK ){
+                writeWhole(response.getEntity());
+                return null;
+            }
+            throw new IOException("Unexpected HTTP status " + statusCode + " while downloading " + source);
+        }
+    }
+
+    private void downloadWhole(CloseableHttpClient client) throws IOException {
+        try(CloseableHttpResponse response = client.execute(new HttpGet(source))){
+            int statusCode = response.getStatusLine().getStatusCode();
+            if( statusCode != HttpStatus.SC_OK ){
+                throw new IOException("Unexpected HTTP status " + statusCode + " while downloading " + source);
+            }
+            writeWhole(response.getEntity());
+        }
+    }
+
+    private void writeWhole(HttpEntity entity) throws IOException {
+        if( entity == null ){
+            throw new IOException("Got no content while downloading " + source);
+        }
+        wholeDigest = checksum.createDigest();
+        try(InputStream content = entity.getContent(); OutputStream partStream = Files.newOutputStream(partFile)){
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while( (read = content.read(buffer)) != -1 ){
+                if( cancelled ){
+                    throw new IOException("Download got cancelled: " + source);
+                }
+                partStream.write(buffer, 0, read);
+                wholeDigest.update(buffer, 0, read);
+                transferredBytes.addAndGet(read);
+            }
+        }
+    }
+
+    private void downloadSegments(CloseableHttpClient client, SegmentState state) throws IOException {
+        List<Future<?>> runningSegments = new ArrayList<>();
+        for( int segment = 0; segment < state.starts.length; segment++ ){
+            if( state.remaining(segment) <= 0 ){
+                continue;
+            }
+            int segmentToDownload = segment;
+            runningSegments.add(SEGMENT_EXECUTOR.submit(() -> {
+                downloadSegment(client, state, segmentToDownload);
+                return null;
+            }));
+        }
+
+        IOException failure = null;
+        for( Future<?> runningSegment : runningSegments ){
+            try{
+                runningSegment.get();
+            } catch(ExecutionException ex){
+                // stop the other segments, what they have got so far is stored for resuming
+                aborted = true;
+                if( failure == null ){
+                    failure = ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException("Problems while downloading " + source, ex.getCause());
+                }
+            } catch(InterruptedException ex){
+                aborted = true;
+                Thread.currentThread().interrupt();
+                if( failure == null ){
+                    failure = new IOException("Interrupted while downloading " + source, ex);
+                }
+            }
+        }
+        saveState(state);
+        if( failure != null ){
+            throw failure;
+        }
+        if( cancelled ){
+            // segments stop silently when aborted, the preallocated file is incomplete
+            throw new IOException("Download got cancelled: " + source);
+        }
+        if( Files.size(partFile) != state.length ){
+            discardPartialDownload = true;
+            throw new IOException("Downloaded file has unexpected size: " + source);
+        }
+    }
+
+    private void downloadSegment(CloseableHttpClient client, SegmentState state, int segment) throws IOException {
+        long position = state.starts[segment] + state.completed.get(segment);
+        HttpGet request = new HttpGet(source);
+        request.setHeader("Range", "bytes=" + position + "-" + state.ends[segment]);
+        try(CloseableHttpResponse response = client.execute(request)){
+            int statusCode = response.getStatusLine().getStatusCode();
+            if( statusCode != HttpStatus.SC_PARTIAL_CONTENT ){
+                throw new IOException("Unexpected HTTP status " + statusCode + " while downloading segment of " + source);
+            }
+            String validator = getValidator(response);
+            if( parseTotalLength(response) != state.length || (state.validator != null && validator != null && !state.validator.equals(validator)) ){
+                discardPartialDownload = true;
+                throw new IOException("Remote file changed while downloading " + source);
+            }
+
+            long unsavedBytes = 0;
+            // the content stream is not closed on its own, as that would read all remaining bytes when being aborted,
+            // closing the response just drops the connection instead
+            InputStream content = response.getEntity().getContent();
+            try(FileChannel partChannel = FileChannel.open(partFile, StandardOpenOption.WRITE)){
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while( (read = content.read(buffer)) != -1 ){
+                    if( aborted ){
+                        return;
+                    }
+                    ByteBuffer writeBuffer = ByteBuffer.wrap(buffer, 0, read);
+                    long writePosition = position;
+                    while( writeBuffer.hasRemaining() ){
+                        position += partChannel.write(writeBuffer, position);
+                    }
+                    segmentDigest.update(segment, writePosition, buffer, read);
+                    // only count what is written, this way the stored state never claims more than existing
+                    state.completed.addAndGet(segment, read);
+                    transferredBytes.addAndGet(read);
+                    unsavedBytes += read;
+                    if( unsavedBytes >= STATE_SAVE_INTERVAL ){
+                        saveState(state);
+                        unsavedBytes = 0;
+                    }
+                }
+            }
+        }
+        if( state.remaining(segment) != 0 ){
+            throw new IOException("Connection closed before segment was complete while downloading " + source);
+        }
+    }
+
+    private long parseTotalLength(HttpResponse response) {
+        Header contentRange = response.getFirstHeader("Content-Range");
+        if( contentRange == null ){
+            return -1;
+        }
+        Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange.getValue());
+        if( !matcher.find() || "*".equals(matcher.group(3)) ){
+            return -1;
+        }
+        return Long.parseLong(matcher.group(3));
+    }
+
+    private String getValidator(HttpResponse response) {
+        Header validator = response.getFirstHeader("ETag");
+        if( validator == null ){
+            validator = response.getFirstHeader("Last-Modified");
+        }
+        if( validator == null ){
+            return null;
+        }
+        return validator.getValue();
+    }
+
+    private SegmentState loadState() {
+        if( !Files.isRegularFile(stateFile) || !Files.isRegularFile(partFile) ){
+            return null;
+        }
+        Properties stateContent = new Properties();
+        try(InputStream stateStream = Files.newInputStream(stateFile)){
+            stateContent.load(stateStream);
+            if( !source.equals(stateContent.getProperty("source")) ){
+                return null;
+            }
+            long length = Long.parseLong(stateContent.getProperty("length"));
+            int segmentCount = Integer.parseInt(stateContent.getProperty("segments"));
+            if( Files.size(partFile) != length ){
+                return null;
+            }
+            SegmentState state = new SegmentState(length, stateContent.getProperty("validator"), segmentCount);
+            for( int segment = 0; segment < segmentCount; segment++ ){
+                state.completed.set(segment, Long.parseLong(stateContent.getProperty("segment." + segment + ".completed")));
+            }
+            return state;
+        } catch(IOException | RuntimeException ex){
+            // broken state, just start over
+            return null;
+        }
+    }
+
+    private synchronized void saveState(SegmentState state) throws IOException {
+        Properties stateContent = new Properties();
+        stateContent.setProperty("source", source);
+        stateContent.setProperty("length", String.valueOf(state.length));
+        stateContent.setProperty("segments", String.valueOf(state.starts.length));
+        if( state.validator != null ){
+            stateContent.setProperty("validator", state.validator);
+        }
+        for( int segment = 0; segment < state.starts.length; segment++ ){
+            stateContent.setProperty("segment." + segment + ".completed", String.valueOf(state.completed.get(segment)));
+        }
+        Path temporaryStateFile = stateFile.resolveSibling(stateFile.getFileName().toString() + ".tmp");
+        try(OutputStream stateStream = Files.newOutputStream(temporaryStateFile)){
+            stateContent.store(stateStream, null);
+        }
+        Files.move(temporaryStateFile, stateFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.openqa.selenium.NoAlertPresentException;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.remote.BeanToJsonConverter;
+import org.openqa.selenium.remote.HttpCommandExecutor;
+import org.openqa.selenium.remote.JsonToBeanConverter;
+import org.openqa.selenium.remote.RemoteWebDriver;
+
+/**
+ * Resets a running session to the state of a freshly launched one: cookies, local storage (and the other per-origin
+ * storages), extra windows and the navigation history get removed. This is done via the DevTools commands chromedriver
+ * passes through, so the browser process keeps running.
+ * <p>
+ * DevTools can only clear storages per origin and can not list the origins having some. Cleared are the origins of
+ * every page and frame inside the navigation histories of the open windows and the origins of all cookies. Storages
+ * written only by windows or frames which are gone already before recycling (without setting cookies) are not found,
+ * neither for clearing nor by the check.
+ * <p>
+ * Session storage and navigation history belong to the tab, so instead of clearing them a fresh tab replaces all
+ * existing ones.
+ * <p>
+ * Afterwards the session gets checked for being clean: one blank tab without history, no cookies and no quota-managed
+ * storage (IndexedDB, Cache Storage, service workers, file systems, WebSQL) left for the cleared origins. Local storage
+ * is not quota-managed and only readable by pages of its origin, which would have to be loaded (and could write it
+ * again), so it is not part of that check.
+ *
+ * @author Danny Althoff
+ */
+final class SessionRecycler {
+
+    static final String BLANK_PAGE = "about:blank";
+
+    private static final String DEVTOOLS_COMMAND_PATH = "/chromium/send_command_and_get_result";
+    private static final String CLEARED_STORAGE_TYPES = "appcache,cookies,file_systems,indexeddb,local_storage,shader_cache,websql,service_workers,cache_storage";
+
+    private static final int COMMAND_TIMEOUT = 10000;
+    private static final long WINDOW_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    private final RemoteWebDriver driver;
+    private final String commandUrl;
+
+    SessionRecycler(RemoteWebDriver driver) {
+        this.driver = driver;
+        this.commandUrl = ((HttpCommandExecutor) driver.getCommandExecutor()).getAddressOfRemoteServer() + "/session/" + driver.getSessionId() + DEVTOOLS_COMMAND_PATH;
+    }
+
+    /**
+     * @throws IOException when the session could not be reset or is still not clean afterwards, it should be quit then
+     */
+    void recycle() throws IOException {
+        try(CloseableHttpClient client = createClient()){
+            List<String> previousWindows = new ArrayList<>(driver.getWindowHandles());
+            if( previousWindows.isEmpty() ){
+                throw new IOException("Session has no window left");
+            }
+
+            // storages are per origin, so every origin the session got in touch with has to be cleared
+            Set<String> origins = new LinkedHashSet<>();
+            for( String window : previousWindows ){
+                driver.switchTo().window(window);
+                dismissAlert();
+                for( Object entry : getList(sendDevToolsCommand(client, "Page.getNavigationHistory", Collections.emptyMap()), "entries") ){
+                    addOrigin(origins, String.valueOf(((Map<?, ?>) entry).get("url")));
+                }
+                // iframes (e.g. embedded logins) write storages of their own origin
+                addFrameOrigins(origins, sendDevToolsCommand(client, "Page.getFrameTree", Collections.emptyMap()).get("frameTree"));
+            }
+            for( Object cookie : getList(sendDevToolsCommand(client, "Network.getAllCookies", Collections.emptyMap()), "cookies") ){
+                String domain = String.valueOf(((Map<?, ?>) cookie).get("domain"));
+                domain = domain.startsWith(".") ? domain.substring(1) : domain;
+                origins.add("http://" + domain);
+                origins.add("https://" + domain);
+            }
+
+            String freshWindow = openFreshWindow(previousWindows);
+            for( String window : previousWindows ){
+                driver.switchTo().window(window);
+                driver.close();
+            }
+            driver.switchTo().window(freshWindow);
+
+            sendDevToolsCommand(client, "Network.clearBrowserCookies", Collections.emptyMap());
+            for( String origin : origins ){
+                sendDevToolsCommand(client, "Storage.clearDataForOrigin", ImmutableMap.of("origin", origin, "storageTypes", CLEARED_STORAGE_TYPES));
+            }
+
+            verifyClean(client, freshWindow, origins);
+        } catch(WebDriverException | ClassCastException ex){
+            throw new IOException("Could not recycle session " + driver.getSessionId(), ex);
+        }
+    }
+
+    private String openFreshWindow(List<String> previousWindows) throws IOException {
+        // without opener the new tab does not inherit the session storage
+        driver.executeScript("window.open('" + BLANK_PAGE + "', '_blank', 'noopener');");
+        long deadline = System.nanoTime() + WINDOW_TIMEOUT;
+        while( true ){
+            Set<String> windows = new LinkedHashSet<>(driver.getWindowHandles());
+            windows.removeAll(previousWindows);
+            if( !windows.isEmpty() ){
+                return windows.iterator().next();
+            }
+            if( System.nanoTime() >= deadline ){
+                throw new IOException("Fresh window did not open, popups might be blocked");
+            }
+            try{
+                Thread.sleep(10);
+            } catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the fresh window");
+            }
+        }
+    }
+
+    /**
+     * Checks windows, history and cookies of the whole browser, but storages only of the cleared origins, as DevTools
+     * can not list the origins having some.
+     */
+    private void verifyClean(CloseableHttpClient client, String freshWindow, Set<String> clearedOrigins) throws IOException {
+        Set<String> windows = driver.getWindowHandles();
+        if( windows.size() != 1 || !windows.contains(freshWindow) ){
+            throw new IOException("Expected only the fresh window, but found " + windows.size() + " windows");
+        }
+        List<?> history = getList(sendDevToolsCommand(client, "Page.getNavigationHistory", Collections.emptyMap()), "entries");
+        if( history.size() != 1 || !BLANK_PAGE.equals(((Map<?, ?>) history.get(0)).get("url")) ){
+            throw new IOException("Navigation history was not reset, found " + history.size() + " entries");
+        }
+        List<?> cookies = getList(sendDevToolsCommand(client, "Network.getAllCookies", Collections.emptyMap()), "cookies");
+        if( !cookies.isEmpty() ){
+            throw new IOException("Cookies were not cleared, found " + cookies.size() + " cookies");
+        }
+        for( String origin : clearedOrigins ){
+            Map<?, ?> usageAndQuota = sendDevToolsCommand(client, "Storage.getUsageAndQuota", ImmutableMap.of("origin", origin));
+            for( Object usage : getList(usageAndQuota, "usageBreakdown") ){
+                Object usedBytes = ((Map<?, ?>) usage).get("usage");
+                if( usedBytes instanceof Number && ((Number) usedBytes).longValue() > 0 ){
+                    throw new IOException("Storage of " + origin + " was not cleared, " + ((Map<?, ?>) usage).get("storageType") + " still uses " + usedBytes + " bytes");
+                }
+            }
+        }
+    }
+
+    private void dismissAlert() {
+        try{
+            driver.switchTo().alert().dismiss();
+        } catch(NoAlertPresentException ex){
+            // nothing to dismiss
+        }
+    }
+
+    private void addOrigin(Set<String> origins, String url) {
+        try{
+            URI uri = new URI(url);
+            if( uri.getHost() == null || !("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) ){
+                return;
+            }
+            origins.add(uri.getScheme() + "://" + uri.getHost() + (uri.getPort() == -1 ? "" : ":" + uri.getPort()));
+        } catch(URISyntaxException ex){
+            // data- or javascript-urls do not have storages of their own
+        }
+    }
+
+    private void addFrameOrigins(Set<String> origins, Object frameTree) {
+        if( !(frameTree instanceof Map) ){
+            return;
+        }
+        Object frame = ((Map<?, ?>) frameTree).get("frame");
+        if( frame instanceof Map ){
+            addOrigin(origins, String.valueOf(((Map<?, ?>) frame).get("url")));
+        }
+        for( Object childFrameTree : getList((Map<?, ?>) frameTree, "childFrames") ){
+            addFrameOrigins(origins, childFrameTree);
+        }
+    }
+
+    private List<?> getList(Map<?, ?> result, String key) {
+        Object value = result.get(key);
+        return value instanceof List ? (List<?>) value : Collections.emptyList();
+    }
+
+    /**
+     * Sends the DevTools command to the tab of the current window.
+     */
+    private Map<?, ?> sendDevToolsCommand(CloseableHttpClient client, String command, Map<String, ?> parameters) throws IOException {
+        HttpPost request = new HttpPost(commandUrl);
+        request.setEntity(new StringEntity(new BeanToJsonConverter().convert(ImmutableMap.of("cmd", command, "params", parameters)), ContentType.APPLICATION_JSON));
+        try(CloseableHttpResponse response = client.execute(request)){
+            String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            if( response.getStatusLine().getStatusCode() != HttpStatus.SC_OK ){
+                throw new IOException("DevTools command " + command + " failed with HTTP status " + response.getStatusLine().getStatusCode() + ": " + body);
+            }
+            Map<?, ?> decoded = new JsonToBeanConverter().convert(Map.class, body);
+            // the JSON wire protocol reports errors with status 200 too
+            Object status = decoded.get("status");
+            if( status instanceof Number && ((Number) status).intValue() != 0 ){
+                throw new IOException("DevTools command " + command + " failed: " + decoded.get("value"));
+            }
+            Object value = decoded.get("value");
+            return value instanceof Map ? (Map<?, ?>) value : Collections.emptyMap();
+        }
+    }
+
+    private static CloseableHttpClient createClient() {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(COMMAND_TIMEOUT)
+                .setSocketTimeout(COMMAND_TIMEOUT)
+                .build();
+        return HttpClientBuilder.create().setDefaultRequestConfig(requestConfig).build();
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.remote.HttpCommandExecutor;
+
+/**
+ * Detects hanging sessions and kills their processes, which makes blocked webdriver commands fail right away.
+ * <p>
+ * A session hangs when one of its commands runs longer than the hang timeout, or when chromedriver (its status) and the
+ * browser (its DevTools version endpoint) did not answer heartbeats for that long. Heartbeats are answered by the
+ * processes themselves without going through the session, so they are not queued behind the blocked command. The
+ * heartbeats of all sessions are sent at once, a round takes at most one heartbeat timeout regardless of the amount of
+ * hanging sessions.
+ * Finding the processes requires /proc (Linux), only processes launched by this JVM get killed.
+ *
+ * @author Danny Althoff
+ */
+final class SessionWatchdog {
+
+    private static final Logger LOGGER = Logger.getLogger(SessionWatchdog.class.getName());
+
+    private static final class WatchedSession {
+
+        private final ManagedChromeDriver driver;
+        private final boolean sharedService;
+        private final int webdriverPort;
+        private final String webdriverStatusUrl;
+        // null when the browser does not report its DevTools address
+        private final String browserVersionUrl;
+        private final String userDataDir;
+        private long lastHeartbeatNanos = System.nanoTime();
+
+        WatchedSession(ManagedChromeDriver driver, boolean sharedService, URL webdriverUrl, String debuggerAddress, String userDataDir) {
+            this.driver = driver;
+            this.sharedService = sharedService;
+            this.webdriverPort = webdriverUrl.getPort();
+            this.webdriverStatusUrl = webdriverUrl + "/status";
+            this.browserVersionUrl = debuggerAddress == null ? null : "http://" + debuggerAddress + "/json/version";
+            this.userDataDir = userDataDir;
+        }
+    }
+
+    private final long hangTimeoutNanos;
+    private final List<WatchedSession> sessions = new ArrayList<>();
+    private final CloseableHttpClient heartbeatClient;
+
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cr24-session-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // heartbeats of all sessions run at once, so hanging sessions do not delay checking the others
+    private final ExecutorService heartbeatSender = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cr24-session-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    SessionWatchdog(int hangTimeout, int heartbeatInterval) {
+        this.hangTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(hangTimeout);
+        // a heartbeat must never take longer than the next one
+        int heartbeatTimeout = Math.max(1, Math.min(hangTimeout, heartbeatInterval));
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(heartbeatTimeout)
+                .setConnectionRequestTimeout(heartbeatTimeout)
+                .setSocketTimeout(heartbeatTimeout)
+                .build();
+        // one heartbeat per address and round, the pool must never make them wait for each other
+        this.heartbeatClient = HttpClientBuilder.create()
+                .setDefaultRequestConfig(requestConfig)
+                .setMaxConnTotal(Integer.MAX_VALUE)
+                .setMaxConnPerRoute(Integer.MAX_VALUE)
+                .build();
+        checker.scheduleWithFixedDelay(this::check, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    void watch(ManagedChromeDriver driver, boolean sharedService) {
+        Capabilities capabilities = driver.getCapabilities();
+        URL webdriverUrl = ((HttpCommandExecutor) driver.getCommandExecutor()).getAddressOfRemoteServer();
+        WatchedSession session = new WatchedSession(driver, sharedService, webdriverUrl, getNested(capabilities, "goog:chromeOptions", "debuggerAddress"), getNested(capabilities, "chrome", "userDataDir"));
+        synchronized(sessions){
+            sessions.add(session);
+        }
+    }
+
+    private String getNested(Capabilities capabilities, String capabilityName, String key) {
+        Object capability = capabilities.getCapability(capabilityName);
+        Object value = capability instanceof Map ? ((Map<?, ?>) capability).get(key) : null;
+        return value == null ? null : value.toString();
+    }
+
+    private void check() {
+        List<WatchedSession> sessionsToCheck;
+        synchronized(sessions){
+            // quit sessions do not have to be watched anymore
+            sessions.removeIf(session -> session.driver.getSessionId() == null);
+            sessionsToCheck = new ArrayList<>(sessions);
+        }
+        // sessions of a shared chromedriver have the same status address
+        Map<String, CompletableFuture<Boolean>> heartbeats = new HashMap<>();
+        for( WatchedSession session : sessionsToCheck ){
+            sendHeartbeat(heartbeats, session.webdriverStatusUrl);
+            if( session.browserVersionUrl != null ){
+                sendHeartbeat(heartbeats, session.browserVersionUrl);
+            }
+        }
+        for( WatchedSession session : sessionsToCheck ){
+            try{
+                check(session, heartbeats);
+            } catch(RuntimeException ex){
+                // the other sessions have to be checked anyway
+                LOGGER.log(Level.WARNING, "Could not check session for hanging", ex);
+            }
+        }
+    }
+
+    private void sendHeartbeat(Map<String, CompletableFuture<Boolean>> heartbeats, String url) {
+        heartbeats.computeIfAbsent(url, heartbeatUrl -> CompletableFuture.supplyAsync(() -> isAnswering(heartbeatUrl), heartbeatSender));
+    }
+
+    private void check(WatchedSession session, Map<String, CompletableFuture<Boolean>> heartbeats) {
+        boolean webdriverResponsive = heartbeats.get(session.webdriverStatusUrl).join();
+        boolean browserResponsive = session.browserVersionUrl == null || heartbeats.get(session.browserVersionUrl).join();
+        long now = System.nanoTime();
+        if( webdriverResponsive && browserResponsive ){
+            session.lastHeartbeatNanos = now;
+        }
+
+        long runningCommandNanos = session.driver.getRunningCommandNanos();
+        if( runningCommandNanos > hangTimeoutNanos ){
+            kill(session, webdriverResponsive, "command " + session.driver.getRunningCommand() + " is running for " + TimeUnit.NANOSECONDS.toMillis(runningCommandNanos) + "ms");
+        } else if( now - session.lastHeartbeatNanos > hangTimeoutNanos ){
+            kill(session, webdriverResponsive, (webdriverResponsive ? "browser" : "chromedriver") + " did not answer heartbeats for " + TimeUnit.NANOSECONDS.toMillis(now - session.lastHeartbeatNanos) + "ms");
+        }
+    }
+
+    private boolean isAnswering(String url) {
+        try(CloseableHttpResponse response = heartbeatClient.execute(new HttpGet(url))){
+            EntityUtils.consumeQuietly(response.getEntity());
+            return response.getStatusLine().getStatusCode() == HttpStatus.SC_OK;
+        } catch(IOException ex){
+            return false;
+        }
+    }
+
+    private void kill(WatchedSession session, boolean webdriverResponsive, String reason) {
+        synchronized(sessions){
+            sessions.remove(session);
+        }
+        session.driver.markUnresponsive();
+
+        ProcessTable processTable = ProcessTable.read();
+        Set<Integer> roots = new LinkedHashSet<>();
+        if( session.userDataDir != null ){
+            roots.addAll(processTable.findByArgument("--user-data-dir=" + session.userDataDir));
+        }
+        // a shared chromedriver serves other sessions too, it only gets killed when it hangs itself
+        if( !session.sharedService || !webdriverResponsive ){
+            roots.addAll(processTable.findByArgument("--port=" + session.webdriverPort));
+        }
+        // the arguments are not unique on this host, other users or JVMs might run processes having the same ones
+        int ownPid = getOwnPid();
+        Set<Integer> ownProcesses = processTable.getTree(Collections.singletonList(ownPid));
+        roots.removeIf(pid -> pid == ownPid || !ownProcesses.contains(pid) && !ResourceReaper.isOwnProcess(pid));
+        Set<Integer> processes = processTable.getTree(roots);
+        if( processes.isEmpty() ){
+            LOGGER.log(Level.WARNING, "Session {0} hangs ({1}), but its processes could not be found", new Object[]{session.driver.getSessionId(), reason});
+            return;
+        }
+        LOGGER.log(Level.WARNING, "Session {0} hangs ({1}), killing {2} processes", new Object[]{session.driver.getSessionId(), reason, processes.size()});
+        ResourceReaper.kill(processes.stream().map(String::valueOf).collect(Collectors.toList()));
+    }
+
+    private static int getOwnPid() {
+        String owner = ResourceReaper.getOwner();
+        return Integer.parseInt(owner.substring(0, owner.indexOf('@')));
+    }
+
+}
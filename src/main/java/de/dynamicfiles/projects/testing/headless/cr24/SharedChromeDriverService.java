@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openqa.selenium.chrome.ChromeDriverService;
+import org.openqa.selenium.net.PortProber;
+
+/**
+ * One chromedriver process per executable, used by many ChromeDriver sessions at once. Every ChromeDriver calls "stop" on
+ * its service when being quit, so the process only gets stopped when the last session released it.
+ * <p>
+ * A process which died (e.g. killed by the watchdog) gets replaced for new sessions, the sessions still referencing it
+ * release it as usual.
+ *
+ * @author Danny Althoff
+ */
+final class SharedChromeDriverService extends ChromeDriverService {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedChromeDriverService.class.getName());
+
+    private static final Map<String, SharedChromeDriverService> RUNNING_SERVICES = new HashMap<>();
+
+    private final String executablePath;
+    private int sessionCount = 0;
+    // the process is not running while being started, that must not be mistaken for having died
+    private volatile boolean startFinished = false;
+
+    private SharedChromeDriverService(File executable, int port) throws IOException {
+        super(executable, port, ImmutableList.of(String.format("--port=%d", port)), ImmutableMap.copyOf(ResourceReaper.getOwnerEnvironment()));
+        this.executablePath = executable.getAbsolutePath();
+    }
+
+    /**
+     * Get the service for the given executable and register one more session on it. Each call has to be balanced by one
+     * call of "stop", which is done by ChromeDriver::quit.
+     *
+     * @param executable
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    static SharedChromeDriverService acquire(File executable) throws IOException {
+        synchronized(RUNNING_SERVICES){
+            SharedChromeDriverService service = RUNNING_SERVICES.get(executable.getAbsolutePath());
+            if( service != null && service.startFinished && !service.isRunning() ){
+                // starting it again is not possible, Selenium considers a service started once as running forever
+                LOGGER.log(Level.INFO, "Shared chromedriver on {0} is not running anymore, starting a new one", service.getUrl());
+                RUNNING_SERVICES.remove(service.executablePath);
+                service = null;
+            }
+            if( service == null ){
+                service = new SharedChromeDriverService(executable, PortProber.findFreePort());
+                RUNNING_SERVICES.put(service.executablePath, service);
+            }
+            service.sessionCount++;
+            return service;
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        try{
+            super.start();
+        } finally{
+            startFinished = true;
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized(RUNNING_SERVICES){
+            if( sessionCount > 0 ){
+                sessionCount--;
+            }
+            if( sessionCount > 0 ){
+                return;
+            }
+            // new sessions have to get a fresh service from now on
+            RUNNING_SERVICES.remove(executablePath, this);
+        }
+        super.stop();
+    }
+
+}
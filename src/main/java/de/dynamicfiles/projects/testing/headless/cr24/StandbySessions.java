@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.chrome.ChromeDriver;
+
+/**
+ * Keeps some already launched sessions of a Cr24ConfigurationBuilder ready, so building a ChromeDriver only has to hand
+ * out one of them. Every claimed session gets replaced in the background.
+ *
+ * @author Danny Althoff
+ */
+final class StandbySessions {
+
+    private static final Logger LOGGER = Logger.getLogger(StandbySessions.class.getName());
+
+    @FunctionalInterface
+    interface SessionLauncher {
+
+        CompletableFuture<ChromeDriver> launch();
+    }
+
+    private final SessionLauncher launcher;
+    private final int targetDepth;
+
+    private final Deque<ChromeDriver> readySessions = new ArrayDeque<>();
+    private int launchingSessions = 0;
+    private boolean closed = false;
+
+    private final Thread shutdownHook = new Thread(this::close, "cr24-standby-shutdown");
+
+    StandbySessions(SessionLauncher launcher, int targetDepth) {
+        this.launcher = launcher;
+        this.targetDepth = targetDepth;
+        // idle browsers would survive the JVM otherwise
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Takes one ready session and starts launching its replacement.
+     *
+     * @return some running session or null, when none is ready yet
+     */
+    ChromeDriver claim() {
+        while( true ){
+            ChromeDriver session;
+            synchronized(this){
+                session = readySessions.pollFirst();
+                refill();
+            }
+            if( session == null ){
+                return null;
+            }
+            if( isAlive(session) ){
+                return session;
+            }
+            quit(session);
+        }
+    }
+
+    /**
+     * Launches sessions until the target depth is reached (including the ones getting launched right now).
+     */
+    synchronized void refill() {
+        while( !closed && readySessions.size() + launchingSessions < targetDepth ){
+            launchingSessions++;
+            CompletableFuture<ChromeDriver> launching;
+            try{
+                launching = launcher.launch();
+            } catch(RuntimeException ex){
+                launchingSessions--;
+                LOGGER.log(Level.WARNING, "Could not launch standby session", ex);
+                return;
+            }
+            launching.whenComplete(this::launched);
+        }
+    }
+
+    private void launched(ChromeDriver session, Throwable failure) {
+        synchronized(this){
+            launchingSessions--;
+            if( failure == null && !closed ){
+                readySessions.addLast(session);
+                return;
+            }
+        }
+        if( failure != null ){
+            // no immediate retry, otherwise a broken setup would launch endlessly, the next claim tries again
+            LOGGER.log(Level.WARNING, "Could not launch standby session", failure);
+            return;
+        }
+        quit(session);
+    }
+
+    synchronized int getReadySessions() {
+        return readySessions.size();
+    }
+
+    /**
+     * Quits all ready sessions, sessions still getting launched are quit as soon as they are ready.
+     */
+    void close() {
+        Deque<ChromeDriver> sessionsToQuit;
+        synchronized(this){
+            if( closed ){
+                return;
+            }
+            closed = true;
+            sessionsToQuit = new ArrayDeque<>(readySessions);
+            readySessions.clear();
+        }
+        try{
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch(IllegalStateException ex){
+            // already shutting down, which is what called this
+        }
+        sessionsToQuit.forEach(this::quit);
+    }
+
+    private boolean isAlive(ChromeDriver session) {
+        try{
+            session.getWindowHandle();
+            return true;
+        } catch(WebDriverException ex){
+            LOGGER.log(Level.FINE, "Standby session is not usable anymore", ex);
+            return false;
+        }
+    }
+
+    private void quit(ChromeDriver session) {
+        try{
+            session.quit();
+        } catch(WebDriverException ex){
+            LOGGER.log(Level.FINE, "Could not quit standby session", ex);
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Extracts the entries of a zip-archive while it gets downloaded, every received byte is written into the archive file as
+ * well. This saves reading the whole archive again after the download, but uses only one connection.
+ *
+ * @author Danny Althoff
+ */
+final class StreamingArchiveDownload {
+
+    private static final Logger LOGGER = Logger.getLogger(StreamingArchiveDownload.class.getName());
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes everything that gets read into the side branch.
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+
+        private final OutputStream sideBranch;
+        private final MessageDigest digest;
+        private long transferredBytes = 0;
+
+        TeeInputStream(InputStream source, OutputStream sideBranch, MessageDigest digest) {
+            super(source);
+            this.sideBranch = sideBranch;
+            this.digest = digest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if( value != -1 ){
+                sideBranch.write(value);
+                digest.update((byte) value);
+                transferredBytes++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if( read > 0 ){
+                sideBranch.write(buffer, offset, read);
+                digest.update(buffer, offset, read);
+                transferredBytes += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes have to reach the side branch too
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(0, read);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        void drain() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while( read(buffer, 0, buffer.length) != -1 ){
+                // just pass everything to the side branch
+            }
+        }
+    }
+
+    private final String source;
+    private final Path targetArchive;
+    private final Path partFile;
+    private final String rootInsideArchive;
+    private final Path targetFolder;
+    private final int connectionTimeout;
+    private final int readTimeout;
+    private final ArchiveChecksum checksum;
+
+    StreamingArchiveDownload(String source, Path targetArchive, String rootInsideArchive, Path targetFolder, int connectionTimeout, int readTimeout, ArchiveChecksum checksum) {
+        this.source = source;
+        this.targetArchive = targetArchive;
+        this.partFile = targetArchive.resolveSibling(targetArchive.getFileName().toString() + SegmentedDownload.PART_SUFFIX);
+        this.rootInsideArchive = rootInsideArchive;
+        this.targetFolder = targetFolder;
+        this.connectionTimeout = connectionTimeout;
+        this.readTimeout = readTimeout;
+        this.checksum = checksum;
+    }
+
+    long run() throws IOException {
+        Files.createDirectories(targetArchive.toAbsolutePath().getParent());
+        Files.createDirectories(targetFolder);
+
+        boolean streamingFailed = false;
+        long transferredBytes;
+        String digest;
+        try(CloseableHttpClient client = SegmentedDownload.createClient(connectionTimeout, readTimeout, 1); CloseableHttpResponse response = client.execute(new HttpGet(source))){
+            int statusCode = response.getStatusLine().getStatusCode();
+            if( statusCode != HttpStatus.SC_OK ){
+                throw new IOException("Unexpected HTTP status " + statusCode + " while downloading " + source);
+            }
+            HttpEntity entity = response.getEntity();
+            if( entity == null ){
+                throw new IOException("Got no content while downloading " + source);
+            }
+
+            try(InputStream content = entity.getContent(); OutputStream partStream = new BufferedOutputStream(Files.newOutputStream(partFile), BUFFER_SIZE)){
+                TeeInputStream teeStream = new TeeInputStream(content, partStream, checksum.createDigest());
+                try{
+                    // the zip-stream reads small chunks, buffering avoids lots of tiny writes into the archive file
+                    extractEntries(new ZipInputStream(new BufferedInputStream(teeStream, BUFFER_SIZE)));
+                } catch(ZipException ex){
+                    // some entries (e.g. stored ones with data descriptor) can not be read as stream
+                    LOGGER.log(Level.FINE, "Could not extract while downloading, extracting afterwards", ex);
+                    streamingFailed = true;
+                }
+                // the zip-stream stops at the central directory, which still belongs into the archive file
+                teeStream.drain();
+                transferredBytes = teeStream.transferredBytes;
+                digest = new Utils().toHex(teeStream.digest.digest());
+            }
+        }
+
+        try{
+            checksum.verify(source, digest);
+        } catch(IOException ex){
+            Files.deleteIfExists(partFile);
+            throw ex;
+        }
+        checksum.store(targetArchive, digest, Files.size(partFile));
+
+        try{
+            Files.move(partFile, targetArchive, StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException ex){
+            Files.move(partFile, targetArchive, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        if( streamingFailed ){
+            new Utils().unarchive(targetArchive, rootInsideArchive, targetFolder);
+        } else {
+            // local entry headers do not contain the unix modes, these are only available inside the central directory
+            new ParallelZipExtractor(targetArchive, rootInsideArchive, targetFolder).restoreModes();
+        }
+        return transferredBytes;
+    }
+
+    private void extractEntries(ZipInputStream zipStream) throws IOException {
+        String prefix = ParallelZipExtractor.toEntryPrefix(rootInsideArchive);
+        Path normalizedTargetFolder = targetFolder.toAbsolutePath().normalize();
+
+        ZipEntry entry;
+        while( (entry = zipStream.getNextEntry()) != null ){
+            String entryName = entry.getName().replace('\\', '/');
+            if( !entryName.startsWith(prefix) || entryName.length() == prefix.length() ){
+                continue;
+            }
+            Path entryTarget = normalizedTargetFolder.resolve(entryName.substring(prefix.length())).normalize();
+            if( !entryTarget.startsWith(normalizedTargetFolder) ){
+                throw new IOException("Archive entry is outside of the target folder: " + entry.getName());
+            }
+            if( entry.isDirectory() ){
+                Files.createDirectories(entryTarget);
+                continue;
+            }
+            Files.createDirectories(entryTarget.getParent());
+            Files.copy(zipStream, entryTarget, StandardCopyOption.REPLACE_EXISTING);
+            if( entry.getTime() != -1 ){
+                Files.setLastModifiedTime(entryTarget, FileTime.fromMillis(entry.getTime()));
+            }
+        }
+    }
+
+}
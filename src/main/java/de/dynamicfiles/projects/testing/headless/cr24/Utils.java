@@ -16,25 +16,24 @@
 package de.dynamicfiles.projects.testing.headless.cr24;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashMap;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
 import java.util.logging.Logger;
-import org.apache.http.HttpEntity;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 
 /**
  *
@@ -42,30 +41,277 @@ import org.apache.http.impl.client.HttpClientBuilder;
  */
 class Utils {
 
-    public void download(String source, File target, int connectionTimeout, int readTimeout) throws IOException {
-        RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(connectionTimeout).setConnectionRequestTimeout(readTimeout).build();
-        CloseableHttpClient client = HttpClientBuilder.create().useSystemProperties().setDefaultRequestConfig(requestConfig).build();
+    static final String EXTRACTION_MARKER = ".cr24-extracted";
 
-        Files.createDirectories(target.toPath().getParent());
-        try(CloseableHttpResponse response = client.execute(new HttpGet(source))){
-            HttpEntity entity = response.getEntity();
-            if( entity != null ){
-                try(FileOutputStream outstream = new FileOutputStream(target)){
-                    entity.writeTo(outstream);
+    /**
+     * Download the source into the target file. The target file only gets created after the download was complete, an
+     * interrupted download gets resumed by the next call.
+     *
+     * @param source
+     * @param target
+     * @param connectionTimeout
+     * @param readTimeout
+     * @param segments maximum amount of parallel range requests
+     * @param checksum digest to compute while downloading, stored next to the target
+     *
+     * @return amount of transferred bytes
+     *
+     * @throws IOException
+     */
+    public long download(String source, File target, int connectionTimeout, int readTimeout, int segments, ArchiveChecksum checksum) throws IOException {
+        return new SegmentedDownload(source, target.toPath(), connectionTimeout, readTimeout, segments, checksum).run();
+    }
+
+    /**
+     * Download the file from the fastest of the given mirrors. When that mirror does not finish within the hedge delay,
+     * the next one gets raced against it and the first complete download wins.
+     *
+     * @param sources download URLs of the same file
+     * @param target
+     * @param connectionTimeout
+     * @param readTimeout
+     * @param segments maximum amount of parallel range requests per mirror
+     * @param checksum digest to compute while downloading, stored next to the target
+     * @param hedgeDelay milliseconds before racing the next mirror, 0 only switches mirrors on failures
+     *
+     * @return amount of transferred bytes
+     *
+     * @throws IOException
+     */
+    public long download(List<String> sources, File target, int connectionTimeout, int readTimeout, int segments, ArchiveChecksum checksum, long hedgeDelay) throws IOException {
+        if( sources.size() == 1 ){
+            return download(sources.get(0), target, connectionTimeout, readTimeout, segments, checksum);
+        }
+        List<String> rankedSources = DownloadMirror.rank(sources, connectionTimeout);
+        return new HedgedDownload(rankedSources, target.toPath(), connectionTimeout, readTimeout, segments, checksum, hedgeDelay).run();
+    }
+
+    /**
+     * Download the source and extract it while the bytes are still arriving, the archive itself gets written into the
+     * target file at the same time.
+     *
+     * @param source
+     * @param targetArchive
+     * @param rootInsideArchive
+     * @param targetFolder
+     * @param connectionTimeout
+     * @param readTimeout
+     * @param checksum digest to compute while downloading, stored next to the target archive
+     *
+     * @return amount of transferred bytes
+     *
+     * @throws IOException
+     */
+    public long downloadAndUnarchive(String source, File targetArchive, String rootInsideArchive, Path targetFolder, int connectionTimeout, int readTimeout, ArchiveChecksum checksum) throws IOException {
+        return new StreamingArchiveDownload(source, targetArchive.toPath(), rootInsideArchive, targetFolder, connectionTimeout, readTimeout, checksum).run();
+    }
+
+    /**
+     * Download and extract while the bytes are still arriving, using the fastest of the given mirrors. Extracted files
+     * can not be raced, so other mirrors are only tried after the previous one failed.
+     *
+     * @param sources download URLs of the same file
+     * @param targetArchive
+     * @param rootInsideArchive
+     * @param targetFolder
+     * @param connectionTimeout
+     * @param readTimeout
+     * @param checksum digest to compute while downloading, stored next to the target archive
+     *
+     * @return amount of transferred bytes
+     *
+     * @throws IOException when no mirror could deliver the file
+     */
+    public long downloadAndUnarchive(List<String> sources, File targetArchive, String rootInsideArchive, Path targetFolder, int connectionTimeout, int readTimeout, ArchiveChecksum checksum) throws IOException {
+        if( sources.isEmpty() ){
+            throw new IllegalArgumentException("At least one download source is required");
+        }
+        IOException failure = null;
+        for( String source : DownloadMirror.rank(sources, connectionTimeout) ){
+            long startNanos = System.nanoTime();
+            try{
+                long transferredBytes = downloadAndUnarchive(source, targetArchive, rootInsideArchive, targetFolder, connectionTimeout, readTimeout, checksum);
+                DownloadMirror.forUrl(source).recordTransfer(transferredBytes, System.nanoTime() - startNanos);
+                return transferredBytes;
+            } catch(IOException ex){
+                DownloadMirror.forUrl(source).recordFailure();
+                if( failure == null ){
+                    failure = ex;
+                } else {
+                    failure.addSuppressed(ex);
                 }
             }
         }
+        throw failure;
+    }
+
+    /**
+     * @param sourceArchive
+     * @param rootInsideArchive
+     * @param target
+     *
+     * @return the extractor, containing the amount of extracted entries and bytes
+     *
+     * @throws IOException
+     */
+    public ParallelZipExtractor unarchive(Path sourceArchive, String rootInsideArchive, Path target) throws IOException {
+        ParallelZipExtractor extractor = new ParallelZipExtractor(sourceArchive, rootInsideArchive, target);
+        extractor.extract();
+        return extractor;
+    }
+
+    /**
+     * Extracts the archive into the target folder, but only if that folder does not already contain a complete extraction of
+     * the very same archive. Extraction happens into a sibling staging folder which gets moved into place after all files are
+     * written, so an interrupted extraction never looks like a valid one.
+     *
+     * @param sourceArchive
+     * @param rootInsideArchive
+     * @param target
+     *
+     * @return the extractor when the archive had to be extracted, null when the existing extraction got reused
+     *
+     * @throws IOException
+     */
+    public ParallelZipExtractor unarchiveOnce(Path sourceArchive, String rootInsideArchive, Path target) throws IOException {
+        if( isExtractionOf(sourceArchive, target) ){
+            return null;
+        }
+        ParallelZipExtractor[] extractor = new ParallelZipExtractor[1];
+        extractAtomically(sourceArchive, target, stagingFolder -> extractor[0] = unarchive(sourceArchive, rootInsideArchive, stagingFolder));
+        return extractor[0];
     }
 
-    public void unarchive(Path sourceArchive, String rootInsideArchive, Path target) throws IOException {
-        Path currentWorkingFolder = sourceArchive;
-        Path targetFolder = Files.createDirectories(target);
+    @FunctionalInterface
+    interface ExtractionStep {
+
+        void extractInto(Path stagingFolder) throws IOException;
+    }
+
+    /**
+     * Runs the extraction step on a staging folder next to the target and moves it into place afterwards, marked as being
+     * the extraction of the source archive. The source archive has to exist after the extraction step finished.
+     *
+     * @param sourceArchive
+     * @param target
+     * @param extractionStep
+     *
+     * @throws IOException
+     */
+    public void extractAtomically(Path sourceArchive, Path target, ExtractionStep extractionStep) throws IOException {
+        Path parentFolder = Files.createDirectories(target.toAbsolutePath().getParent());
+        Path stagingFolder = Files.createTempDirectory(parentFolder, target.getFileName().toString() + "-staging-");
+        try{
+            extractionStep.extractInto(stagingFolder);
+            writeExtractionMarker(sourceArchive, stagingFolder);
+
+            // someone else might have been faster, and browsers might already run from that extraction
+            if( isExtractionOf(sourceArchive, target) ){
+                return;
+            }
+            // outdated extraction (e.g. the archive got replaced by a new download) gets moved aside first, so nobody
+            // ever sees a half-deleted folder
+            Path outdatedFolder = null;
+            if( Files.exists(target) ){
+                outdatedFolder = target.resolveSibling(target.getFileName().toString() + "-outdated-" + UUID.randomUUID());
+                try{
+                    Files.move(target, outdatedFolder, StandardCopyOption.ATOMIC_MOVE);
+                } catch(NoSuchFileException ex){
+                    // moved aside by someone else already
+                    outdatedFolder = null;
+                }
+            }
+            try{
+                Files.move(stagingFolder, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch(IOException ex){
+                if( !isExtractionOf(sourceArchive, target) ){
+                    throw ex;
+                }
+            } finally{
+                if( outdatedFolder != null ){
+                    deleteRecursive(outdatedFolder);
+                }
+            }
+        } finally{
+            if( Files.exists(stagingFolder) ){
+                deleteRecursive(stagingFolder);
+            }
+        }
+    }
 
-        URI chromeDriverUri = currentWorkingFolder.toUri();
-        try(FileSystem zipFileSystem = FileSystems.newFileSystem(URI.create("jar:" + chromeDriverUri.toString()), new HashMap<>())){
-            Path rootEntry = zipFileSystem.getPath(rootInsideArchive);
-            copyRecursive(rootEntry, targetFolder, Logger.getAnonymousLogger());
+    public boolean isExtractionOf(Path sourceArchive, Path extractionFolder) throws IOException {
+        Path marker = extractionFolder.resolve(EXTRACTION_MARKER);
+        if( !Files.isRegularFile(marker) ){
+            return false;
         }
+        Properties markerContent = new Properties();
+        try(InputStream markerStream = Files.newInputStream(marker)){
+            markerContent.load(markerStream);
+        }
+        // comparing size and modification time is enough to detect replaced archives, without reading them again
+        return String.valueOf(Files.size(sourceArchive)).equals(markerContent.getProperty("size"))
+                && String.valueOf(Files.getLastModifiedTime(sourceArchive).toMillis()).equals(markerContent.getProperty("lastModified"));
+    }
+
+    private void writeExtractionMarker(Path sourceArchive, Path extractionFolder) throws IOException {
+        Properties markerContent = new Properties();
+        markerContent.setProperty("archive", sourceArchive.toAbsolutePath().toString());
+        markerContent.setProperty("size", String.valueOf(Files.size(sourceArchive)));
+        markerContent.setProperty("lastModified", String.valueOf(Files.getLastModifiedTime(sourceArchive).toMillis()));
+        // the digest was computed while downloading, no need to read the archive again
+        Properties checksumContent = new Properties();
+        Path checksumFile = ArchiveChecksum.getChecksumFile(sourceArchive);
+        if( Files.isRegularFile(checksumFile) ){
+            try(InputStream checksumStream = Files.newInputStream(checksumFile)){
+                checksumContent.load(checksumStream);
+            }
+            markerContent.setProperty("checksumAlgorithm", checksumContent.getProperty("algorithm", ""));
+            markerContent.setProperty("checksum", checksumContent.getProperty("digest", ""));
+        }
+        try(OutputStream markerStream = Files.newOutputStream(extractionFolder.resolve(EXTRACTION_MARKER))){
+            markerContent.store(markerStream, null);
+        }
+    }
+
+    public String digest(Path file, String algorithm) throws IOException {
+        MessageDigest messageDigest;
+        try{
+            messageDigest = MessageDigest.getInstance(algorithm);
+        } catch(NoSuchAlgorithmException ex){
+            throw new IOException("Unsupported digest algorithm " + algorithm, ex);
+        }
+        try(InputStream fileStream = new DigestInputStream(Files.newInputStream(file), messageDigest)){
+            byte[] buffer = new byte[64 * 1024];
+            while( fileStream.read(buffer) != -1 ){
+                // just consume
+            }
+        }
+        return toHex(messageDigest.digest());
+    }
+
+    public String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for( byte b : bytes ){
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    public void deleteRecursive(Path folder) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ioe) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
     }
 
     public void copyRecursive(Path sourceFolder, Path targetFolder, Logger logger) throws IOException {
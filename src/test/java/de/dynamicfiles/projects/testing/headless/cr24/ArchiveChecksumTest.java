@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uses archives cached before checksum-files existed, complete ones and ones truncated by some interrupted download.
+ *
+ * @author Danny Althoff
+ */
+public class ArchiveChecksumTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path archive;
+    private String digest;
+
+    @Before
+    public void createLegacyArchive() throws IOException {
+        archive = temporaryFolder.getRoot().toPath().resolve("chrome-linux.zip");
+        try(ZipOutputStream zipStream = new ZipOutputStream(Files.newOutputStream(archive))){
+            zipStream.putNextEntry(new ZipEntry("chrome-linux/chrome"));
+            zipStream.write("#!/bin/sh".getBytes(StandardCharsets.UTF_8));
+            zipStream.closeEntry();
+        }
+        digest = new Utils().digest(archive, "SHA-256");
+    }
+
+    private void truncateArchive() throws IOException {
+        byte[] content = Files.readAllBytes(archive);
+        try(OutputStream archiveStream = Files.newOutputStream(archive)){
+            archiveStream.write(Arrays.copyOf(content, content.length / 2));
+        }
+    }
+
+    @Test
+    public void rejectsUnverifiableArchives() throws IOException {
+        ArchiveChecksum checksum = new ArchiveChecksum("SHA-256", null);
+        assertFalse("Archives without checksum-file have to be downloaded again", checksum.isValidCacheEntry(archive, false));
+        assertNull(checksum.readStoredDigest(archive));
+    }
+
+    @Test
+    public void verifiesArchivesAgainstExpectedDigest() throws IOException {
+        assertFalse(new ArchiveChecksum("SHA-256", "0000").isValidCacheEntry(archive, true));
+        assertNull("Mismatching archives must not receive a checksum-file", new ArchiveChecksum("SHA-256", null).readStoredDigest(archive));
+
+        ArchiveChecksum checksum = new ArchiveChecksum("SHA-256", digest);
+        assertTrue(checksum.isValidCacheEntry(archive, false));
+        assertNotNull(checksum.readStoredDigest(archive));
+        assertTrue("Verified archives are trusted afterwards", new ArchiveChecksum("SHA-256", null).isValidCacheEntry(archive, false));
+    }
+
+    @Test
+    public void acceptsOnlyCompleteArchivesWhenUnverifiable() throws IOException {
+        ArchiveChecksum checksum = new ArchiveChecksum("SHA-256", null);
+        truncateArchive();
+        assertFalse(checksum.isValidCacheEntry(archive, true));
+
+        createLegacyArchive();
+        assertTrue(checksum.isValidCacheEntry(archive, true));
+        assertNotNull(checksum.readStoredDigest(archive));
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Uses a forked JVM standing in for some parallel build process.
+ *
+ * @author Danny Althoff
+ */
+// locks only have to be held, they are never referenced
+@SuppressWarnings("try")
+public class ArchiveLockTest {
+
+    private static final String WAITING = "waiting";
+    private static final String LOCKED = "locked";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path archive;
+
+    /**
+     * Holds the lock of the given archive until stdin gets closed or the process gets killed.
+     */
+    public static final class LockHolder {
+
+        public static void main(String[] args) throws IOException {
+            System.out.println(WAITING);
+            System.out.flush();
+            try(ArchiveLock ignored = ArchiveLock.acquire(Paths.get(args[0]), 30000)){
+                System.out.println(LOCKED);
+                System.out.flush();
+                while( System.in.read() != -1 ){
+                    // wait for the test to finish
+                }
+            }
+        }
+    }
+
+    @Before
+    public void createArchivePath() {
+        archive = temporaryFolder.getRoot().toPath().resolve("archive.zip");
+    }
+
+    @Test
+    public void excludesOtherThreads() throws IOException {
+        try(ArchiveLock ignored = ArchiveLock.acquire(archive, 1000)){
+            assertTimesOut();
+        }
+        try(ArchiveLock ignored = ArchiveLock.acquire(archive, 1000)){
+            assertTrue(Files.exists(ArchiveLock.getLockFile(archive)));
+        }
+    }
+
+    private Process startLockHolder(BlockingQueue<String> output) throws IOException {
+        String javaExecutable = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process lockHolder = new ProcessBuilder(javaExecutable, "-cp", System.getProperty("java.class.path"), LockHolder.class.getName(), archive.toString())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        Thread outputReader = new Thread(() -> {
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(lockHolder.getInputStream(), StandardCharsets.UTF_8))){
+                String line;
+                while( (line = reader.readLine()) != null ){
+                    output.add(line);
+                }
+            } catch(IOException ex){
+                // killed
+            }
+        });
+        outputReader.setDaemon(true);
+        outputReader.start();
+        return lockHolder;
+    }
+
+    @Test
+    public void excludesOtherProcessesUntilTheyDie() throws IOException, InterruptedException {
+        BlockingQueue<String> output = new LinkedBlockingQueue<>();
+        Process lockHolder = startLockHolder(output);
+        try{
+            assertEquals(WAITING, output.poll(10, TimeUnit.SECONDS));
+            assertEquals(LOCKED, output.poll(10, TimeUnit.SECONDS));
+            assertTimesOut();
+        } finally{
+            // the operating system releases the lock of killed processes
+            lockHolder.destroyForcibly().waitFor();
+        }
+        try(ArchiveLock ignored = ArchiveLock.acquire(archive, 5000)){
+            assertTrue("Lock file stays for the next owner", Files.exists(ArchiveLock.getLockFile(archive)));
+        }
+    }
+
+    @Test
+    public void keepsExcludingOtherProcessesWhileOtherThreadsFail() throws IOException, InterruptedException {
+        BlockingQueue<String> output = new LinkedBlockingQueue<>();
+        Process lockHolder = null;
+        try{
+            try(ArchiveLock ignored = ArchiveLock.acquire(archive, 1000)){
+                lockHolder = startLockHolder(output);
+                assertEquals(WAITING, output.poll(10, TimeUnit.SECONDS));
+
+                // closing some other channel of the lock file would release the lock of the whole JVM
+                assertNull(ArchiveLock.tryAcquire(archive));
+                assertTimesOut();
+                assertNull("Lock must stay with this JVM after other threads gave up", output.poll(2, TimeUnit.SECONDS));
+            }
+            assertEquals(LOCKED, output.poll(10, TimeUnit.SECONDS));
+        } finally{
+            if( lockHolder != null ){
+                lockHolder.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private void assertTimesOut() {
+        long startMillis = System.currentTimeMillis();
+        try(ArchiveLock ignored = ArchiveLock.acquire(archive, 300)){
+            fail("Lock must not be acquired while held by someone else");
+        } catch(IOException ex){
+            assertTrue(System.currentTimeMillis() - startMillis >= 300);
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes index files the way some other process would, with last usages far in the past.
+ *
+ * @author Danny Althoff
+ */
+public class CacheIndexTest {
+
+    private static final int ARCHIVE_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path workingFolder;
+    private Path indexFile;
+    private final Properties indexContent = new Properties();
+
+    @Before
+    public void createIndexPath() {
+        workingFolder = temporaryFolder.getRoot().toPath();
+        indexFile = workingFolder.resolve("cache.index");
+    }
+
+    private Path addArchive(String name, long minutesAgo) throws IOException {
+        Path archive = workingFolder.resolve(name + ".zip");
+        Files.write(archive, new byte[ARCHIVE_SIZE]);
+        long lastUsed = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(minutesAgo);
+        indexContent.setProperty(archive.toAbsolutePath().normalize().toString(), String.join("\t", String.valueOf(ARCHIVE_SIZE), "", "", "0", String.valueOf(lastUsed), "1"));
+        return archive;
+    }
+
+    private Path addExtractedArchive(String name, long minutesAgo, Path extraction) throws IOException {
+        Path archive = addArchive(name, minutesAgo);
+        String[] fields = indexContent.getProperty(archive.toString()).split("\t", -1);
+        fields[2] = extraction.toAbsolutePath().normalize().toString();
+        fields[3] = String.valueOf(Files.size(extraction.resolve("executable")));
+        indexContent.setProperty(archive.toString(), String.join("\t", fields));
+        return archive;
+    }
+
+    private CacheIndex writeIndex() throws IOException {
+        try(OutputStream indexStream = Files.newOutputStream(indexFile)){
+            indexContent.store(indexStream, null);
+        }
+        return CacheIndex.forFile(indexFile);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFirst() throws IOException {
+        Path oldest = addArchive("oldest", 300);
+        Path older = addArchive("older", 200);
+        Path old = addArchive("old", 100);
+        CacheIndex cacheIndex = writeIndex();
+
+        assertEquals(0, cacheIndex.evict(3 * ARCHIVE_SIZE));
+        assertEquals(2, cacheIndex.evict(ARCHIVE_SIZE + ARCHIVE_SIZE / 2));
+
+        assertFalse(Files.exists(oldest));
+        assertFalse(Files.exists(older));
+        assertTrue(Files.exists(old));
+        assertEquals(ARCHIVE_SIZE, cacheIndex.getTotalSize());
+        assertNull(cacheIndex.lookup(oldest));
+        assertNotNull(cacheIndex.lookup(old));
+    }
+
+    @Test
+    public void keepsRecentlyUsedArchives() throws IOException {
+        Path old = addArchive("old", 300);
+        Path recent = addArchive("recent", 300);
+        CacheIndex cacheIndex = writeIndex();
+        cacheIndex.recordUse(recent, null, null);
+
+        assertEquals(1, cacheIndex.evict(0));
+        assertFalse(Files.exists(old));
+        assertTrue("Used within the grace period", Files.exists(recent));
+        assertEquals(0, cacheIndex.evict(0));
+    }
+
+    @Test
+    @SuppressWarnings("try")
+    public void skipsArchivesLockedByProvisioning() throws IOException {
+        Path locked = addArchive("locked", 300);
+        Path unlocked = addArchive("unlocked", 200);
+        CacheIndex cacheIndex = writeIndex();
+
+        try(ArchiveLock ignored = ArchiveLock.acquire(locked, 1000)){
+            assertEquals(1, cacheIndex.evict(0));
+        }
+        assertTrue(Files.exists(locked));
+        assertFalse(Files.exists(unlocked));
+        assertTrue("Lock files are never deleted", Files.exists(ArchiveLock.getLockFile(unlocked)));
+        assertEquals(1, cacheIndex.evict(0));
+        assertFalse(Files.exists(locked));
+    }
+
+    @Test
+    public void skipsExtractionsStillExecuted() throws IOException, InterruptedException {
+        Assume.assumeTrue("Finding executed files requires /proc", ProcessTable.isSupported() && Files.isExecutable(Paths.get("/bin/sleep")));
+        Path extraction = Files.createDirectories(workingFolder.resolve("extracted"));
+        Path executable = Files.copy(Paths.get("/bin/sleep"), extraction.resolve("executable"), StandardCopyOption.COPY_ATTRIBUTES);
+        Path executed = addExtractedArchive("executed", 300, extraction);
+        CacheIndex cacheIndex = writeIndex();
+
+        Process browser = new ProcessBuilder(executable.toString(), "30").start();
+        try{
+            assertEquals(0, cacheIndex.evict(0));
+            assertTrue(Files.exists(executable));
+        } finally{
+            browser.destroyForcibly().waitFor();
+        }
+        assertEquals(1, cacheIndex.evict(0));
+        assertFalse(Files.exists(executed));
+        assertFalse(Files.exists(extraction));
+    }
+
+    @Test
+    public void keepsChangesOfOtherProcesses() throws IOException {
+        Path first = addArchive("first", 300);
+        Path second = addArchive("second", 300);
+        CacheIndex cacheIndex = writeIndex();
+        cacheIndex.recordUse(first, null, null);
+
+        // some other process records its usage right after
+        Properties changedContent = new Properties();
+        try(InputStream indexStream = Files.newInputStream(indexFile)){
+            changedContent.load(indexStream);
+        }
+        String[] fields = changedContent.getProperty(second.toString()).split("\t", -1);
+        fields[5] = "42";
+        changedContent.setProperty(second.toString(), String.join("\t", fields));
+        Path changedIndexFile = workingFolder.resolve("cache.index.tmp");
+        try(OutputStream indexStream = Files.newOutputStream(changedIndexFile)){
+            changedContent.store(indexStream, null);
+        }
+        Files.move(changedIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        cacheIndex.recordUse(first, null, null);
+        assertEquals(42, cacheIndex.lookup(second).getHits());
+        assertEquals("Hits of the file plus both recorded usages", 3, cacheIndex.lookup(first).getHits());
+    }
+
+}
@@ -21,6 +21,9 @@ import java.io.IOException;
 import org.openqa.selenium.OutputType;
 import org.openqa.selenium.chrome.ChromeDriver;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
 /**
  * Please go away, this is my playground for stuff, until I found the time to fully test my stuff. Sorry.
  *
@@ -37,6 +40,22 @@ public class Cr24DriverTest {
         chromeDriver.quit();
     }
 
+//    @Test
+    public void recycleSession() throws IOException, Cr24ConfigurationBuilderException {
+        Cr24ConfigurationBuilder configurationBuilder = Cr24DriverBuilder.getDefaultConfiguration();
+        ChromeDriver chromeDriver = configurationBuilder.build();
+        chromeDriver.get("https://www.dynamicfiles.de");
+        chromeDriver.executeScript("window.localStorage.setItem('cr24', 'dirty'); window.open('https://www.dynamicfiles.de');");
+
+        configurationBuilder.recycle(chromeDriver);
+        assertEquals(1, chromeDriver.getWindowHandles().size());
+        // local storage is only readable by pages of its origin
+        chromeDriver.get("https://www.dynamicfiles.de");
+        assertNull(chromeDriver.executeScript("return window.localStorage.getItem('cr24');"));
+
+        chromeDriver.quit();
+    }
+
     public void example() throws IOException, Cr24ConfigurationBuilderException {
         Cr24DriverBuilder.getDefaultConfiguration().customize(config -> {
             config.set64bit(true);
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import de.dynamicfiles.projects.testing.headless.cr24.Cr24ProvisioningEvent.Phase;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openqa.selenium.net.PortProber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Feeds durations of known distribution, and lets a builder fail downloading from a port nobody listens on.
+ *
+ * @author Danny Althoff
+ */
+public class Cr24ProvisioningStatisticsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static Cr24ProvisioningEvent event(long durationMillis, boolean successful) {
+        return new Cr24ProvisioningEvent(Phase.DOWNLOAD, "webdriver", TimeUnit.MILLISECONDS.toNanos(durationMillis), 0, 0, false, successful);
+    }
+
+    @Test
+    public void reportsNearestRankPercentiles() {
+        Cr24ProvisioningStatistics statistics = new Cr24ProvisioningStatistics();
+        // added in reverse order, percentiles must not depend on the order of the events
+        for( int durationMillis = 100; durationMillis >= 1; durationMillis-- ){
+            statistics.onEvent(event(durationMillis, durationMillis > 10));
+        }
+
+        assertEquals(100, statistics.getCount(Phase.DOWNLOAD, "webdriver"));
+        assertEquals(10, statistics.getFailures(Phase.DOWNLOAD, "webdriver"));
+        assertEquals(1, statistics.getPercentile(Phase.DOWNLOAD, "webdriver", 0, TimeUnit.MILLISECONDS));
+        assertEquals(50, statistics.getPercentile(Phase.DOWNLOAD, "webdriver", 50, TimeUnit.MILLISECONDS));
+        assertEquals(90, statistics.getPercentile(Phase.DOWNLOAD, "webdriver", 90, TimeUnit.MILLISECONDS));
+        assertEquals(99, statistics.getPercentile(Phase.DOWNLOAD, "webdriver", 99, TimeUnit.MILLISECONDS));
+        assertEquals(100, statistics.getPercentile(Phase.DOWNLOAD, "webdriver", 100, TimeUnit.MILLISECONDS));
+        assertEquals(0, statistics.getPercentile(Phase.DOWNLOAD, "browser", 50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void keepsOnlyRecentDurations() {
+        Cr24ProvisioningStatistics statistics = new Cr24ProvisioningStatistics(4);
+        for( int durationMillis = 1; durationMillis <= 6; durationMillis++ ){
+            statistics.onEvent(event(durationMillis, true));
+        }
+
+        // durations 1 and 2 got overwritten, the count covers all events
+        assertEquals(6, statistics.getCount(Phase.DOWNLOAD, "webdriver"));
+        assertEquals(3, statistics.getPercentile(Phase.DOWNLOAD, "webdriver", 25, TimeUnit.MILLISECONDS));
+        assertEquals(4, statistics.getPercentile(Phase.DOWNLOAD, "webdriver", 50, TimeUnit.MILLISECONDS));
+        assertEquals(6, statistics.getPercentile(Phase.DOWNLOAD, "webdriver", 100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void countsFailedDownloads() throws IOException {
+        Path workingFolder = temporaryFolder.getRoot().toPath();
+        String unreachableUrl = "http://127.0.0.1:" + PortProber.findFreePort() + "/chromedriver_linux64.zip";
+        Cr24ProvisioningStatistics statistics = new Cr24ProvisioningStatistics();
+        Cr24ConfigurationBuilder configurationBuilder = Cr24DriverBuilder.getDefaultConfiguration().customize(configuration -> {
+            configuration.useBinariesForLinux();
+            configuration.setUseLocalBrowserInstallation(true);
+            configuration.setCleanUpPreviousRuns(false);
+            configuration.setWebdriverDownloadUrlCallback(() -> unreachableUrl);
+            configuration.setWebdriverDownloadCachePathCallback(() -> workingFolder.resolve("chromedriver_linux64.zip").toString());
+            configuration.setWebdriverExtractionPathCallback(() -> workingFolder.resolve("chromedriver").toString());
+            configuration.setCacheIndexPathCallback(() -> workingFolder.resolve("cache-index.properties").toString());
+            configuration.addProvisioningListener(statistics);
+        });
+
+        try{
+            configurationBuilder.prefetch();
+            fail("Nobody is listening for downloads");
+        } catch(IOException ex){
+            // expected
+        }
+        assertEquals(1, statistics.getCount(Phase.DOWNLOAD, "webdriver"));
+        assertEquals(1, statistics.getFailures(Phase.DOWNLOAD, "webdriver"));
+    }
+
+}
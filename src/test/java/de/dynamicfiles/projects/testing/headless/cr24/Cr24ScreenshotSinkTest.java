@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import javax.imageio.ImageIO;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.TakesScreenshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uses some generated image standing in for the screenshots of the browser.
+ *
+ * @author Danny Althoff
+ */
+public class Cr24ScreenshotSinkTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path workingFolder;
+    private byte[] png;
+
+    private final TakesScreenshot driver = new TakesScreenshot() {
+        @Override
+        public <X> X getScreenshotAs(OutputType<X> target) {
+            return target.convertFromBase64Png(Base64.getEncoder().encodeToString(png));
+        }
+    };
+
+    @Before
+    public void createScreenshot() throws IOException {
+        workingFolder = temporaryFolder.getRoot().toPath();
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(10, 10, 0xFF112233);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", encoded);
+        png = encoded.toByteArray();
+    }
+
+    private Cr24ScreenshotSinkConfiguration createConfiguration() {
+        Cr24ScreenshotSinkConfiguration sinkConfiguration = new Cr24ScreenshotSinkConfiguration();
+        sinkConfiguration.setTargetFolder(workingFolder);
+        return sinkConfiguration;
+    }
+
+    @Test
+    public void writesScreenshotsInBackground() throws Exception {
+        Cr24ScreenshotSinkConfiguration sinkConfiguration = createConfiguration();
+        Path written;
+        Path downscaled;
+        try(Cr24ScreenshotSink sink = new Cr24ScreenshotSink(sinkConfiguration)){
+            written = sink.capture(driver, "original").get();
+        }
+        sinkConfiguration.setFormat(Cr24ScreenshotSinkConfiguration.Format.JPEG);
+        sinkConfiguration.setMaxWidth(200);
+        try(Cr24ScreenshotSink sink = new Cr24ScreenshotSink(sinkConfiguration)){
+            downscaled = sink.capture(driver, "downscaled").get();
+        }
+
+        assertArrayEquals("PNG without downscaling is written as delivered", png, Files.readAllBytes(written));
+        BufferedImage downscaledImage = ImageIO.read(downscaled.toFile());
+        assertEquals(workingFolder.resolve("downscaled.jpg"), downscaled);
+        assertEquals(200, downscaledImage.getWidth());
+        assertEquals(150, downscaledImage.getHeight());
+    }
+
+    @Test
+    public void dropsScreenshotsWhenQueueStaysFull() {
+        Cr24ScreenshotSinkConfiguration sinkConfiguration = createConfiguration();
+        sinkConfiguration.setQueueCapacity(1);
+        sinkConfiguration.setWorkerThreads(1);
+        sinkConfiguration.setMaxEnqueueWait(0);
+
+        List<CompletableFuture<Path>> results = new ArrayList<>();
+        Cr24ScreenshotSink sink = new Cr24ScreenshotSink(sinkConfiguration);
+        // holding the monitor blocks the worker after its first screenshot
+        synchronized(sink){
+            for( int i = 0; i < 10; i++ ){
+                results.add(sink.capture(driver, "screenshot-" + i));
+            }
+        }
+        sink.close();
+
+        Cr24ScreenshotSinkMetrics metrics = sink.getMetrics();
+        assertEquals(10, metrics.getCapturedCount());
+        assertTrue("At most the one in progress and one queued screenshot got written", metrics.getWrittenCount() <= 2);
+        assertEquals(10, metrics.getWrittenCount() + metrics.getDroppedCount());
+        assertEquals(metrics.getDroppedCount(), results.stream().filter(CompletableFuture::isCompletedExceptionally).count());
+        assertEquals(0, metrics.getQueueDepth());
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.openqa.selenium.remote.JsonToBeanConverter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the dispatcher against local HTTP servers standing in for chromedriver.
+ *
+ * @author Danny Althoff
+ */
+public class Cr24SessionDispatcherTest {
+
+    private static final String NEW_SESSION = "{\"desiredCapabilities\":{\"browserName\":\"chrome\",\"goog:chromeOptions\":{\"args\":[\"--window-size=800,600\"]}}}";
+
+    private final AtomicInteger sessionCounter = new AtomicInteger();
+    private final List<HttpServer> fakeNodes = new ArrayList<>();
+    // "port method path body" of every request a fake node received
+    private final List<String> receivedRequests = new CopyOnWriteArrayList<>();
+
+    private Cr24SessionDispatcher dispatcher;
+
+    @After
+    public void stop() {
+        if( dispatcher != null ){
+            dispatcher.close();
+        }
+        fakeNodes.forEach(fakeNode -> fakeNode.stop(0));
+    }
+
+    private Cr24SessionDispatcher startDispatcher(int nodes, int maxSessions, long sessionQueueTimeout) throws IOException {
+        List<DispatcherNode> dispatcherNodes = new ArrayList<>();
+        for( int i = 0; i < nodes; i++ ){
+            HttpServer fakeNode = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            fakeNode.createContext("/", this::serve);
+            fakeNode.start();
+            fakeNodes.add(fakeNode);
+            dispatcherNodes.add(new DispatcherNode("http://127.0.0.1:" + fakeNode.getAddress().getPort(), null));
+        }
+        Cr24SessionDispatcherConfiguration configuration = new Cr24SessionDispatcherConfiguration();
+        configuration.setPort(0);
+        configuration.setNodes(nodes);
+        configuration.setMaxSessions(maxSessions);
+        configuration.setSessionQueueTimeout(sessionQueueTimeout);
+        dispatcher = new Cr24SessionDispatcher(configuration, dispatcherNodes, "/opt/cr24/chrome", Arrays.asList("--headless", "--window-size=1024,768"));
+        return dispatcher;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String body = new String(readFully(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        String path = exchange.getRequestURI().getPath();
+        receivedRequests.add(exchange.getLocalAddress().getPort() + " " + exchange.getRequestMethod() + " " + path + " " + body);
+        String response = "/session".equals(path)
+                ? "{\"sessionId\":\"session-" + sessionCounter.incrementAndGet() + "\",\"status\":0,\"value\":{}}"
+                : "{\"sessionId\":null,\"status\":0,\"value\":\"" + path + "\"}";
+        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, responseBytes.length);
+        try(OutputStream responseBody = exchange.getResponseBody()){
+            responseBody.write(responseBytes);
+        }
+    }
+
+    private Map<?, ?> request(String method, String path, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(dispatcher.getUrl() + path).openConnection();
+        connection.setRequestMethod(method);
+        if( body != null ){
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            try(OutputStream requestBody = connection.getOutputStream()){
+                requestBody.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int statusCode = connection.getResponseCode();
+        InputStream responseBody = statusCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+        Map<?, ?> response = new JsonToBeanConverter().convert(Map.class, new String(readFully(responseBody), StandardCharsets.UTF_8));
+        if( statusCode >= 400 ){
+            throw new IOException("HTTP " + statusCode + ": " + response);
+        }
+        return response;
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while( (read = input.read(buffer)) != -1 ){
+            content.write(buffer, 0, read);
+        }
+        input.close();
+        return content.toByteArray();
+    }
+
+    @Test
+    public void routesSessionsToLeastLoadedNode() throws IOException {
+        startDispatcher(2, 4, 1000);
+
+        String firstSession = (String) request("POST", "/wd/hub/session", NEW_SESSION).get("sessionId");
+        String secondSession = (String) request("POST", "/session", NEW_SESSION).get("sessionId");
+        assertEquals(2, dispatcher.getActiveSessions());
+
+        String firstCreation = receivedRequests.get(0);
+        String secondCreation = receivedRequests.get(1);
+        assertTrue("Sessions should be spread over both nodes", !firstCreation.split(" ")[0].equals(secondCreation.split(" ")[0]));
+        assertTrue(firstCreation.contains("/opt/cr24/chrome"));
+        assertTrue(firstCreation.contains("--headless"));
+        // the client has set the window size itself
+        assertTrue(firstCreation.contains("--window-size=800,600"));
+        assertTrue(!firstCreation.contains("--window-size=1024,768"));
+
+        assertEquals("/session/" + firstSession + "/url", request("GET", "/session/" + firstSession + "/url", null).get("value"));
+        assertTrue(receivedRequests.get(2).startsWith(firstCreation.split(" ")[0] + " GET /session/" + firstSession + "/url"));
+
+        request("DELETE", "/session/" + secondSession, null);
+        assertEquals(1, dispatcher.getActiveSessions());
+        try{
+            request("GET", "/session/" + secondSession + "/url", null);
+            throw new AssertionError("Deleted session must not be known anymore");
+        } catch(IOException ex){
+            assertTrue(ex.getMessage().startsWith("HTTP 404"));
+        }
+    }
+
+    @Test
+    public void limitsConcurrentSessions() throws IOException {
+        startDispatcher(1, 1, 200);
+
+        String session = (String) request("POST", "/session", NEW_SESSION).get("sessionId");
+        try{
+            request("POST", "/session", NEW_SESSION);
+            throw new AssertionError("Second session must not get created while the first one is running");
+        } catch(IOException ex){
+            assertTrue(ex.getMessage().contains("session not created"));
+        }
+        assertEquals(1, receivedRequests.size());
+
+        request("DELETE", "/session/" + session, null);
+        request("POST", "/session", NEW_SESSION);
+        assertEquals(1, dispatcher.getActiveSessions());
+        assertEquals(Boolean.FALSE, ((Map<?, ?>) request("GET", "/status", null).get("value")).get("ready"));
+    }
+
+}
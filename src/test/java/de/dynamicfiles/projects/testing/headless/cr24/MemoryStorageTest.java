@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uses some temporary folder standing in for the memory-backed filesystem.
+ *
+ * @author Danny Althoff
+ */
+public class MemoryStorageTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path root;
+
+    @Before
+    public void createRoot() {
+        root = temporaryFolder.getRoot().toPath();
+    }
+
+    @Test
+    public void keepsReserveFree() throws IOException {
+        long usableSpace = Files.getFileStore(root).getUsableSpace();
+
+        assertTrue(new MemoryStorage(root, 0).hasSpaceFor("test", 1024));
+        assertFalse(new MemoryStorage(root, usableSpace).hasSpaceFor("test", 1024 * 1024));
+        assertFalse("Missing filesystem falls back to disk", new MemoryStorage(root.resolve("missing"), 0).hasSpaceFor("test", 1024));
+    }
+
+    @Test
+    public void detectsExecutionSupport() throws IOException {
+        assertTrue(new MemoryStorage(root, 0).allowsExecution());
+        try(Stream<Path> leftovers = Files.list(root.resolve(MemoryStorage.FOLDER_NAME))){
+            assertFalse("Probe file is removed again", leftovers.findAny().isPresent());
+        }
+        assertFalse(new MemoryStorage(root.resolve("missing"), 0).allowsExecution());
+    }
+
+    @Test
+    public void relocatesIntoOwnFolder() {
+        MemoryStorage memoryStorage = new MemoryStorage(root, 0);
+        Path insideHome = Paths.get(System.getProperty("user.home"), ".testing", "extracted", "browser");
+
+        Path relocated = memoryStorage.relocate(insideHome);
+
+        assertEquals(root.resolve(MemoryStorage.FOLDER_NAME).resolve(".testing").resolve("extracted").resolve("browser"), relocated);
+        assertTrue(memoryStorage.contains(relocated));
+        assertFalse(memoryStorage.contains(insideHome));
+    }
+
+}
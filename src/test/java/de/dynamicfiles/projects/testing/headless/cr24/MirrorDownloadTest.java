@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs mirrored downloads against local HTTP servers standing in for upstream and mirrors of different speed.
+ *
+ * @author Danny Althoff
+ */
+public class MirrorDownloadTest {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)?");
+
+    private final byte[] content = new byte[2 * 1024 * 1024];
+
+    private final List<HttpServer> servers = new ArrayList<>();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path workingFolder;
+
+    @Before
+    public void prepare() throws IOException {
+        new Random(24).nextBytes(content);
+        workingFolder = temporaryFolder.getRoot().toPath();
+        DownloadMirror.resetAll();
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        servers.forEach(server -> server.stop(0));
+        DownloadMirror.resetAll();
+    }
+
+    /**
+     * @param bytesPerSecond throttling of the response body, 0 for full speed
+     * @param statusCode status of every response, 200 serves the content
+     * @param requests counts all requests
+     */
+    private String startServer(long bytesPerSecond, int statusCode, AtomicInteger requests) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/mirror/archive.zip", exchange -> {
+            requests.incrementAndGet();
+            serve(exchange, bytesPerSecond, statusCode);
+        });
+        server.start();
+        servers.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/mirror/archive.zip";
+    }
+
+    private void serve(HttpExchange exchange, long bytesPerSecond, int statusCode) throws IOException {
+        if( statusCode != 200 ){
+            exchange.sendResponseHeaders(statusCode, -1);
+            exchange.close();
+            return;
+        }
+        int start = 0;
+        int end = content.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher rangeMatcher = range == null ? null : RANGE_PATTERN.matcher(range);
+        boolean partial = rangeMatcher != null && rangeMatcher.matches();
+        if( partial ){
+            start = Integer.parseInt(rangeMatcher.group(1));
+            if( rangeMatcher.group(2) != null ){
+                end = Math.min(end, Integer.parseInt(rangeMatcher.group(2)));
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        }
+        exchange.sendResponseHeaders(partial ? 206 : 200, end - start + 1);
+        try(OutputStream body = exchange.getResponseBody()){
+            int chunkSize = 16 * 1024;
+            for( int position = start; position <= end; position += chunkSize ){
+                int length = Math.min(chunkSize, end - position + 1);
+                body.write(content, position, length);
+                if( bytesPerSecond > 0 ){
+                    Thread.sleep(length * 1000L / bytesPerSecond);
+                }
+            }
+        } catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+        } catch(IOException ex){
+            // client cancelled the download
+        }
+    }
+
+    @Test
+    public void racesNextMirrorWhenSlow() throws IOException {
+        AtomicInteger slowRequests = new AtomicInteger();
+        AtomicInteger fastRequests = new AtomicInteger();
+        String slowMirror = startServer(64 * 1024, 200, slowRequests);
+        String fastMirror = startServer(0, 200, fastRequests);
+        Path target = workingFolder.resolve("archive.zip");
+
+        long start = System.nanoTime();
+        new HedgedDownload(Arrays.asList(slowMirror, fastMirror), target, 5000, 5000, 1, new ArchiveChecksum("SHA-256", null), 200).run();
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertTrue("Slow mirror should have been raced", System.nanoTime() - start < 10_000_000_000L);
+        assertTrue(fastRequests.get() > 0);
+        assertTrue(new ArchiveChecksum("SHA-256", null).isValidCacheEntry(target, false));
+        try(Stream<Path> leftovers = Files.list(workingFolder)){
+            assertEquals("Only archive and its checksum should remain", 2, leftovers.count());
+        }
+        assertTrue(DownloadMirror.forUrl(fastMirror).getThroughput() > DownloadMirror.forUrl(slowMirror).getThroughput());
+    }
+
+    @Test
+    public void fallsBackToNextMirrorOnFailure() throws IOException {
+        AtomicInteger brokenRequests = new AtomicInteger();
+        AtomicInteger workingRequests = new AtomicInteger();
+        String brokenMirror = startServer(0, 404, brokenRequests);
+        String workingMirror = startServer(0, 200, workingRequests);
+        Path target = workingFolder.resolve("archive.zip");
+
+        // hedging disabled, switching happens on failure only
+        new HedgedDownload(Arrays.asList(brokenMirror, workingMirror), target, 5000, 5000, 1, new ArchiveChecksum("SHA-256", null), 0).run();
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(1, brokenRequests.get());
+        assertEquals(1, DownloadMirror.forUrl(brokenMirror).getFailures());
+        assertFalse(Files.exists(workingFolder.resolve("archive.zip" + HedgedDownload.STAGING_SUFFIX + "1")));
+    }
+
+    @Test
+    public void ranksMeasuredMirrorsByThroughput() throws IOException {
+        AtomicInteger requests = new AtomicInteger();
+        String firstMirror = startServer(0, 200, requests);
+        String secondMirror = startServer(0, 200, requests);
+        String brokenMirror = startServer(0, 500, requests);
+        DownloadMirror.forUrl(firstMirror).recordTransfer(1024 * 1024, 1_000_000_000L);
+        DownloadMirror.forUrl(secondMirror).recordTransfer(8 * 1024 * 1024, 1_000_000_000L);
+
+        List<String> ranked = DownloadMirror.rank(Arrays.asList(brokenMirror, firstMirror, secondMirror), 5000);
+
+        assertEquals(Arrays.asList(secondMirror, firstMirror, brokenMirror), ranked);
+        // latencies are probed once and then reused
+        int probes = requests.get();
+        DownloadMirror.rank(Arrays.asList(firstMirror, secondMirror), 5000);
+        assertEquals(probes, requests.get());
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Extracts archives having unix modes inside their central directory, like the ones of the download servers.
+ *
+ * @author Danny Althoff
+ */
+public class ParallelZipExtractorTest {
+
+    private static final int CENTRAL_DIRECTORY_ENTRY_SIGNATURE = 0x02014b50;
+    private static final int REGULAR_FILE = 0100000;
+    private static final int SYMBOLIC_LINK = 0120000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path workingFolder;
+    private Path targetFolder;
+
+    @Before
+    public void createTargetPath() {
+        workingFolder = temporaryFolder.getRoot().toPath();
+        targetFolder = workingFolder.resolve("extracted");
+    }
+
+    @After
+    public void deleteExtractedLinks() throws IOException {
+        // TemporaryFolder follows symbolic links while deleting
+        new Utils().deleteRecursive(targetFolder);
+    }
+
+    /**
+     * Java can not write unix modes, so the "version made by" and "external attributes" of the central directory get
+     * patched afterwards.
+     */
+    private Path createArchive(Map<String, String> contents, Map<String, Integer> unixModes) throws IOException {
+        ByteArrayOutputStream archiveContent = new ByteArrayOutputStream();
+        try(ZipOutputStream zipStream = new ZipOutputStream(archiveContent)){
+            for( Map.Entry<String, String> content : contents.entrySet() ){
+                zipStream.putNextEntry(new ZipEntry(content.getKey()));
+                zipStream.write(content.getValue().getBytes(StandardCharsets.UTF_8));
+                zipStream.closeEntry();
+            }
+        }
+        ByteBuffer archive = ByteBuffer.wrap(archiveContent.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        for( int position = 0; position + 46 <= archive.limit(); position++ ){
+            if( archive.getInt(position) != CENTRAL_DIRECTORY_ENTRY_SIGNATURE ){
+                continue;
+            }
+            byte[] name = new byte[archive.getShort(position + 28) & 0xFFFF];
+            archive.position(position + 46);
+            archive.get(name);
+            Integer unixMode = unixModes.get(new String(name, StandardCharsets.UTF_8));
+            if( unixMode != null ){
+                // made by unix, zip specification 2.0
+                archive.putShort(position + 4, (short) (3 << 8 | 20));
+                archive.putInt(position + 38, unixMode << 16);
+            }
+        }
+        Path archiveFile = workingFolder.resolve("archive.zip");
+        Files.write(archiveFile, archive.array());
+        return archiveFile;
+    }
+
+    @Test
+    public void restoresModesAndLinks() throws IOException {
+        Map<String, String> contents = new LinkedHashMap<>();
+        contents.put("chrome-linux/chrome", "#!/bin/sh");
+        contents.put("chrome-linux/resources.pak", "resources");
+        contents.put("chrome-linux/lib/current", "..");
+        contents.put("chrome-linux/chrome-wrapper", "chrome");
+        contents.put("outside-of-root.txt", "ignored");
+        Map<String, Integer> unixModes = new LinkedHashMap<>();
+        unixModes.put("chrome-linux/chrome", REGULAR_FILE | 0755);
+        unixModes.put("chrome-linux/resources.pak", REGULAR_FILE | 0640);
+        unixModes.put("chrome-linux/lib/current", SYMBOLIC_LINK | 0777);
+        unixModes.put("chrome-linux/chrome-wrapper", SYMBOLIC_LINK | 0777);
+
+        ParallelZipExtractor extractor = new ParallelZipExtractor(createArchive(contents, unixModes), "/chrome-linux", targetFolder);
+        extractor.extract();
+
+        assertEquals(4, extractor.getExtractedEntries());
+        assertFalse(Files.exists(targetFolder.resolve("outside-of-root.txt")));
+        Set<PosixFilePermission> executablePermissions = Files.getPosixFilePermissions(targetFolder.resolve("chrome"));
+        assertTrue(executablePermissions.contains(PosixFilePermission.OWNER_EXECUTE));
+        assertTrue(executablePermissions.contains(PosixFilePermission.OTHERS_EXECUTE));
+        Set<PosixFilePermission> resourcePermissions = Files.getPosixFilePermissions(targetFolder.resolve("resources.pak"));
+        assertFalse(resourcePermissions.contains(PosixFilePermission.OWNER_EXECUTE));
+        assertFalse(resourcePermissions.contains(PosixFilePermission.OTHERS_READ));
+
+        Path wrapper = targetFolder.resolve("chrome-wrapper");
+        assertTrue(Files.isSymbolicLink(wrapper));
+        assertEquals(Paths.get("chrome"), Files.readSymbolicLink(wrapper));
+        assertArrayEquals(Files.readAllBytes(targetFolder.resolve("chrome")), Files.readAllBytes(wrapper));
+        assertTrue(Files.isSymbolicLink(targetFolder.resolve("lib/current")));
+    }
+
+    @Test
+    public void rejectsLinksOutsideOfTargetFolder() throws IOException {
+        for( String linkTarget : new String[]{"../../etc", "/etc/passwd", "lib/../../.."} ){
+            Map<String, String> contents = new LinkedHashMap<>();
+            contents.put("escape", linkTarget);
+            try{
+                new ParallelZipExtractor(createArchive(contents, Collections.singletonMap("escape", SYMBOLIC_LINK | 0777)), "/", targetFolder).extract();
+                fail("Link to " + linkTarget + " must be rejected");
+            } catch(IOException ex){
+                assertFalse(Files.exists(targetFolder.resolve("escape"), LinkOption.NOFOLLOW_LINKS));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsLinksEscapingThroughOtherLinks() throws IOException {
+        Files.createDirectories(workingFolder.resolve("secret"));
+        Map<String, String> contents = new LinkedHashMap<>();
+        // lexically inside, but "here" points to the target folder itself
+        contents.put("escape", "here/../secret");
+        contents.put("here", ".");
+        Map<String, Integer> unixModes = new LinkedHashMap<>();
+        unixModes.put("escape", SYMBOLIC_LINK | 0777);
+        unixModes.put("here", SYMBOLIC_LINK | 0777);
+
+        try{
+            new ParallelZipExtractor(createArchive(contents, unixModes), "/", targetFolder).extract();
+            fail("Link escaping through another link must be rejected");
+        } catch(IOException ex){
+            assertFalse(Files.exists(targetFolder.resolve("escape"), LinkOption.NOFOLLOW_LINKS));
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uses some child process of the test JVM standing in for the browser processes.
+ *
+ * @author Danny Althoff
+ */
+public class ProcessTableTest {
+
+    @Test
+    public void findsProcessTreeAndItsUsage() throws IOException, InterruptedException {
+        Assume.assumeTrue("Reading processes requires /proc", ProcessTable.isSupported());
+        int ownPid = Integer.parseInt(ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+        String marker = "--cr24-process-table-test=" + System.nanoTime();
+        Process child = new ProcessBuilder("sh", "-c", "sleep 30; true", "sh", marker).start();
+        try{
+            ProcessTable processTable = ProcessTable.read();
+
+            List<Integer> markedProcesses = processTable.findByArgument(marker);
+            assertEquals(1, markedProcesses.size());
+            Set<Integer> tree = processTable.getTree(Collections.singletonList(ownPid));
+            assertTrue("Children belong to the tree", tree.containsAll(markedProcesses));
+            assertTrue("Grandchildren belong to the tree", tree.size() >= 3);
+            assertTrue(ProcessTable.readResidentBytes(ownPid) > 0);
+            assertTrue("The JVM used some CPU time already", processTable.getCpuTicks(ownPid) > 0);
+        } finally{
+            child.destroyForcibly().waitFor();
+        }
+    }
+
+}
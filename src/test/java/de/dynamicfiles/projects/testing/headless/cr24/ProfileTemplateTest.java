@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.chrome.ChromeOptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks cloning of profile templates and passing the clone to the session, without launching any browser.
+ *
+ * @author Danny Althoff
+ */
+public class ProfileTemplateTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path template;
+
+    @Before
+    public void createTemplate() throws IOException {
+        template = temporaryFolder.newFolder("template").toPath();
+        Files.createDirectories(template.resolve("Default/Cache"));
+        Files.write(template.resolve("Default/Preferences"), "{}".getBytes(StandardCharsets.UTF_8));
+        Files.write(template.resolve("First Run"), new byte[0]);
+        Files.createFile(template.resolve(ProfileTemplate.TEMPLATE_MARKER));
+    }
+
+    @Test
+    public void clonesAreIndependentCopies() throws IOException {
+        Path firstClone = ProfileTemplate.cloneForSession(template, ResourceReaper.getDefaultTemporaryFolder());
+        Path secondClone = ProfileTemplate.cloneForSession(template, ResourceReaper.getDefaultTemporaryFolder());
+        try{
+            assertTrue(Files.isDirectory(firstClone.resolve("Default/Cache")));
+            assertTrue(Files.exists(firstClone.resolve("First Run")));
+            assertFalse("Clones must not look like templates", Files.exists(firstClone.resolve(ProfileTemplate.TEMPLATE_MARKER)));
+            assertTrue("Clones belong to this JVM", Files.exists(firstClone.resolve(ResourceReaper.OWNER_MARKER)));
+
+            Files.write(firstClone.resolve("Default/Preferences"), "{\"changed\":true}".getBytes(StandardCharsets.UTF_8));
+            assertEquals("{}", new String(Files.readAllBytes(template.resolve("Default/Preferences")), StandardCharsets.UTF_8));
+            assertEquals("{}", new String(Files.readAllBytes(secondClone.resolve("Default/Preferences")), StandardCharsets.UTF_8));
+        } finally{
+            ResourceReaper.deleteTemporaryFolder(firstClone);
+            ResourceReaper.deleteTemporaryFolder(secondClone);
+        }
+        assertFalse(Files.exists(firstClone));
+    }
+
+    @Test
+    public void addsUserDataDirWithoutChangingOptions() {
+        ChromeOptions options = new ChromeOptions();
+        options.addArguments("--headless");
+        options.setBinary("/opt/chromium/chrome");
+        options.setExperimentalOption("w3c", false);
+        options.setCapability("acceptInsecureCerts", true);
+
+        Capabilities capabilities = ProfileTemplate.withUserDataDir(options, template);
+
+        Map<?, ?> chromeOptions = (Map<?, ?>) capabilities.asMap().get(ChromeOptions.CAPABILITY);
+        List<?> arguments = (List<?>) chromeOptions.get("args");
+        assertTrue(arguments.contains("--headless"));
+        assertTrue(arguments.contains(ProfileTemplate.USER_DATA_DIR_ARGUMENT + template.toAbsolutePath()));
+        assertEquals("/opt/chromium/chrome", chromeOptions.get("binary"));
+        assertEquals(false, chromeOptions.get("w3c"));
+        assertEquals(true, capabilities.getCapability("acceptInsecureCerts"));
+        assertFalse("Options are shared by all sessions", ProfileTemplate.hasUserDataDir(options));
+        options.addArguments(ProfileTemplate.USER_DATA_DIR_ARGUMENT + "/somewhere");
+        assertTrue(ProfileTemplate.hasUserDataDir(options));
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that only leftovers of JVMs which are not running anymore get removed.
+ *
+ * @author Danny Althoff
+ */
+public class ResourceReaperTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path workingFolder;
+
+    @Before
+    public void prepare() {
+        workingFolder = temporaryFolder.getRoot().toPath();
+    }
+
+    private String deadOwner() {
+        Assume.assumeTrue("Checking owners requires /proc", Files.isDirectory(Paths.get("/proc")));
+        int pid = 999_999;
+        while( Files.exists(Paths.get("/proc", String.valueOf(pid))) ){
+            pid--;
+        }
+        String owner = ResourceReaper.getOwner();
+        return pid + owner.substring(owner.indexOf('@'));
+    }
+
+    private Path createFolder(String name, String owner) throws IOException {
+        Path folder = Files.createDirectories(workingFolder.resolve(name));
+        Files.createFile(folder.resolve("chrome"));
+        if( owner != null ){
+            Properties ownerContent = new Properties();
+            ownerContent.setProperty("owner", owner);
+            try(OutputStream ownerStream = Files.newOutputStream(folder.resolve(ResourceReaper.OWNER_MARKER))){
+                ownerContent.store(ownerStream, null);
+            }
+        }
+        return folder;
+    }
+
+    @Test
+    public void deletesFoldersOfDeadOwnersOnly() throws IOException {
+        Path deadOwnerFolder = createFolder("webbrowser-1", deadOwner());
+        Path ownFolder = createFolder("webbrowser-2", ResourceReaper.getOwner());
+        Path recentUnmarkedFolder = createFolder("webdriver-3", null);
+        Path oldUnmarkedFolder = createFolder("webdriver-4", null);
+        Files.setLastModifiedTime(oldUnmarkedFolder, FileTime.fromMillis(System.currentTimeMillis() - ResourceReaper.STALE_AGE - 1000));
+        Path unrelatedFolder = createFolder("something-else", deadOwner());
+
+        assertEquals(2, ResourceReaper.deleteStaleFolders(workingFolder));
+
+        assertFalse(Files.exists(deadOwnerFolder));
+        assertFalse(Files.exists(oldUnmarkedFolder));
+        assertTrue(Files.exists(ownFolder));
+        assertTrue(Files.exists(recentUnmarkedFolder));
+        assertTrue(Files.exists(unrelatedFolder));
+    }
+
+    @Test
+    public void killsProcessesOfDeadOwners() throws IOException, InterruptedException {
+        String deadOwner = deadOwner();
+        ProcessBuilder orphanBuilder = new ProcessBuilder("sleep", "30");
+        orphanBuilder.environment().put(ResourceReaper.OWNER_VARIABLE, deadOwner);
+        ProcessBuilder ownedBuilder = new ProcessBuilder("sleep", "30");
+        ownedBuilder.environment().putAll(ResourceReaper.getOwnerEnvironment());
+        Process orphan = orphanBuilder.start();
+        Process owned = ownedBuilder.start();
+        try{
+            assertTrue(ResourceReaper.killOrphanedProcesses() >= 1);
+            assertTrue("Orphaned process should be killed", orphan.waitFor(5, TimeUnit.SECONDS));
+            assertTrue("Process of running JVM must survive", owned.isAlive());
+        } finally{
+            orphan.destroyForcibly();
+            owned.destroyForcibly();
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the downloader against a local HTTP server standing in for the real download servers.
+ *
+ * @author Danny Althoff
+ */
+public class SegmentedDownloadTest {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)?");
+
+    private final byte[] content = new byte[(int) (SegmentedDownload.MINIMUM_SEGMENT_SIZE * 3 + 12345)];
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer server;
+    private Path workingFolder;
+
+    private volatile boolean supportRanges = true;
+    // when positive, responses get cut after this amount of bytes (only once)
+    private final AtomicLong cutAfterBytes = new AtomicLong(-1);
+    private final AtomicLong servedBytes = new AtomicLong();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        new Random(24).nextBytes(content);
+        workingFolder = temporaryFolder.getRoot().toPath();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/archive.zip", this::serve);
+        server.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        int start = 0;
+        int end = content.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher rangeMatcher = range == null ? null : RANGE_PATTERN.matcher(range);
+        boolean partial = supportRanges && rangeMatcher != null && rangeMatcher.matches();
+        if( partial ){
+            rangeRequests.incrementAndGet();
+            start = Integer.parseInt(rangeMatcher.group(1));
+            if( rangeMatcher.group(2) != null ){
+                end = Math.min(end, Integer.parseInt(rangeMatcher.group(2)));
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        }
+        exchange.getResponseHeaders().add("ETag", "\"cr24\"");
+        int length = end - start + 1;
+        exchange.sendResponseHeaders(partial ? 206 : 200, length);
+        try(OutputStream body = exchange.getResponseBody()){
+            long cut = cutAfterBytes.getAndSet(-1);
+            int toSend = cut > 0 && length > 1 ? (int) Math.min(cut, length) : length;
+            body.write(content, start, toSend);
+            servedBytes.addAndGet(toSend);
+            if( toSend < length ){
+                // simulate a broken connection
+                exchange.close();
+            }
+        }
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/archive.zip";
+    }
+
+    @Test
+    public void downloadsSegmentsInParallel() throws IOException {
+        Path target = workingFolder.resolve("cache/archive.zip");
+        long transferred = new Utils().download(url(), target.toFile(), 5000, 5000, 4, new ArchiveChecksum("SHA-256", null));
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(content.length, transferred);
+        // probe plus three segments
+        assertEquals(4, rangeRequests.get());
+        assertFalse(Files.exists(workingFolder.resolve("cache/archive.zip" + SegmentedDownload.PART_SUFFIX)));
+        assertFalse(Files.exists(workingFolder.resolve("cache/archive.zip" + SegmentedDownload.STATE_SUFFIX)));
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWithoutRangeSupport() throws IOException {
+        supportRanges = false;
+        Path target = workingFolder.resolve("archive.zip");
+        new Utils().download(url(), target.toFile(), 5000, 5000, 4, new ArchiveChecksum("SHA-256", null));
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(0, rangeRequests.get());
+    }
+
+    @Test
+    public void resumesInterruptedDownload() throws IOException {
+        Path target = workingFolder.resolve("archive.zip");
+        // let the probe pass, break the first segment
+        server.removeContext("/archive.zip");
+        AtomicInteger requests = new AtomicInteger();
+        server.createContext("/archive.zip", exchange -> {
+            if( requests.incrementAndGet() == 2 ){
+                cutAfterBytes.set(1024 * 1024);
+            }
+            serve(exchange);
+        });
+
+        try{
+            new Utils().download(url(), target.toFile(), 5000, 5000, 4, new ArchiveChecksum("SHA-256", null));
+            fail("Broken connection should fail the download");
+        } catch(IOException ex){
+            // expected
+        }
+        assertFalse("Incomplete download must not be visible as target", Files.exists(target));
+        assertTrue(Files.exists(workingFolder.resolve("archive.zip" + SegmentedDownload.STATE_SUFFIX)));
+
+        servedBytes.set(0);
+        long transferred = new Utils().download(url(), target.toFile(), 5000, 5000, 4, new ArchiveChecksum("SHA-256", null));
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertTrue("Resumed download should not transfer everything again", transferred < content.length);
+        assertEquals(servedBytes.get(), transferred);
+        // digest has to cover the bytes of the first run too
+        assertEquals(sha256(content), new ArchiveChecksum("SHA-256", null).readStoredDigest(target));
+    }
+
+    @Test
+    public void storesChecksumComputedWhileDownloading() throws IOException {
+        Path target = workingFolder.resolve("archive.zip");
+        ArchiveChecksum checksum = new ArchiveChecksum("SHA-256", sha256(content));
+        new Utils().download(url(), target.toFile(), 5000, 5000, 4, checksum);
+
+        assertEquals(sha256(content), checksum.readStoredDigest(target));
+        assertTrue(checksum.isValidCacheEntry(target, false));
+    }
+
+    @Test
+    public void rejectsChecksumMismatch() throws IOException {
+        Path target = workingFolder.resolve("archive.zip");
+        try{
+            new Utils().download(url(), target.toFile(), 5000, 5000, 4, new ArchiveChecksum("SHA-256", "0000"));
+            fail("Download with wrong checksum must fail");
+        } catch(IOException ex){
+            // expected
+        }
+        assertFalse(Files.exists(target));
+        assertFalse(Files.exists(workingFolder.resolve("archive.zip" + SegmentedDownload.PART_SUFFIX)));
+    }
+
+    private String sha256(byte[] bytes) {
+        try{
+            return new Utils().toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch(NoSuchAlgorithmException ex){
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
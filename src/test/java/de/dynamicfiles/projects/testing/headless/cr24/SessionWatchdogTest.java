@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 Danny Althoff
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.dynamicfiles.projects.testing.headless.cr24;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.chrome.ChromeDriverService;
+import org.openqa.selenium.chrome.ChromeOptions;
+import org.openqa.selenium.net.PortProber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Uses a forked JVM standing in for chromedriver, which stalls commands or its status, and some unrelated process
+ * having the same port argument.
+ *
+ * @author Danny Althoff
+ */
+public class SessionWatchdogTest {
+
+    private static final String STALL_STATUS = "CR24_FAKE_STALL_STATUS";
+    private static final int HANG_TIMEOUT = 1000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path executable;
+    private int port;
+    private final List<ManagedChromeDriver> drivers = new ArrayList<>();
+    private String unrelatedProcessMarker;
+    private int unrelatedProcess;
+
+    /**
+     * Answers the status and creates sessions like chromedriver, but never finishes navigating. When started with
+     * {@link #STALL_STATUS}, it stops answering its status as soon as the session got created.
+     */
+    public static final class FakeChromedriver {
+
+        private static final AtomicBoolean SESSION_CREATED = new AtomicBoolean(false);
+
+        public static void main(String[] args) throws IOException {
+            int port = 0;
+            for( String arg : args ){
+                if( arg.startsWith("--port=") ){
+                    port = Integer.parseInt(arg.substring("--port=".length()));
+                }
+            }
+            boolean stallStatus = System.getenv(STALL_STATUS) != null;
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+            server.createContext("/", exchange -> {
+                String path = exchange.getRequestURI().getPath();
+                if( "/status".equals(path) ){
+                    if( stallStatus && SESSION_CREATED.get() ){
+                        stall();
+                    }
+                    respond(exchange, "{\"status\":0,\"value\":{\"ready\":true}}");
+                } else if( "/session".equals(path) ){
+                    SESSION_CREATED.set(true);
+                    respond(exchange, "{\"sessionId\":\"fake-session\",\"status\":0,\"value\":{\"browserName\":\"chrome\"}}");
+                } else if( path.endsWith("/url") ){
+                    stall();
+                } else if( "/shutdown".equals(path) ){
+                    respond(exchange, "{\"status\":0,\"value\":null}");
+                    System.exit(0);
+                } else {
+                    respond(exchange, "{\"sessionId\":\"fake-session\",\"status\":0,\"value\":null}");
+                }
+            });
+            // stalled requests must not block the others
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.start();
+        }
+
+        private static void stall() {
+            try{
+                Thread.sleep(Long.MAX_VALUE);
+            } catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static void respond(HttpExchange exchange, String response) throws IOException {
+            byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, responseBytes.length);
+            try(OutputStream responseBody = exchange.getResponseBody()){
+                responseBody.write(responseBytes);
+            }
+        }
+    }
+
+    @Before
+    public void prepare() throws IOException, InterruptedException {
+        Assume.assumeTrue("Finding processes requires /proc", ProcessTable.isSupported());
+        port = PortProber.findFreePort();
+
+        executable = temporaryFolder.getRoot().toPath().resolve("chromedriver");
+        String javaExecutable = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String script = "#!/bin/sh\nexec '" + javaExecutable + "' -cp '" + System.getProperty("java.class.path") + "' '" + FakeChromedriver.class.getName() + "' \"$@\"\n";
+        Files.write(executable, script.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(executable, PosixFilePermissions.fromString("rwx------"));
+
+        // started in the background by some shell which exits right away, so it does not belong to this JVM
+        unrelatedProcessMarker = "--cr24-watchdog-test=" + System.nanoTime();
+        new ProcessBuilder("sh", "-c", "sh -c 'sleep 60; true' sh " + unrelatedProcessMarker + " --port=" + port + " > /dev/null 2>&1 &").start().waitFor();
+        List<Integer> unrelatedProcesses = ProcessTable.read().findByArgument(unrelatedProcessMarker);
+        assertEquals(1, unrelatedProcesses.size());
+        unrelatedProcess = unrelatedProcesses.get(0);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        for( ManagedChromeDriver driver : drivers ){
+            try{
+                driver.quit();
+            } catch(WebDriverException ex){
+                // killed by the watchdog
+            }
+        }
+        if( unrelatedProcess != 0 ){
+            ResourceReaper.kill(Collections.singletonList(String.valueOf(unrelatedProcess)));
+        }
+    }
+
+    private ManagedChromeDriver startFakeSession(int driverPort, boolean stallStatus) {
+        Map<String, String> environment = new HashMap<>(ResourceReaper.getOwnerEnvironment());
+        if( stallStatus ){
+            environment.put(STALL_STATUS, "true");
+        }
+        ChromeDriverService service = new ChromeDriverService.Builder()
+                .usingDriverExecutable(new File(executable.toString()))
+                .usingPort(driverPort)
+                .withEnvironment(environment)
+                .build();
+        ManagedChromeDriver driver = new ManagedChromeDriver(service, new ChromeOptions(), null);
+        drivers.add(driver);
+        return driver;
+    }
+
+    private boolean isFakeChromedriverRunning() {
+        return !ProcessTable.read().findByArgument(FakeChromedriver.class.getName()).isEmpty();
+    }
+
+    private void awaitUnresponsive(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while( drivers.stream().anyMatch(driver -> !driver.isUnresponsive()) && System.currentTimeMillis() < deadline ){
+            Thread.sleep(50);
+        }
+    }
+
+    private void assertKilledOwnProcessesOnly() throws InterruptedException {
+        drivers.forEach(driver -> assertTrue(driver.isUnresponsive()));
+        long deadline = System.currentTimeMillis() + 5000;
+        while( isFakeChromedriverRunning() && System.currentTimeMillis() < deadline ){
+            Thread.sleep(50);
+        }
+        assertFalse("Chromedriver of the session got killed", isFakeChromedriverRunning());
+        // killed processes nobody waits for stay as zombies, which do not have a command line anymore
+        assertEquals("Processes not launched by this JVM have to survive", Collections.singletonList(unrelatedProcess), ProcessTable.read().findByArgument(unrelatedProcessMarker));
+    }
+
+    @Test
+    public void killsSessionsRunningCommandsTooLong() throws IOException, InterruptedException {
+        ManagedChromeDriver driver = startFakeSession(port, false);
+        new SessionWatchdog(HANG_TIMEOUT, 100).watch(driver, false);
+
+        long startMillis = System.currentTimeMillis();
+        try{
+            driver.get("http://localhost/stalled");
+            fail("Stalled command must fail after its processes got killed");
+        } catch(WebDriverException ex){
+            assertTrue(System.currentTimeMillis() - startMillis >= HANG_TIMEOUT);
+        }
+        assertKilledOwnProcessesOnly();
+    }
+
+    @Test
+    public void killsSessionsMissingHeartbeats() throws IOException, InterruptedException {
+        ManagedChromeDriver driver = startFakeSession(port, true);
+        new SessionWatchdog(HANG_TIMEOUT, 100).watch(driver, false);
+
+        awaitUnresponsive(10 * HANG_TIMEOUT);
+        assertKilledOwnProcessesOnly();
+    }
+
+    @Test
+    public void detectsHangingSessionsWithinOneRound() throws IOException, InterruptedException {
+        startFakeSession(port, true);
+        for( int i = 1; i < 4; i++ ){
+            startFakeSession(PortProber.findFreePort(), true);
+        }
+        // every heartbeat takes the whole interval, checking the sessions one after another would take 4 intervals
+        SessionWatchdog watchdog = new SessionWatchdog(HANG_TIMEOUT, HANG_TIMEOUT);
+        long startMillis = System.currentTimeMillis();
+        drivers.forEach(driver -> watchdog.watch(driver, false));
+
+        awaitUnresponsive(10 * HANG_TIMEOUT);
+        assertTrue("All sessions have to be detected by the first round", System.currentTimeMillis() - startMillis < 3.5 * HANG_TIMEOUT);
+        assertKilledOwnProcessesOnly();
+    }
+
+    @Test
+    public void replacesKilledSharedChromedriver() throws IOException, InterruptedException {
+        File executableFile = new File(executable.toString());
+        SharedChromeDriverService killedService = SharedChromeDriverService.acquire(executableFile);
+        try{
+            killedService.start();
+            SharedChromeDriverService sameService = SharedChromeDriverService.acquire(executableFile);
+            assertSame(killedService, sameService);
+            sameService.stop();
+
+            ResourceReaper.kill(ProcessTable.read().findByArgument(FakeChromedriver.class.getName()).stream().map(String::valueOf).collect(Collectors.toList()));
+            long deadline = System.currentTimeMillis() + 5000;
+            while( killedService.isRunning() && System.currentTimeMillis() < deadline ){
+                Thread.sleep(50);
+            }
+
+            SharedChromeDriverService freshService = SharedChromeDriverService.acquire(executableFile);
+            try{
+                assertNotSame("New sessions must not get the killed chromedriver", killedService, freshService);
+                freshService.start();
+                assertTrue(freshService.isRunning());
+            } finally{
+                freshService.stop();
+            }
+        } finally{
+            // balancing the first acquire must not stop the fresh service of other sessions
+            killedService.stop();
+        }
+    }
+
+}